@@ -0,0 +1,99 @@
+package com.jethro.bench;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * Images the benchmarks run on. A name is either one of the bundled frames, such as "testseq100000", or a
+ * synthetic size: "720p", "1080p" or "4k". Synthetic images tile a bundled frame scaled up 2x, so they hold many
+ * circles at the radii the detector sees in real frames instead of a few huge ones.
+ */
+final class BenchImages {
+    /** Frame the synthetic sizes are built from. */
+    private static final String TILE = "testseq100000";
+
+    private BenchImages() {
+    }
+
+    /**
+     * @param name String bundled frame name or synthetic size.
+     * @return BufferedImage of type TYPE_INT_RGB, as the detector receives it from the application.
+     */
+    static BufferedImage Load(String name) throws IOException {
+        switch (name) {
+            case "720p":
+                return Tile(Read(TILE), 1280, 720);
+            case "1080p":
+                return Tile(Read(TILE), 1920, 1080);
+            case "4k":
+                return Tile(Read(TILE), 3840, 2160);
+            default:
+                return Tile(Read(name), -1, -1);
+        }
+    }
+
+    /**
+     * @return List of the names of the bundled testseq frames, in sequence order.
+     */
+    static List<String> Sequence() throws IOException {
+        String[] files = Dir().list((dir, file) -> file.startsWith("testseq") && file.endsWith(".gif"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No testseq frames in " + Dir().getAbsolutePath() + ", set -Dhough.images to the "
+                    + "images directory");
+        }
+        Arrays.sort(files);
+        List<String> names = new ArrayList<>();
+        for (String file : files) {
+            names.add(file.substring(0, file.length() - ".gif".length()));
+        }
+        return names;
+    }
+
+    private static File Dir() {
+        return new File(System.getProperty("hough.images", "images"));
+    }
+
+    private static BufferedImage Read(String name) throws IOException {
+        File dir = Dir();
+        File file = new File(dir, name + ".gif");
+        BufferedImage img = ImageIO.read(file);
+        if (img == null) {
+            throw new IOException("Cannot read " + file.getAbsolutePath() + ", set -Dhough.images to the images "
+                    + "directory");
+        }
+        return img;
+    }
+
+    /**
+     * @param src BufferedImage to tile.
+     * @param width int width of the result, -1 to copy src at its own size.
+     * @param height int height of the result, -1 to copy src at its own size.
+     */
+    private static BufferedImage Tile(BufferedImage src, int width, int height) {
+        boolean copy = width < 0;
+        int tileWidth = copy ? src.getWidth() : src.getWidth() * 2;
+        int tileHeight = copy ? src.getHeight() : src.getHeight() * 2;
+        if (copy) {
+            width = tileWidth;
+            height = tileHeight;
+        }
+
+        BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        for (int y = 0; y < height; y += tileHeight) {
+            for (int x = 0; x < width; x += tileWidth) {
+                g.drawImage(src, x, y, tileWidth, tileHeight, null);
+            }
+        }
+        g.dispose();
+        return dst;
+    }
+}
@@ -0,0 +1,74 @@
+package com.jethro.bench;
+
+import com.jethro.core.CircleDetector;
+import com.jethro.core.DetectionResult;
+import com.jethro.core.DetectorParams;
+import com.jethro.core.FrameBuffers;
+import com.jethro.core.StageImage;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The whole detector on one image, as the application runs it. Detect is detection alone, as in the default
+ * headless mode, and DetectReusingBuffers is the same with the FrameBuffers a batch worker keeps between frames.
+ * ProcessImage also renders every stage image, as the application does with --emit=all, but without encoding or
+ * writing them. The forks load the vector module, as bin/hough-detector does; see StageBenchmark for measuring
+ * the scalar loops.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class DetectorBenchmark {
+    @Param({"testseq100000", "testseq100136", "720p", "1080p", "4k"})
+    public String image;
+
+    /** Run the detector on the common pool, or serially. */
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private CircleDetector detector;
+    private BufferedImage img;
+    private FrameBuffers buffers;
+
+    @Setup
+    public void Setup() throws IOException {
+        detector = new CircleDetector(parallel ? ForkJoinPool.commonPool() : null, new DetectorParams());
+        img = BenchImages.Load(image);
+        buffers = new FrameBuffers();
+    }
+
+    @Benchmark
+    public DetectionResult Detect() {
+        return detector.Detect(img);
+    }
+
+    @Benchmark
+    public DetectionResult DetectReusingBuffers() {
+        return detector.Detect(img, null, buffers);
+    }
+
+    @Benchmark
+    public void ProcessImage(Blackhole bh) {
+        DetectionResult result = detector.Detect(img);
+        for (StageImage stage : StageImage.values()) {
+            bh.consume(stage.Render(result));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.jethro.bench;
+
+/**
+ * Latency histogram in the style of HdrHistogram: values below 256 ns get a bucket each, and every power of two
+ * above that is split into 128 buckets, so a percentile is within 1% of the true value at any magnitude while the
+ * whole range of a long fits in a fixed table. Not thread safe, every worker keeps its own and they are merged at
+ * the end.
+ */
+final class LatencyHistogram {
+    /** Bits of each value kept exactly, the buckets per power of two above 256 are 1 << SUB_BITS. */
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS) * SUB_BUCKETS + SUB_BUCKETS];
+    private long total;
+    private long sum;
+    private long max;
+
+    /**
+     * @param nanos long latency to record, negative values count as 0.
+     */
+    void Record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[Bucket(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * @param other LatencyHistogram whose values are added to this one.
+     */
+    void Add(LatencyHistogram other) {
+        for (int b = 0; b < counts.length; b++) {
+            counts[b] += other.counts[b];
+        }
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long Count() {
+        return total;
+    }
+
+    long Max() {
+        return max;
+    }
+
+    /**
+     * @return double mean of the recorded values, 0 if there are none.
+     */
+    double Mean() {
+        return (total == 0) ? 0 : (double) sum / total;
+    }
+
+    /**
+     * @param percentile double from 0 to 100.
+     * @return long highest value of the bucket holding the nearest-rank percentile, never above the largest value
+     * recorded. 0 if nothing was recorded.
+     */
+    long ValueAt(double percentile) {
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return Math.min(max, HighestInBucket(b));
+            }
+        }
+        return max;
+    }
+
+    private static int Bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long HighestInBucket(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket - (long) shift * SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,285 @@
+package com.jethro.bench;
+
+import com.jethro.core.CircleDetector;
+import com.jethro.core.DetectorParams;
+import com.jethro.core.FrameBuffers;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the whole detector under sustained load, as a service would: N detector instances on threads of their own
+ * replay the bundled testseq frames and synthetic frames, as fast as they can or paced at a target rate. After a
+ * warmup every frame's latency goes into a LatencyHistogram, and the run reports the percentiles, the throughput and
+ * the garbage collector pauses, optionally as a JSON report. Given a baseline report it fails when the run is worse.
+ * At a target rate the latency of a frame runs from when it was due, not from when it started, so a detector that
+ * falls behind is charged for the frames waiting on it.
+ * Run from the repository root after building the benchmarks:
+ *     java --add-modules=jdk.incubator.vector -cp benchmarks/target/benchmarks.jar com.jethro.bench.LoadGenerator
+ * Exits with 0 when the run passes, 1 on bad options or a baseline of a different run, and 2 on a regression.
+ */
+public final class LoadGenerator {
+    static final String USAGE = "Usage: LoadGenerator [options]\n"
+            + "  --images=NAME,...   frames to replay: testseq (the bundled sequence), bundled frame names and\n"
+            + "                      synthetic sizes 720p, 1080p, 4k (default testseq,1080p)\n"
+            + "  --instances=N       concurrent detector instances, each on a thread of its own (default 1)\n"
+            + "  --rate=FPS          frames per second over all instances, 0 for as fast as possible (default 0)\n"
+            + "  --warmup=SECONDS    time to run before measuring (default 5)\n"
+            + "  --duration=SECONDS  time to measure (default 20)\n"
+            + "  --report=FILE       write the results as JSON\n"
+            + "  --baseline=FILE     JSON report of an earlier run to compare with, exit 2 if this run is worse\n"
+            + "  --tolerance=PERCENT how much worse than the baseline throughput, p50 or p99 may be (default 10)";
+
+    private String images = "testseq,1080p";
+    private int instances = 1;
+    private double rate;
+    private double warmup = 5;
+    private double duration = 20;
+    private Path report;
+    private Path baseline;
+    private double tolerance = 0.10;
+
+    /** Frames every instance replays, in order. */
+    private final List<BufferedImage> frames = new ArrayList<>();
+    /** When the measured run began and ends, set once every instance is warm. */
+    private volatile long measureStart;
+    private volatile long measureEnd;
+    private long gcTimeBefore;
+    private long gcCountBefore;
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator load;
+        try {
+            load = Parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        try {
+            System.exit(load.Run());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return int exit code, 2 if the run regressed against the baseline.
+     * @throws IllegalArgumentException if the baseline was run with other images, instances or rate.
+     */
+    private int Run() throws IOException, InterruptedException {
+        for (String name : images.split(",")) {
+            if (name.equals("testseq")) {
+                for (String frame : BenchImages.Sequence()) {
+                    frames.add(BenchImages.Load(frame));
+                }
+            } else {
+                frames.add(BenchImages.Load(name));
+            }
+        }
+        // Check the baseline first, so a missing or different one fails before the run rather than after it
+        LoadReport before = (baseline == null) ? null : LoadReport.Read(baseline);
+        if (before != null) {
+            before.CheckSameRun(images, instances, rate);
+        }
+
+        CyclicBarrier warm = new CyclicBarrier(instances, this::StartMeasuring);
+        LatencyHistogram[] latencies = new LatencyHistogram[instances];
+        Thread[] threads = new Thread[instances];
+        for (int i = 0; i < instances; i++) {
+            int instance = i;
+            latencies[i] = new LatencyHistogram();
+            threads[i] = new Thread(() -> Replay(instance, warm, latencies[instance]), "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long stopped = System.nanoTime();
+
+        LatencyHistogram latency = new LatencyHistogram();
+        for (LatencyHistogram h : latencies) {
+            latency.Add(h);
+        }
+        LoadReport result = new LoadReport(images, instances, rate, (stopped - measureStart) / 1e9, latency,
+                GcTime() - gcTimeBefore, GcCount() - gcCountBefore);
+        result.Print(System.out);
+        if (report != null) {
+            result.Write(report);
+        }
+        if (before == null) {
+            return 0;
+        }
+        List<String> regressions = result.Regressions(before, tolerance);
+        for (String regression : regressions) {
+            System.out.println("REGRESSION " + regression);
+        }
+        if (regressions.isEmpty()) {
+            System.out.printf("No regression against %s%n", baseline);
+            return 0;
+        }
+        return 2;
+    }
+
+    /**
+     * Runs when every instance has warmed up, before any of them measures a frame.
+     */
+    private void StartMeasuring() {
+        gcTimeBefore = GcTime();
+        gcCountBefore = GcCount();
+        measureStart = System.nanoTime();
+        measureEnd = measureStart + (long) (duration * 1e9);
+    }
+
+    /**
+     * The loop of one instance. Instances start at different frames and, at a target rate, are due at evenly
+     * spread times, so they do not all run the same frame at once.
+     */
+    private void Replay(int instance, CyclicBarrier warm, LatencyHistogram latency) {
+        CircleDetector detector = new CircleDetector(null, new DetectorParams());
+        FrameBuffers buffers = new FrameBuffers();
+        int next = instance % frames.size();
+
+        long warmEnd = System.nanoTime() + (long) (warmup * 1e9);
+        while (System.nanoTime() < warmEnd) {
+            detector.Detect(frames.get(next), null, buffers);
+            next = (next + 1) % frames.size();
+        }
+        try {
+            warm.await();
+        } catch (InterruptedException | BrokenBarrierException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        long interval = (rate > 0) ? (long) (instances * 1e9 / rate) : 0;
+        long due = measureStart + ((rate > 0) ? (long) (instance * 1e9 / rate) : 0);
+        while (true) {
+            long start = System.nanoTime();
+            if (rate > 0) {
+                if (due >= measureEnd) {
+                    break;
+                }
+                while (start < due) {
+                    LockSupport.parkNanos(due - start);
+                    start = System.nanoTime();
+                }
+                start = due;
+                due += interval;
+            } else if (start >= measureEnd) {
+                break;
+            }
+            detector.Detect(frames.get(next), null, buffers);
+            latency.Record(System.nanoTime() - start);
+            next = (next + 1) % frames.size();
+        }
+    }
+
+    /**
+     * @return long ms the collectors have spent in collections, as their MXBeans report it. On JDK 17 the G1,
+     * parallel and serial beans only count pauses.
+     */
+    private static long GcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static long GcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * @param args String[] program arguments.
+     * @return LoadGenerator set up from them.
+     * @throws IllegalArgumentException if an option is unknown or malformed.
+     */
+    static LoadGenerator Parse(String[] args) {
+        LoadGenerator load = new LoadGenerator();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = (eq < 0) ? arg : arg.substring(0, eq);
+            String value = (eq < 0) ? "" : arg.substring(eq + 1);
+            switch (name) {
+                case "--images":
+                    if (value.isEmpty() || Arrays.asList(value.split(",")).contains("")) {
+                        throw new IllegalArgumentException(name + " expects a list of names, got: " + value);
+                    }
+                    load.images = value;
+                    break;
+                case "--instances":
+                    load.instances = PositiveInt(name, value);
+                    break;
+                case "--rate":
+                    load.rate = Positive(name, value, true);
+                    break;
+                case "--warmup":
+                    load.warmup = Positive(name, value, true);
+                    break;
+                case "--duration":
+                    load.duration = Positive(name, value, false);
+                    break;
+                case "--report":
+                    load.report = Paths.get(value);
+                    break;
+                case "--baseline":
+                    load.baseline = Paths.get(value);
+                    break;
+                case "--tolerance":
+                    load.tolerance = Positive(name, value, true) / 100;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return load;
+    }
+
+    private static int PositiveInt(String name, String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " expects a positive number, got: " + value);
+    }
+
+    /**
+     * @param zero boolean whether 0 is allowed.
+     */
+    private static double Positive(String name, String value, boolean zero) {
+        try {
+            double n = Double.parseDouble(value);
+            if (n > 0 || (zero && n == 0)) {
+                return n;
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + (zero ? " expects 0 or a positive number" : " expects a positive "
+                + "number") + ", got: " + value);
+    }
+}
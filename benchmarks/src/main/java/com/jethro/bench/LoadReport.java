@@ -0,0 +1,155 @@
+package com.jethro.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Result of one LoadGenerator run, written as a JSON report and compared against the report of an earlier run. The
+ * JSON is written by hand and read back by key, it only has to round trip its own format.
+ */
+final class LoadReport {
+    final String images;
+    final int instances;
+    /** Frames per second the run was paced at, 0 for as fast as possible. */
+    final double targetRate;
+    final double seconds;
+    final long frames;
+    final double throughput;
+    /** Latencies in ms. */
+    final double p50;
+    final double p99;
+    final double p999;
+    final double max;
+    final double mean;
+    final double gcPauseMs;
+    final long gcCount;
+
+    LoadReport(String images, int instances, double targetRate, double seconds, LatencyHistogram latency,
+               double gcPauseMs, long gcCount) {
+        this(images, instances, targetRate, seconds, latency.Count(), latency.Count() / seconds,
+                latency.ValueAt(50) / 1e6, latency.ValueAt(99) / 1e6, latency.ValueAt(99.9) / 1e6,
+                latency.Max() / 1e6, latency.Mean() / 1e6, gcPauseMs, gcCount);
+    }
+
+    private LoadReport(String images, int instances, double targetRate, double seconds, long frames,
+                       double throughput, double p50, double p99, double p999, double max, double mean,
+                       double gcPauseMs, long gcCount) {
+        this.images = images;
+        this.instances = instances;
+        this.targetRate = targetRate;
+        this.seconds = seconds;
+        this.frames = frames;
+        this.throughput = throughput;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+        this.mean = mean;
+        this.gcPauseMs = gcPauseMs;
+        this.gcCount = gcCount;
+    }
+
+    /**
+     * @param out PrintStream to print a summary of the run to.
+     */
+    void Print(PrintStream out) {
+        out.printf(Locale.ROOT, "%d frames in %.1f s on %d instances: %.1f frames/s%n", frames, seconds, instances,
+                throughput);
+        out.printf(Locale.ROOT, "latency ms   p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  mean %.2f%n", p50, p99, p999,
+                max, mean);
+        out.printf(Locale.ROOT, "gc           %d collections, %.0f ms paused%n", gcCount, gcPauseMs);
+    }
+
+    /**
+     * @param file Path to write the JSON report to.
+     */
+    void Write(Path file) throws IOException {
+        String json = String.format(Locale.ROOT, "{%n"
+                + "  \"images\": \"%s\",%n"
+                + "  \"instances\": %d,%n"
+                + "  \"targetRate\": %.3f,%n"
+                + "  \"seconds\": %.3f,%n"
+                + "  \"frames\": %d,%n"
+                + "  \"throughput\": %.3f,%n"
+                + "  \"latencyMs\": {\"p50\": %.3f, \"p99\": %.3f, \"p99.9\": %.3f, \"max\": %.3f, \"mean\": %.3f},%n"
+                + "  \"gc\": {\"pauseMs\": %.1f, \"count\": %d}%n"
+                + "}%n", images, instances, targetRate, seconds, frames, throughput, p50, p99, p999, max, mean,
+                gcPauseMs, gcCount);
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param file Path of a JSON report written by Write.
+     * @return LoadReport read back from it.
+     * @throws IOException if the file cannot be read or lacks a field.
+     */
+    static LoadReport Read(Path file) throws IOException {
+        String json = Files.readString(file, StandardCharsets.UTF_8);
+        Matcher images = Pattern.compile("\"images\"\\s*:\\s*\"([^\"]*)\"").matcher(json);
+        if (!images.find()) {
+            throw new IOException(file + " has no images field");
+        }
+        return new LoadReport(images.group(1), (int) Number(json, "instances", file),
+                Number(json, "targetRate", file), Number(json, "seconds", file), (long) Number(json, "frames", file),
+                Number(json, "throughput", file), Number(json, "p50", file), Number(json, "p99", file),
+                Number(json, "p99.9", file), Number(json, "max", file), Number(json, "mean", file),
+                Number(json, "pauseMs", file), (long) Number(json, "count", file));
+    }
+
+    private static double Number(String json, String key, Path file) throws IOException {
+        Matcher m = Pattern.compile("\"" + Pattern.quote(key) + "\"\\s*:\\s*(-?[0-9.eE+-]+)").matcher(json);
+        if (!m.find()) {
+            throw new IOException(file + " has no " + key + " field");
+        }
+        return Double.parseDouble(m.group(1));
+    }
+
+    /**
+     * @param images String images of the run to compare with this one.
+     * @param instances int instances of that run.
+     * @param targetRate double frames per second of that run, 0 for as fast as possible.
+     * @throws IllegalArgumentException if this report was run differently, so the two cannot be compared.
+     */
+    void CheckSameRun(String images, int instances, double targetRate) {
+        if (!images.equals(this.images) || instances != this.instances
+                || Math.abs(targetRate - this.targetRate) > 0.001) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT, "The baseline ran %s on %d instances at "
+                    + "%.1f frames/s, this run is %s on %d instances at %.1f frames/s", this.images, this.instances,
+                    this.targetRate, images, instances, targetRate));
+        }
+    }
+
+    /**
+     * Compares throughput and the p50 and p99 latencies with a baseline run. The p99.9 and the maximum rest on a
+     * handful of frames and are too noisy to gate on, they are only reported.
+     * @param baseline LoadReport of the run to compare with, see CheckSameRun.
+     * @param tolerance double fraction a measure may be worse than the baseline before it counts as a regression.
+     * @return List of the regressions as printable lines, empty if there are none.
+     */
+    List<String> Regressions(LoadReport baseline, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        if (throughput < baseline.throughput * (1 - tolerance)) {
+            regressions.add(Change("throughput frames/s", baseline.throughput, throughput));
+        }
+        if (p50 > baseline.p50 * (1 + tolerance)) {
+            regressions.add(Change("p50 latency ms", baseline.p50, p50));
+        }
+        if (p99 > baseline.p99 * (1 + tolerance)) {
+            regressions.add(Change("p99 latency ms", baseline.p99, p99));
+        }
+        return regressions;
+    }
+
+    private static String Change(String measure, double before, double after) {
+        return String.format(Locale.ROOT, "%s went from %.2f to %.2f (%+.1f%%)", measure, before, after,
+                (after / before - 1) * 100);
+    }
+}
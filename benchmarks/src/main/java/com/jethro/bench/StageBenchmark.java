@@ -0,0 +1,131 @@
+package com.jethro.bench;
+
+import com.jethro.core.Circle;
+import com.jethro.core.CircleDetector;
+import com.jethro.core.DetectionResult;
+import com.jethro.core.DetectorParams;
+import com.jethro.core.ImagePlanes;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each pipeline stage on its own. The inputs of every stage come from one full detection run during setup, and
+ * outputs are written into planes allocated once, so the allocation rate reported by -prof gc is the stage's own.
+ * The forks load the vector module; -jvmArgsAppend "--add-modules=jdk.incubator.vector -Dhough.vector=false" on the
+ * command line measures the scalar loops instead (it replaces the fork's arguments, so the module is given again).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class StageBenchmark {
+    @Param({"testseq100000", "testseq100136", "720p", "1080p", "4k"})
+    public String image;
+
+    /** Run the stages on the common pool, or serially. */
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private ForkJoinPool pool;
+    private DetectorParams params;
+    private int width;
+    private int height;
+    private int[] rgb;
+    private DetectionResult input;
+
+    private byte[] gray;
+    private int[] xGrad;
+    private int[] yGrad;
+    private byte[] magnitude;
+    private byte[] labels;
+    private byte[] edges;
+    private int[] accum;
+
+    @Setup
+    public void Setup() throws IOException {
+        pool = parallel ? ForkJoinPool.commonPool() : null;
+        params = new DetectorParams();
+        BufferedImage img = BenchImages.Load(image);
+        width = img.getWidth();
+        height = img.getHeight();
+        rgb = ImagePlanes.FromImage(img);
+        input = new CircleDetector(pool, params).Detect(img);
+
+        int size = width * height;
+        gray = new byte[size];
+        xGrad = new int[size];
+        yGrad = new int[size];
+        magnitude = new byte[size];
+        labels = new byte[size];
+        edges = new byte[size];
+        accum = new int[size];
+    }
+
+    @Benchmark
+    public byte[] Grayscale() {
+        CircleDetector.ImageToGrayscale(pool, rgb, gray, width, height);
+        return gray;
+    }
+
+    @Benchmark
+    public byte[] Blur() {
+        return CircleDetector.GaussianBlur(pool, input.grayscale, width, height, params.blurSize, params.blurSigma);
+    }
+
+    @Benchmark
+    public byte[] Sobel() {
+        CircleDetector.SobelFilter(pool, input.blurred, width, height, xGrad, yGrad, magnitude);
+        return magnitude;
+    }
+
+    @Benchmark
+    public byte[] NonMaximal() {
+        CircleDetector.NonMaximalFilter(pool, input.magnitude, input.xGradient, input.yGradient, width, height,
+                labels, params.lowThreshold, params.highThreshold);
+        return labels;
+    }
+
+    /** Fused replacement for Sobel followed by NonMaximal. */
+    @Benchmark
+    public byte[] SobelNonMaximal() {
+        CircleDetector.SobelNonMaximal(pool, input.blurred, width, height, xGrad, yGrad, magnitude, labels,
+                params.lowThreshold, params.highThreshold);
+        return labels;
+    }
+
+    /** Includes clearing the edge plane, which Hysteresis expects. */
+    @Benchmark
+    public byte[] Hysteresis() {
+        Arrays.fill(edges, (byte) 0);
+        CircleDetector.Hysteresis(pool, input.labels, width, height, edges);
+        return edges;
+    }
+
+    /** Includes clearing the accumulator, which HoughCircleDetection expects. */
+    @Benchmark
+    public ArrayList<Circle> Hough() {
+        Arrays.fill(accum, 0);
+        ArrayList<int[]> centers = new ArrayList<>();
+        ArrayList<Circle> circles = new ArrayList<>();
+        CircleDetector.HoughCircleDetection(pool, input.edges, input.xGradient, input.yGradient, width, height,
+                params, accum, centers, circles, null, null);
+        return circles;
+    }
+}
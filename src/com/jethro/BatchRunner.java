@@ -0,0 +1,338 @@
+package com.jethro;
+
+import com.jethro.core.Circle;
+import com.jethro.core.CircleDetector;
+import com.jethro.core.CircleDrift;
+import com.jethro.core.CircleTracker;
+import com.jethro.core.DetectionResult;
+import com.jethro.core.DetectorParams;
+import com.jethro.core.FrameBuffers;
+import com.jethro.core.ImageSink;
+import com.jethro.core.ProfileReport;
+import com.jethro.core.RawFrames;
+import com.jethro.core.SearchWindow;
+import com.jethro.core.StageImage;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Processes many images in one JVM. Decoding, detection and encoding run as overlapping stages on their own
+ * threads, connected by a bounded queue and a bounded ImageSink so a slow stage holds the others back instead of
+ * letting frames pile up in memory.
+ * With tracking enabled the frames are treated as a sequence: a single detection worker takes them in input order
+ * and a CircleTracker limits the Hough search to the neighbourhood of the circles found in the previous frame.
+ * Every detection worker keeps its own FrameBuffers, so after the first frame of each size detection allocates no
+ * planes. Stage images are rendered on the detection worker for the same reason, before its buffers are reused.
+ * Frame files are mapped up front and each of their frames becomes an input of its own. Those frames skip the
+ * decoders, the detection worker reads them from the mapping straight into its buffers.
+ */
+final class BatchRunner {
+    private final CircleDetector detector;
+    private final int decoders;
+    private final int detectors;
+    private final int queueSize;
+    private final File outDir;
+    private final int rawWidth;
+    private final int rawHeight;
+    private final EnumSet<StageImage> emit;
+    private final ImageSink sink;
+    private final CircleTracker tracker;
+    private final ProfileReport report;
+    /** Full-resolution detector the results are compared against, null unless drift is reported. */
+    private final CircleDetector reference;
+    private final CircleDrift drift = new CircleDrift();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * One frame to process: an image file, or one frame of a mapped frame file.
+     */
+    private static final class Input {
+        final File file;
+        /** Mapped file the frame is in, null for an image file. */
+        final RawFrames frames;
+        final int frame;
+
+        Input(File file, RawFrames frames, int frame) {
+            this.file = file;
+            this.frames = frames;
+            this.frame = frame;
+        }
+
+        /**
+         * @return String name to print the circles under, frames of a multi-frame file are numbered.
+         */
+        String Name() {
+            return (frames != null && frames.Count() > 1) ? file.getName() + "#" + frame : file.getName();
+        }
+
+        /**
+         * @return String file name the stage images are written under, before the stage suffix.
+         */
+        String BaseName() {
+            String base = file.getName().split("\\.")[0];
+            return (frames != null && frames.Count() > 1) ? base + "-" + frame : base;
+        }
+    }
+
+    /**
+     * A frame moving through the pipeline. END marks the end of the stream, a decoded frame with neither an image
+     * nor a mapped frame stands in for an input that failed to decode.
+     */
+    private static final class Frame {
+        static final Frame END = new Frame(-1, null, null);
+
+        final int index;
+        final Input input;
+        final BufferedImage image;
+
+        Frame(int index, Input input, BufferedImage image) {
+            this.index = index;
+            this.input = input;
+            this.image = image;
+        }
+
+        boolean IsValid() {
+            return image != null || input.frames != null;
+        }
+    }
+
+    BatchRunner(CircleDetector detector, CommandLine cmd) {
+        this.detector = detector;
+        this.decoders = cmd.decoders;
+        this.detectors = cmd.track ? 1 : cmd.detectors;
+        this.queueSize = cmd.queueSize;
+        this.outDir = cmd.outDir;
+        this.rawWidth = cmd.rawWidth;
+        this.rawHeight = cmd.rawHeight;
+        this.emit = cmd.emit;
+        this.sink = new ImageSink(cmd.encoders, cmd.queueSize, cmd.format, cmd.pngLevel);
+        this.tracker = cmd.track ? new CircleTracker(cmd.redetectInterval, cmd.searchMargin, cmd.radiusBand) : null;
+        this.report = cmd.profile ? new ProfileReport() : null;
+        this.reference = cmd.drift ? detector.WithParams(FullResolution(cmd.params)) : null;
+    }
+
+    /**
+     * Runs every input through the pipeline and prints the throughput.
+     * @param files List of image and frame files to process.
+     * @return int number of frames that failed to decode or write.
+     */
+    int Run(List<File> files) throws InterruptedException {
+        BlockingQueue<Frame> decoded = new ArrayBlockingQueue<>(queueSize);
+        AtomicInteger nextInput = new AtomicInteger();
+        AtomicInteger decodersLeft = new AtomicInteger(decoders);
+
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            System.out.println("Failed to create output directory: " + outDir);
+            sink.Close();
+            return files.size();
+        }
+
+        List<RawFrames> mapped = new ArrayList<>();
+        List<Input> inputs = Expand(files, mapped);
+
+        long start = System.nanoTime();
+
+        Thread[] decodeThreads = Start("decode", decoders, () -> {
+            try {
+                int i;
+                while ((i = nextInput.getAndIncrement()) < inputs.size()) {
+                    Input input = inputs.get(i);
+                    decoded.put(new Frame(i, input, (input.frames != null) ? null : Decode(input.file)));
+                }
+            } finally {
+                // The detectors wait for every decoder's END, even one that stopped early
+                if (decodersLeft.decrementAndGet() == 0) {
+                    for (int d = 0; d < detectors; d++) {
+                        decoded.put(Frame.END);
+                    }
+                }
+            }
+        });
+
+        Thread[] detectThreads = Start("detect", detectors, () -> {
+            // Frames waiting for an earlier frame to arrive, only used while tracking
+            PriorityQueue<Frame> pending = new PriorityQueue<>(Comparator.comparingInt(f -> f.index));
+            FrameBuffers buffers = new FrameBuffers();
+            int nextIndex = 0;
+            Frame frame;
+            while ((frame = decoded.take()) != Frame.END) {
+                if (tracker == null) {
+                    Detect(frame, buffers);
+                    continue;
+                }
+                pending.add(frame);
+                while (!pending.isEmpty() && pending.peek().index == nextIndex) {
+                    Detect(pending.poll(), buffers);
+                    nextIndex++;
+                }
+            }
+        });
+
+        Join(decodeThreads);
+        Join(detectThreads);
+        failed.addAndGet(sink.Close());
+        for (RawFrames frames : mapped) {
+            try {
+                frames.Close();
+            } catch (IOException e) {
+                // Every frame has been read
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int frames = inputs.size() - failed.get();
+        System.out.printf("Processed %d frames in %.2f s (%.1f fps)%n", frames, seconds, frames / seconds);
+        if (report != null) {
+            report.Print(System.out);
+        }
+        if (reference != null) {
+            System.out.println(drift);
+        }
+        return failed.get();
+    }
+
+    /**
+     * Maps the frame files and lists every frame to process. A frame file that cannot be mapped counts as one failed
+     * frame.
+     * @param files List of image and frame files.
+     * @param mapped List to be filled with the mapped files, to close once the run is over.
+     * @return List of Inputs in processing order.
+     */
+    private List<Input> Expand(List<File> files, List<RawFrames> mapped) {
+        List<Input> inputs = new ArrayList<>();
+        for (File file : files) {
+            if (!RawFrames.IsFrameFile(file)) {
+                inputs.add(new Input(file, null, 0));
+                continue;
+            }
+            try {
+                RawFrames frames = RawFrames.Open(file, rawWidth, rawHeight);
+                mapped.add(frames);
+                for (int f = 0; f < frames.Count(); f++) {
+                    inputs.add(new Input(file, frames, f));
+                }
+            } catch (IOException e) {
+                System.out.println("Invalid file specified: " + file + ": " + e.getMessage());
+                failed.incrementAndGet();
+                inputs.add(new Input(file, null, 0));
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @param params DetectorParams of the detector being checked.
+     * @return DetectorParams with the pyramid turned off.
+     */
+    static DetectorParams FullResolution(DetectorParams params) {
+        DetectorParams full = params.Copy();
+        full.pyramidLevels = 0;
+        return full;
+    }
+
+    private BufferedImage Decode(File file) {
+        if (RawFrames.IsFrameFile(file)) {
+            // A frame file that failed to map, already reported
+            return null;
+        }
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image != null) {
+                return image;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Reported below, a decoder can throw on a malformed file as well
+        }
+        System.out.println("Invalid file specified: " + file);
+        failed.incrementAndGet();
+        return null;
+    }
+
+    private void Detect(Frame frame, FrameBuffers buffers) throws InterruptedException {
+        if (!frame.IsValid()) {
+            return;
+        }
+        DetectionResult result;
+        try {
+            if (tracker == null) {
+                result = Detect(detector, frame, null, buffers);
+            } else {
+                List<SearchWindow> windows = tracker.Predict();
+                result = Detect(detector, frame, windows, buffers);
+                if (!tracker.Update(result.circles, windows == null)) {
+                    // A window missed its circle, what it found instead is not worth printing
+                    result = Detect(detector, frame, null, buffers);
+                    tracker.Update(result.circles, true);
+                }
+            }
+            if (reference != null) {
+                // The reference gets planes of its own, the result still needs the worker's buffers
+                drift.Add(Detect(reference, frame, null, null).circles, result.circles);
+            }
+            if (report != null) {
+                report.Add(result.profile);
+            }
+            Encode(frame, result);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to process " + frame.input.Name() + ": " + e);
+            failed.incrementAndGet();
+        }
+    }
+
+    private static DetectionResult Detect(CircleDetector detector, Frame frame, List<SearchWindow> windows,
+                                          FrameBuffers buffers) throws IOException {
+        if (frame.image != null) {
+            return detector.Detect(frame.image, windows, buffers);
+        }
+        return detector.Detect(frame.input.frames, frame.input.frame, windows, buffers);
+    }
+
+    /**
+     * Prints the circles found in a frame, renders the stage images asked for and hands them to the sink.
+     */
+    private void Encode(Frame frame, DetectionResult result) throws InterruptedException {
+        System.out.println(frame.input.Name() + " " + Circle.Join(result.circles));
+        String baseName = frame.input.BaseName();
+        for (StageImage stage : emit) {
+            BufferedImage image = stage.Render(result);
+            sink.Write(() -> image, new File(outDir, baseName + "-" + stage.fileSuffix).getPath());
+        }
+    }
+
+    private interface Worker {
+        void Run() throws InterruptedException;
+    }
+
+    private static Thread[] Start(String name, int count, Worker worker) {
+        Thread[] threads = new Thread[count];
+        for (int t = 0; t < count; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    worker.Run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, name + "-" + t);
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+        return threads;
+    }
+
+    private static void Join(Thread[] threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
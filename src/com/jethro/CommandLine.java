@@ -0,0 +1,458 @@
+package com.jethro;
+
+import com.jethro.core.CircleDetector;
+import com.jethro.core.DetectionCache;
+import com.jethro.core.DetectorParams;
+import com.jethro.core.ImagePlanes;
+import com.jethro.core.ImageSink;
+import com.jethro.core.RawFrames;
+import com.jethro.core.RegionOfInterest;
+import com.jethro.core.StageImage;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+
+/**
+ * Options given on the command line. Inputs may be image files, directories, globs such as
+ * "images/testseq*.gif" or "@list.txt" files holding one path per line. Frame files (.pgm, .y8 and .rgb) are
+ * memory-mapped instead of decoded and may hold many frames each.
+ */
+final class CommandLine {
+    static final String USAGE = "Usage: Main [options] <image | directory | glob | @list>...\n"
+            + "  --threads=N     threads for the pixel stages, 1 runs them serially\n"
+            + "  --blur-size=N   odd size of the gaussian blur kernel (default 5)\n"
+            + "  --blur-sigma=F  standard deviation of the gaussian blur (default 1.4)\n"
+            + "  --low=N         gradient magnitude of a weak edge, 0 to 255 (default 20)\n"
+            + "  --high=N        gradient magnitude of a strong edge, 0 to 255 (default 120)\n"
+            + "  --peak-window=N half size of the accumulator peak window (default 5)\n"
+            + "  --peak-ratio=F  fraction of the strongest peak a center must exceed (default 0.2)\n"
+            + "  --sparse-peaks  check each accumulator cell above the vote floor directly\n"
+            + "  --min-radius=PX smallest circle radius to search for (default 1)\n"
+            + "  --max-radius=PX largest circle radius to search for (default 199)\n"
+            + "  --score-ratio=F fraction of the best circle's score a circle must reach (default 0.2)\n"
+            + "  --roi=X,Y,W,H   only detect circles in this rectangle, may be given more than once\n"
+            + "  --mask=FILE     only detect circles where this image, the size of the frames, is not black\n"
+            + "  --full-lines    vote along lines across the whole image instead of only the radius range\n"
+            + "  --full-radii    build every center's whole radius histogram instead of stopping once one wins\n"
+            + "  --profile       print per-stage times, allocation and work counts\n"
+            + "  --separate-edges  run Sobel and non-maximal suppression as separate full-frame passes\n"
+            + "  --pyramid=N     halve full frames N times, then refine the circles found at full resolution\n"
+            + "  --refine=PX     pixels around a pyramid circle's center and radius to refine in (default 6)\n"
+            + "  --drift         also detect at full resolution and report how far the pyramid results drift\n"
+            + "  --emit=LIST     stage images to write: grayscale, blurred, xgradient, ygradient, sobel, nms,\n"
+            + "                  filtered, hysteresis, hough, circles, all or none (default none)\n"
+            + "  --decoders=N    batch image decoding threads (default 2)\n"
+            + "  --detectors=N   batch detection threads (default 1)\n"
+            + "  --encoders=N    image encoding threads (default 2)\n"
+            + "  --format=FMT    format of the stage images: png, bmp or pgm (default png)\n"
+            + "  --png-level=N   PNG deflate level from 0 (fastest) to 9 (smallest) (default 4)\n"
+            + "  --raw-size=WxH  frame size of headerless .y8 (8 bit luminance) and .rgb (24 bit) frame files\n"
+            + "  --raw-format=F  pixels of headerless frames on stdin or a socket: y8 or rgb (default y8)\n"
+            + "  --serve[=ADDR]  stay running and detect frames from stdin, or from connections to a loopback\n"
+            + "                  port or unix:PATH socket, replying with one line of circles per frame\n"
+            + "  --cache[=DIR]   reuse the results of frames with the same pixels, kept in memory and in DIR\n"
+            + "  --cache-memory=MB  memory for cached results and stages (default 256)\n"
+            + "  --queue=N       frames or images buffered between stages (default 4)\n"
+            + "  --out=DIR       directory to write images to (default current directory)\n"
+            + "  --track         treat batch inputs as a frame sequence and track circles between frames\n"
+            + "  --redetect=N    frames between full-frame detections while tracking (default 10)\n"
+            + "  --search=PX     pixels around a predicted center to search while tracking (default 8)\n"
+            + "  --radius-band=PX  pixels either side of a predicted radius to search (default 5)";
+
+    private static final String[] IMAGE_EXTENSIONS = {"jpg", "jpeg", "png", "bmp", "gif", "pgm", "y8", "rgb"};
+
+    int threads = 0;
+    final DetectorParams params = new DetectorParams();
+    EnumSet<StageImage> emit = EnumSet.noneOf(StageImage.class);
+    boolean profile = false;
+    boolean drift = false;
+    int decoders = 2;
+    int detectors = 1;
+    int encoders = 2;
+    ImageSink.Format format = ImageSink.Format.PNG;
+    int pngLevel = 4;
+    int rawWidth = 0;
+    int rawHeight = 0;
+    int rawDepth = 1;
+    /** Where to serve frames from, "" for stdin, null to not serve. */
+    String serve = null;
+    boolean cache = false;
+    /** Directory of the disk cache, null to only cache in memory. */
+    File cacheDir = null;
+    int cacheMemory = 256;
+    int queueSize = 4;
+    File outDir = new File(".");
+    boolean track = false;
+    int redetectInterval = 10;
+    int searchMargin = 8;
+    int radiusBand = 5;
+    /** Rectangles of --roi as {x, y, width, height}. */
+    final List<int[]> roi = new ArrayList<>();
+    File maskFile = null;
+    /** Region of --roi and --mask, null to detect in the whole frame. */
+    RegionOfInterest region = null;
+    final List<String> inputs = new ArrayList<>();
+
+    private CommandLine() {
+    }
+
+    /**
+     * @param args String[] program arguments.
+     * @return CommandLine parsed options.
+     * @throws IllegalArgumentException if an option is unknown or malformed.
+     */
+    static CommandLine Parse(String[] args) {
+        CommandLine cmd = new CommandLine();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                cmd.inputs.add(arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            String name = (eq < 0) ? arg : arg.substring(0, eq);
+            String value = (eq < 0) ? "" : arg.substring(eq + 1);
+            switch (name) {
+                case "--threads":
+                    cmd.threads = PositiveInt(name, value);
+                    break;
+                case "--blur-size":
+                    cmd.params.blurSize = PositiveInt(name, value);
+                    if (cmd.params.blurSize % 2 == 0) {
+                        throw new IllegalArgumentException(name + " expects an odd number, got: " + value);
+                    }
+                    break;
+                case "--blur-sigma":
+                    cmd.params.blurSigma = PositiveDouble(name, value);
+                    break;
+                case "--low":
+                    cmd.params.lowThreshold = IntInRange(name, value, 0, 255);
+                    break;
+                case "--high":
+                    cmd.params.highThreshold = IntInRange(name, value, 0, 255);
+                    break;
+                case "--peak-window":
+                    cmd.params.peakWindow = PositiveInt(name, value);
+                    break;
+                case "--peak-ratio":
+                    cmd.params.peakRatio = Fraction(name, value);
+                    break;
+                case "--sparse-peaks":
+                    cmd.params.sparsePeaks = true;
+                    break;
+                case "--min-radius":
+                    cmd.params.minRadius = PositiveInt(name, value);
+                    break;
+                case "--max-radius":
+                    cmd.params.maxRadius = PositiveInt(name, value);
+                    break;
+                case "--score-ratio":
+                    cmd.params.scoreRatio = Fraction(name, value);
+                    break;
+                case "--roi":
+                    cmd.roi.add(Rectangle(name, value));
+                    break;
+                case "--mask":
+                    if (value.isEmpty()) {
+                        throw new IllegalArgumentException(name + " expects an image file");
+                    }
+                    cmd.maskFile = new File(value);
+                    break;
+                case "--full-lines":
+                    cmd.params.boundedVoting = false;
+                    break;
+                case "--full-radii":
+                    cmd.params.radiusEarlyExit = false;
+                    break;
+                case "--separate-edges":
+                    cmd.params.fusedEdges = false;
+                    break;
+                case "--pyramid":
+                    cmd.params.pyramidLevels = PositiveInt(name, value);
+                    break;
+                case "--refine":
+                    cmd.params.refineWindow = PositiveInt(name, value);
+                    break;
+                case "--drift":
+                    cmd.drift = true;
+                    break;
+                case "--profile":
+                    cmd.profile = true;
+                    break;
+                case "--emit":
+                    cmd.emit = StageImage.ParseList(value);
+                    break;
+                case "--decoders":
+                    cmd.decoders = PositiveInt(name, value);
+                    break;
+                case "--detectors":
+                    cmd.detectors = PositiveInt(name, value);
+                    break;
+                case "--encoders":
+                    cmd.encoders = PositiveInt(name, value);
+                    break;
+                case "--format":
+                    cmd.format = ImageSink.Format.Parse(value);
+                    break;
+                case "--png-level":
+                    cmd.pngLevel = IntInRange(name, value, 0, 9);
+                    break;
+                case "--raw-size":
+                    int[] size = Size(name, value);
+                    cmd.rawWidth = size[0];
+                    cmd.rawHeight = size[1];
+                    break;
+                case "--raw-format":
+                    if (value.equals("y8") || value.equals("rgb")) {
+                        cmd.rawDepth = value.equals("rgb") ? 3 : 1;
+                    } else {
+                        throw new IllegalArgumentException(name + " expects y8 or rgb, got: " + value);
+                    }
+                    break;
+                case "--serve":
+                    cmd.serve = value;
+                    break;
+                case "--cache":
+                    cmd.cache = true;
+                    cmd.cacheDir = value.isEmpty() ? null : new File(value);
+                    break;
+                case "--cache-memory":
+                    cmd.cache = true;
+                    cmd.cacheMemory = IntInRange(name, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--queue":
+                    cmd.queueSize = PositiveInt(name, value);
+                    break;
+                case "--out":
+                    cmd.outDir = new File(value);
+                    break;
+                case "--track":
+                    cmd.track = true;
+                    break;
+                case "--redetect":
+                    cmd.redetectInterval = PositiveInt(name, value);
+                    break;
+                case "--search":
+                    cmd.searchMargin = PositiveInt(name, value);
+                    break;
+                case "--radius-band":
+                    cmd.radiusBand = PositiveInt(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (cmd.params.lowThreshold > cmd.params.highThreshold) {
+            throw new IllegalArgumentException("--low must not be above --high, got: " + cmd.params.lowThreshold
+                    + " and " + cmd.params.highThreshold);
+        }
+        if (!cmd.roi.isEmpty() || cmd.maskFile != null) {
+            cmd.region = ReadRegion(cmd);
+        }
+        return cmd;
+    }
+
+    private static int PositiveInt(String name, String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " expects a positive number, got: " + value);
+    }
+
+    private static int IntInRange(String name, String value, int min, int max) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= min && n <= max) {
+                return n;
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " expects a number from " + min + " to " + max + ", got: " + value);
+    }
+
+    private static int[] Rectangle(String name, String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException(name + " expects X,Y,WIDTH,HEIGHT, got: " + value);
+        }
+        return new int[]{IntInRange(name, parts[0], 0, Integer.MAX_VALUE),
+                IntInRange(name, parts[1], 0, Integer.MAX_VALUE), PositiveInt(name, parts[2]),
+                PositiveInt(name, parts[3])};
+    }
+
+    /**
+     * Reads the mask as luminance, from an image or the first frame of a frame file.
+     * @throws IllegalArgumentException if the mask cannot be read.
+     */
+    private static RegionOfInterest ReadRegion(CommandLine cmd) {
+        if (cmd.maskFile == null) {
+            return new RegionOfInterest(cmd.roi, null, 0, 0);
+        }
+        try {
+            byte[] mask;
+            int width;
+            int height;
+            if (RawFrames.IsFrameFile(cmd.maskFile)) {
+                RawFrames frames = RawFrames.Open(cmd.maskFile, cmd.rawWidth, cmd.rawHeight);
+                width = frames.Width(0);
+                height = frames.Height(0);
+                mask = new byte[width * height];
+                if (frames.IsGray()) {
+                    frames.ReadLuminance(0, mask);
+                } else {
+                    int[] rgb = new int[width * height];
+                    frames.ReadRgb(0, rgb);
+                    CircleDetector.ImageToGrayscale(null, rgb, mask, width, height);
+                }
+                frames.Close();
+            } else {
+                BufferedImage image = ImageIO.read(cmd.maskFile);
+                if (image == null) {
+                    throw new IOException("unsupported image format");
+                }
+                width = image.getWidth();
+                height = image.getHeight();
+                mask = new byte[width * height];
+                CircleDetector.ImageToGrayscale(null, ImagePlanes.FromImage(image), mask, width, height);
+            }
+            return new RegionOfInterest(cmd.roi, mask, width, height);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("--mask could not be read from " + cmd.maskFile + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private static int[] Size(String name, String value) {
+        int x = value.indexOf('x');
+        if (x < 0) {
+            throw new IllegalArgumentException(name + " expects WIDTHxHEIGHT, got: " + value);
+        }
+        return new int[]{PositiveInt(name, value.substring(0, x)), PositiveInt(name, value.substring(x + 1))};
+    }
+
+    private static double PositiveDouble(String name, String value) {
+        try {
+            double f = Double.parseDouble(value);
+            if (f > 0 && f < Double.POSITIVE_INFINITY) {
+                return f;
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " expects a positive number, got: " + value);
+    }
+
+    private static double Fraction(String name, String value) {
+        try {
+            double f = Double.parseDouble(value);
+            if (f >= 0 && f <= 1) {
+                return f;
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " expects a number between 0 and 1, got: " + value);
+    }
+
+    /**
+     * @return ForkJoinPool for the pixel stages, null if they should run serially.
+     */
+    ForkJoinPool Pool() {
+        if (threads == 0) {
+            return ForkJoinPool.commonPool();
+        }
+        return (threads > 1) ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * @return DetectionCache for the cache options, null if results should not be cached.
+     */
+    DetectionCache Cache() {
+        return cache ? new DetectionCache(cacheMemory * (1L << 20), cacheDir) : null;
+    }
+
+    /**
+     * @return true if the inputs name anything other than a single image file. A frame file may hold many frames,
+     * so it is always run as a batch.
+     */
+    boolean IsBatch() {
+        if (inputs.size() != 1) {
+            return inputs.size() > 1;
+        }
+        String input = inputs.get(0);
+        return input.startsWith("@") || IsGlob(input) || new File(input).isDirectory()
+                || RawFrames.IsFrameFile(new File(input));
+    }
+
+    private static boolean IsGlob(String input) {
+        return input.indexOf('*') >= 0 || input.indexOf('?') >= 0 || input.indexOf('[') >= 0;
+    }
+
+    private static boolean IsImage(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (name.endsWith("." + extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Expands directories, globs and list files into the image files they name. Directory and glob matches are
+     * sorted by name so frame sequences keep their order.
+     * @return List of input files.
+     */
+    List<File> ResolveInputs() throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String input : inputs) {
+            if (input.startsWith("@")) {
+                for (String line : Files.readAllLines(Paths.get(input.substring(1)))) {
+                    if (!line.trim().isEmpty()) {
+                        files.add(new File(line.trim()));
+                    }
+                }
+            } else if (IsGlob(input)) {
+                Path pattern = Paths.get(input);
+                Path dir = (pattern.getParent() != null) ? pattern.getParent() : Paths.get(".");
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.getFileName());
+                files.addAll(ListSorted(dir, p -> matcher.matches(p.getFileName())));
+            } else if (new File(input).isDirectory()) {
+                files.addAll(ListSorted(Paths.get(input), CommandLine::IsImage));
+            } else {
+                files.add(new File(input));
+            }
+        }
+        return files;
+    }
+
+    private static List<File> ListSorted(Path dir, DirectoryStream.Filter<Path> filter) throws IOException {
+        List<File> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, filter)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path)) {
+                    files.add(path.toFile());
+                }
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+}
@@ -0,0 +1,328 @@
+package com.jethro;
+
+import com.jethro.core.Circle;
+import com.jethro.core.CircleDetector;
+import com.jethro.core.DetectionResult;
+import com.jethro.core.FrameBuffers;
+import com.jethro.core.ImagePlanes;
+import com.jethro.core.ProfileReport;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a warm detector running and answers a stream of frames with one line of circles each, so a frame costs its
+ * detection and nothing else. Frames come from stdin or from connections to a local TCP port or Unix socket.
+ * A stream is either headerless frames of a fixed size, such as the output of ffmpeg -f rawvideo -pix_fmt gray,
+ * or a sequence of messages that each start with three big-endian 32 bit ints, width, height and bytes per pixel
+ * (1 for 8 bit luminance, 3 for 24 bit RGB), followed by the pixels. A message with a width of 0 ends the stream.
+ * The reply to frame n of a stream is the line "n x,y,radius,score ...", or "n error message" if it could not be
+ * processed, and replies are written in frame order. Several frames are in flight at once: while detection
+ * workers work on some, the next ones are being read.
+ */
+final class DetectionServer {
+    /** Largest frame accepted from a message header, in pixels. */
+    private static final int MAX_PIXELS = 1 << 26;
+
+    private final CircleDetector detector;
+    private final int workers;
+    private final int inFlight;
+    private final ProfileReport report;
+
+    /**
+     * A frame read from the stream. END marks the end of the stream.
+     */
+    private static final class Request {
+        static final Request END = new Request(-1, 0, 0, 0, null, null);
+
+        final int sequence;
+        final int width;
+        final int height;
+        final int depth;
+        final byte[] pixels;
+        /** Why the frame could not be read, null if it was read. */
+        final String error;
+
+        Request(int sequence, int width, int height, int depth, byte[] pixels, String error) {
+            this.sequence = sequence;
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.pixels = pixels;
+            this.error = error;
+        }
+    }
+
+    /**
+     * @param detector CircleDetector to detect with, shared by every stream.
+     * @param workers int detection threads per stream.
+     * @param inFlight int frames a stream may have read ahead of the replies written.
+     * @param report ProfileReport to add the profile of every frame to, null to not report.
+     */
+    DetectionServer(CircleDetector detector, int workers, int inFlight, ProfileReport report) {
+        this.detector = detector;
+        this.workers = workers;
+        this.inFlight = inFlight;
+        this.report = report;
+    }
+
+    /**
+     * Runs a few detections on a synthetic frame so the JIT has compiled the pixel stages before the first real
+     * frame arrives.
+     * @param frames int number of detections to run.
+     */
+    void WarmUp(int frames) {
+        int width = 320;
+        int height = 240;
+        byte[] gray = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double r = Math.hypot(x - width / 2.0, y - height / 2.0);
+                gray[y * width + x] = (byte) ((r > 40 && r < 60) ? 200 : 30);
+            }
+        }
+        FrameBuffers buffers = new FrameBuffers();
+        for (int f = 0; f < frames; f++) {
+            detector.DetectGray(gray, width, height, null, buffers);
+        }
+    }
+
+    /**
+     * Serves one stream until it ends.
+     * @param in InputStream frames are read from.
+     * @param out OutputStream replies are written to.
+     * @param rawWidth int width of headerless frames, 0 if the stream is made of messages.
+     * @param rawHeight int height of headerless frames.
+     * @param rawDepth int bytes per pixel of headerless frames, 1 or 3.
+     * @return int number of frames answered.
+     */
+    int Serve(InputStream in, OutputStream out, int rawWidth, int rawHeight, int rawDepth)
+            throws InterruptedException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        Writer replies = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII));
+        BlockingQueue<Request> requests = new ArrayBlockingQueue<>(inFlight);
+        // Pixel arrays go back here once their frame is answered, so a steady stream stops allocating them
+        BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(inFlight + workers + 1);
+        TreeMap<Integer, String> pending = new TreeMap<>();
+        int[] nextReply = {0};
+        // Set under the pending lock once a reply could not be written, the rest of the stream is only drained
+        boolean[] broken = {false};
+        AtomicInteger answered = new AtomicInteger();
+
+        Thread reader = new Thread(() -> {
+            int sequence = 0;
+            try {
+                while (true) {
+                    Request request = Read(data, sequence, free, rawWidth, rawHeight, rawDepth);
+                    if (request == null) {
+                        break;
+                    }
+                    requests.put(request);
+                    sequence++;
+                    if (request.error != null) {
+                        // The stream can not be trusted past a bad header
+                        break;
+                    }
+                }
+                for (int w = 0; w < workers; w++) {
+                    requests.put(Request.END);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "serve-read");
+        reader.setDaemon(true);
+        reader.start();
+
+        Thread[] detectors = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            detectors[w] = new Thread(() -> {
+                FrameBuffers buffers = new FrameBuffers();
+                try {
+                    Request request;
+                    while ((request = requests.take()) != Request.END) {
+                        boolean skip;
+                        synchronized (pending) {
+                            skip = broken[0];
+                        }
+                        String reply = skip ? null : request.sequence + " " + Answer(request, buffers);
+                        if (request.pixels != null) {
+                            free.offer(request.pixels);
+                        }
+                        synchronized (pending) {
+                            if (broken[0]) {
+                                continue;
+                            }
+                            pending.put(request.sequence, reply);
+                            try {
+                                while (!pending.isEmpty() && pending.firstKey() == nextReply[0]) {
+                                    replies.write(pending.pollFirstEntry().getValue());
+                                    replies.write('\n');
+                                    nextReply[0]++;
+                                    answered.incrementAndGet();
+                                }
+                                replies.flush();
+                            } catch (IOException e) {
+                                // The client went away, nothing more will be written. Keep draining without
+                                // detecting so the reader can finish
+                                broken[0] = true;
+                                pending.clear();
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "serve-detect-" + w);
+            detectors[w].setDaemon(true);
+            detectors[w].start();
+        }
+
+        reader.join();
+        for (Thread thread : detectors) {
+            thread.join();
+        }
+        return answered.get();
+    }
+
+    /**
+     * Reads the next frame, into a recycled pixel array when one is big enough.
+     * @return Request holding the frame or the reason it could not be read, null at the end of the stream.
+     */
+    private static Request Read(DataInputStream in, int sequence, BlockingQueue<byte[]> free, int rawWidth,
+                                int rawHeight, int rawDepth) {
+        int width = rawWidth;
+        int height = rawHeight;
+        int depth = rawDepth;
+        try {
+            if (rawWidth == 0) {
+                try {
+                    width = in.readInt();
+                } catch (EOFException e) {
+                    return null;
+                }
+                if (width == 0) {
+                    return null;
+                }
+                height = in.readInt();
+                depth = in.readInt();
+                if (width < 0 || height <= 0 || (long) width * height > MAX_PIXELS || (depth != 1 && depth != 3)) {
+                    return new Request(sequence, 0, 0, 0, null,
+                            "error bad frame header " + width + "x" + height + "x" + depth);
+                }
+            }
+            int length = width * height * depth;
+            byte[] pixels = free.poll();
+            if (pixels == null || pixels.length < length) {
+                pixels = new byte[length];
+            }
+            int read = in.readNBytes(pixels, 0, length);
+            if (read == 0 && rawWidth != 0) {
+                return null;
+            }
+            if (read < length) {
+                return new Request(sequence, 0, 0, 0, null, "error stream ended inside a frame");
+            }
+            return new Request(sequence, width, height, depth, pixels, null);
+        } catch (IOException e) {
+            return new Request(sequence, 0, 0, 0, null, "error " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return String of the circles found in the frame, or the reason there are none.
+     */
+    private String Answer(Request request, FrameBuffers buffers) {
+        if (request.error != null) {
+            return request.error;
+        }
+        try {
+            DetectionResult result;
+            if (request.depth == 1) {
+                result = detector.DetectGray(request.pixels, request.width, request.height, null, buffers);
+            } else {
+                int[] rgb = buffers.Rgb(request.width, request.height);
+                ImagePlanes.FromRgbBytes(request.pixels, rgb, request.width * request.height);
+                result = detector.Detect(rgb, request.width, request.height, null, buffers);
+            }
+            if (report != null) {
+                report.Add(result.profile);
+            }
+            return Circle.Join(result.circles);
+        } catch (RuntimeException e) {
+            return "error " + e;
+        }
+    }
+
+    /**
+     * Accepts connections until the process is stopped and serves each of them on a thread of its own.
+     * @param address String port number to listen on the loopback interface, or unix:PATH for a Unix socket. A
+     * socket already at PATH is replaced, any other file there is left alone and fails the call.
+     * @param rawWidth int width of headerless frames, 0 if streams are made of messages.
+     * @param rawHeight int height of headerless frames.
+     * @param rawDepth int bytes per pixel of headerless frames.
+     * @param log PrintStream to report connections on.
+     */
+    void Listen(String address, int rawWidth, int rawHeight, int rawDepth, PrintStream log) throws IOException {
+        ServerSocketChannel server;
+        if (address.startsWith("unix:")) {
+            Path path = Path.of(address.substring("unix:".length()));
+            // A socket left behind by an earlier server is replaced, anything else at the path is not ours to delete
+            if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (!Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+                    throw new IOException(path + " exists and is not a socket");
+                }
+                Files.delete(path);
+            }
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(path));
+        } else {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+        }
+        log.println("Listening on " + server.getLocalAddress());
+
+        int count = 0;
+        try (server) {
+            while (true) {
+                SocketChannel client = server.accept();
+                Thread connection = new Thread(() -> {
+                    try (client) {
+                        int frames = Serve(Channels.newInputStream(client), Channels.newOutputStream(client),
+                                rawWidth, rawHeight, rawDepth);
+                        log.println("Answered " + frames + " frames on " + Thread.currentThread().getName());
+                    } catch (IOException e) {
+                        log.println("Connection failed: " + e.getMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "serve-connection-" + count++);
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+    }
+}
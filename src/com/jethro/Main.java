@@ -0,0 +1,169 @@
+package com.jethro;
+
+import com.jethro.core.Circle;
+import com.jethro.core.CircleDetector;
+import com.jethro.core.CircleDrift;
+import com.jethro.core.DetectionResult;
+import com.jethro.core.ImageSink;
+import com.jethro.core.ProfileReport;
+import com.jethro.core.StageImage;
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Entry point. Runs with inputs, and the detection server, only use the headless core and ImageIO, so a short run
+ * never loads Swing or starts the AWT toolkit. The window is only opened when there is nothing to process, and only
+ * from a build that binds MainWindow.form.
+ */
+public final class Main {
+    private Main() {
+    }
+
+    public static void main(String[] args) {
+        CommandLine cmd;
+        try {
+            cmd = CommandLine.Parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(CommandLine.USAGE);
+            System.exit(1);
+            return;
+        }
+
+        if (cmd.serve != null) {
+            System.exit(Serve(cmd));
+        } else if (cmd.inputs.isEmpty()) {
+            if (!CanShowWindow()) {
+                System.out.println(CommandLine.USAGE);
+                System.exit(1);
+            }
+            MainWindow.Show(cmd);
+        } else if (cmd.IsBatch()) {
+            System.exit(Batch(cmd));
+        } else {
+            System.exit(Single(cmd));
+        }
+    }
+
+    /**
+     * Checks the window can open, and says why not when it cannot.
+     * @return true if there is a display and MainWindow.form is bound into the window class.
+     */
+    private static boolean CanShowWindow() {
+        if (GraphicsEnvironment.isHeadless()) {
+            System.out.println("No inputs given and there is no display to open the window on");
+            return false;
+        }
+        if (!MainWindow.IsFormBound()) {
+            System.out.println("No inputs given, and the window needs the IDE build: this build does not bind "
+                    + "MainWindow.form, so it only runs with inputs or --serve");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Detects circles in one image, prints them and writes the stage images asked for next to it.
+     * @param cmd CommandLine with a single image input.
+     * @return int process exit code.
+     */
+    private static int Single(CommandLine cmd) {
+        File file = new File(cmd.inputs.get(0));
+        BufferedImage image = null;
+        try {
+            image = ImageIO.read(file);
+        } catch (IOException e) {
+            // Reported below
+        }
+        if (image == null) {
+            System.out.println("Invalid file specified: " + file);
+            return 0;
+        }
+
+        CircleDetector detector = new CircleDetector(cmd.Pool(), cmd.params, cmd.profile)
+                .WithCache(cmd.Cache(), !cmd.emit.isEmpty()).WithRegion(cmd.region);
+        DetectionResult result = detector.Detect(image);
+        System.out.println(file.getName() + " " + Circle.Join(result.circles));
+        if (cmd.drift) {
+            CircleDrift drift = new CircleDrift();
+            CircleDetector reference = detector.WithParams(BatchRunner.FullResolution(cmd.params));
+            drift.Add(reference.Detect(image).circles, result.circles);
+            System.out.println(drift);
+        }
+        if (cmd.profile) {
+            ProfileReport report = new ProfileReport();
+            report.Add(result.profile);
+            report.Print(System.out);
+        }
+
+        if (cmd.emit.isEmpty()) {
+            return 0;
+        }
+        if (!cmd.outDir.isDirectory() && !cmd.outDir.mkdirs()) {
+            System.out.println("Failed to create output directory: " + cmd.outDir);
+            return 1;
+        }
+        ImageSink sink = new ImageSink(cmd.encoders, cmd.queueSize, cmd.format, cmd.pngLevel);
+        String baseName = file.getName().split("\\.")[0];
+        try {
+            for (StageImage stage : cmd.emit) {
+                sink.Write(() -> stage.Render(result), new File(cmd.outDir, baseName + "-" + stage.fileSuffix)
+                        .getPath());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return (sink.Close() > 0) ? 1 : 0;
+    }
+
+    /**
+     * @param cmd CommandLine with several inputs.
+     * @return int process exit code.
+     */
+    private static int Batch(CommandLine cmd) {
+        CircleDetector detector = new CircleDetector(cmd.Pool(), cmd.params, cmd.profile)
+                .WithCache(cmd.Cache(), !cmd.emit.isEmpty()).WithRegion(cmd.region);
+        try {
+            int failed = new BatchRunner(detector, cmd).Run(cmd.ResolveInputs());
+            return (failed > 0) ? 1 : 0;
+        } catch (IOException e) {
+            System.out.println("Failed to list inputs: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Runs the detection server. Replies go to stdout, everything else to stderr.
+     * @param cmd CommandLine with serve set.
+     * @return int process exit code.
+     */
+    private static int Serve(CommandLine cmd) {
+        ProfileReport report = cmd.profile ? new ProfileReport() : null;
+        CircleDetector detector = new CircleDetector(cmd.Pool(), cmd.params, cmd.profile)
+                .WithCache(cmd.Cache(), false).WithRegion(cmd.region);
+        DetectionServer server = new DetectionServer(detector, cmd.detectors, cmd.queueSize, report);
+        server.WarmUp(3);
+        try {
+            if (cmd.serve.isEmpty()) {
+                int frames = server.Serve(System.in, System.out, cmd.rawWidth, cmd.rawHeight, cmd.rawDepth);
+                System.err.println("Answered " + frames + " frames");
+            } else {
+                server.Listen(cmd.serve, cmd.rawWidth, cmd.rawHeight, cmd.rawDepth, System.err);
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Failed to serve " + cmd.serve + ": " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            return 1;
+        }
+        if (report != null) {
+            report.Print(System.err);
+        }
+        return 0;
+    }
+}
@@ -1,5 +1,14 @@
 package com.jethro;
 
+import com.jethro.core.CircleDetector;
+import com.jethro.core.DetectionCache;
+import com.jethro.core.DetectionResult;
+import com.jethro.core.DetectorParams;
+import com.jethro.core.ImagePlanes;
+import com.jethro.core.PipelineStage;
+import com.jethro.core.ProfileReport;
+import com.jethro.core.StageGraph;
+import com.jethro.core.StageImage;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
@@ -7,7 +16,15 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 import javax.imageio.ImageIO;
 
 
@@ -43,733 +60,446 @@ public class MainWindow {
     private JLabel circleImageLabel;
 
     private BufferedImage baseImg;
-    private String baseImgName;
-    private boolean GUI = true;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private DetectionCache cache;
+    /** Parameters set on the sliders, the detector always runs with a copy of them. */
+    private DetectorParams params = new DetectorParams();
+    private CircleDetector detector = new CircleDetector(pool, params.Copy());
+
+    private JLabel statusLabel;
+    private JProgressBar progressBar;
+
+    private DetectionResult result;
+    /** Last stage whose planes are in result, null before the first stage of an image. */
+    private PipelineStage doneStage;
+    private DetectionWorker worker;
+    /** Stages of the open image for retuning it, null until its detection is done. */
+    private StageGraph graph;
+    private TuneWorker tuner;
+    /** The sliders moved while tuner was running. */
+    private boolean retune;
+    private final EnumMap<StageImage, JLabel> stageLabels = new EnumMap<>(StageImage.class);
+    private final EnumSet<StageImage> renderedStages = EnumSet.noneOf(StageImage.class);
 
     /**
-     * Loads and sets the base image.
+     * Asks the user for an image and starts processing it.
      */
-    private void ReadAndSetBaseImage() {
+    private void OpenImage() {
         JFileChooser chooser = new JFileChooser(System.getProperty("user.dir"));
         FileNameExtensionFilter filter = new FileNameExtensionFilter("JPG, PNG, BMP & GIF Images",
                 "jpg", "png", "bmp", "gif");
         chooser.setFileFilter(filter);
         int returnVal = chooser.showOpenDialog(mainPanel);
         if(returnVal == JFileChooser.APPROVE_OPTION) {
-            try {
-                SetBaseImage(chooser.getSelectedFile());
-            } catch (IOException ioe) {
-                String msg = "Failed to openMenuItem imageLabel: " + chooser.getSelectedFile().getName() + "\n";
-                msg += "Error: " + ioe.getMessage();
-                JOptionPane.showMessageDialog(mainPanel, msg, "Image IO Error", JOptionPane.ERROR_MESSAGE);
-            }
-        }
-    }
-
-    private void SetBaseImage(File f) throws IOException {
-        BufferedImage inImg = ImageIO.read(f);
-        baseImgName = f.getName();
-        baseImg = new BufferedImage(inImg.getWidth(), inImg.getHeight(), BufferedImage.TYPE_INT_RGB);
-        baseImg.getGraphics().drawImage(inImg, 0, 0, null);
-        baseImg.getGraphics().dispose();
-
-        if (GUI) {
-            imageLabel.setIcon(new ImageIcon(baseImg));
+            ProcessImage(chooser.getSelectedFile());
         }
     }
 
     /**
-     * Saves the image in the currently selected tab to the directory specified by the user.
-     * @param tab JPanel to get the image from.
+     * Loads the image and runs the detection on a background worker, cancelling the image before it if that is
+     * still being processed. Each stage tab can be shown as soon as its stage is done.
+     * @param file File of the image.
      */
-    private void SaveTabImage(JPanel tab) {
-        JFileChooser chooser = new JFileChooser(System.getProperty("user.dir"));
-        FileNameExtensionFilter filter = new FileNameExtensionFilter("JPG, PNG, BMP & GIF Images",
-                "jpg", "png", "bmp", "gif");
-        chooser.setFileFilter(filter);
-        int returnVal = chooser.showSaveDialog(mainPanel);
-        if(returnVal == JFileChooser.APPROVE_OPTION) {
-            try {
-                BufferedImage img = (BufferedImage) ((ImageIcon)((JLabel)tab.getComponent(0)).getIcon()).getImage();
-                SaveImage(img, chooser.getSelectedFile().getName());
-            } catch (IOException ioe) {
-                String msg = "Failed to openMenuItem imageLabel: " + chooser.getSelectedFile().getName() + "\n";
-                msg += "Error: " + ioe.getMessage();
-                JOptionPane.showMessageDialog(mainPanel, msg, "Image IO Error", JOptionPane.ERROR_MESSAGE);
-            }
+    private void ProcessImage(File file) {
+        if (worker != null) {
+            worker.cancel(false);
         }
-    }
-
-    private void SaveImage(BufferedImage img, String outName) throws IOException {
-        File imgOut = new File(outName);
-        String[] fileParts = imgOut.getName().split("\\.");
-        String extension = fileParts[fileParts.length - 1];
-        ImageIO.write(img, extension, imgOut);
-    }
-
-    /**
-     * Samples the gaussian distribution at (x, 0).
-     * @param x int x coordinate to sample the gaussian at.
-     * @return Double of the gaussian at point (x, 0).
-     */
-    private static double Gaussian(int x) {
-        double sigmaSq = 1.4 * 1.4;
-        return ((1 / (2 * Math.PI * sigmaSq)) * Math.exp(-(x * x) / sigmaSq));
+        if (tuner != null) {
+            tuner.cancel(false);
+            tuner = null;
+        }
+        graph = null;
+        retune = false;
+        result = null;
+        doneStage = null;
+        renderedStages.clear();
+        for (JLabel label : stageLabels.values()) {
+            label.setIcon(null);
+        }
+        statusLabel.setText("Loading " + file.getName());
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+
+        DetectionWorker next = new DetectionWorker(file);
+        next.addPropertyChangeListener(e -> {
+            if (next == worker && "progress".equals(e.getPropertyName())) {
+                progressBar.setValue((Integer) e.getNewValue());
+            }
+        });
+        worker = next;
+        next.execute();
     }
 
     /**
-     * Returns a range of values from minX to maxX.
-     * @param minX int lower bound of the range.
-     * @param maxX int upper bound of the range.
-     * @return Double array containing normalized results.
+     * A finished stage and the planes known after it.
      */
-    private static double[] GaussianRange(int minX, int maxX) {
-        double total = 0;
-        double[] gaussRange = new double[(maxX - minX) + 1];
-
-        for (int i = minX; i < maxX + 1; i++) {
-            gaussRange[i - minX] = Gaussian(i);
-            total += gaussRange[i - minX];
-        }
+    private static final class StageDone {
+        final PipelineStage stage;
+        final DetectionResult partial;
 
-        for (int i = 0; i < gaussRange.length; i++) {
-            gaussRange[i] = gaussRange[i] / total;
+        StageDone(PipelineStage stage, DetectionResult partial) {
+            this.stage = stage;
+            this.partial = partial;
         }
-
-        return gaussRange;
     }
 
     /**
-     * Do all required steps to get the hough transform to the image.
-     * Generates multiple images that are to be displayed on the screen when they are generated.
+     * Loads and detects one image off the Event Dispatch Thread. Cancelling it stops the detection at the end of
+     * the stage it is in.
      */
-    private void ProcessImage(boolean writeOut) {
-        BufferedImage grayscaleImg = ImageToGrayscale(baseImg);
-        BufferedImage blurredImg = GaussianBlur(grayscaleImg, 5);
-
-        int[][] xGradValues = new int[baseImg.getHeight()][baseImg.getWidth()];
-        int[][] yGradValues = new int[baseImg.getHeight()][baseImg.getWidth()];
-
-        BufferedImage[] gradients = SobelFilter(blurredImg, xGradValues, yGradValues);
-
-        BufferedImage edgeImg = gradients[2];
-
-        BufferedImage[] NSMImages = NonMaximalFilter(edgeImg, xGradValues, yGradValues);
-        BufferedImage nonMaxImage = NSMImages[0];
-        BufferedImage filteredNMSImage = NSMImages[1];
-        BufferedImage hysteresisImage = Hysteresis(filteredNMSImage);
-
-        BufferedImage[] houghImages = HoughCircleDetection(hysteresisImage, xGradValues, yGradValues);
-        BufferedImage houghImage = houghImages[0];
-        BufferedImage foundCircleImage = houghImages[1];
-
-        if (GUI) {
-            grayscaleImageLabel.setIcon(new ImageIcon(grayscaleImg));
-            blurredImageLabel.setIcon(new ImageIcon(blurredImg));
-            xGradientImageLabel.setIcon(new ImageIcon(gradients[0]));
-            yGradientImageLabel.setIcon(new ImageIcon(gradients[1]));
-            edgeImageLabel.setIcon(new ImageIcon(edgeImg));
-            nonMaxImageLabel.setIcon(new ImageIcon(nonMaxImage));
-            filteredNMSImageLabel.setIcon(new ImageIcon(filteredNMSImage));
-            hysteresisImageLabel.setIcon(new ImageIcon(hysteresisImage));
-            houghImageLabel.setIcon(new ImageIcon(houghImage));
-            circleImageLabel.setIcon(new ImageIcon(foundCircleImage));
+    private final class DetectionWorker extends SwingWorker<DetectionResult, StageDone> {
+        private final File file;
+        private final CircleDetector detector = MainWindow.this.detector;
+        private final DetectorParams params = MainWindow.this.params.Copy();
+        /** The loaded image, published to the EDT with the first stage. */
+        private BufferedImage image;
+
+        DetectionWorker(File file) {
+            this.file = file;
         }
 
-        if (writeOut) {
-            try {
-                SaveImage(grayscaleImg, ToPath("grayscale.png"));
-                SaveImage(blurredImg, ToPath("blurred.png"));
-                SaveImage(gradients[0], ToPath("xgradient.png"));
-                SaveImage(gradients[1], ToPath("ygradient.png"));
-                SaveImage(edgeImg, ToPath("sobel-edges.png"));
-                SaveImage(nonMaxImage, ToPath("non-max-edges.png"));
-                SaveImage(filteredNMSImage, ToPath("non-maxfiltered-edges.png"));
-                SaveImage(hysteresisImage, ToPath("hysteresis.png"));
-                SaveImage(houghImage, ToPath("hough-lines.png"));
-                SaveImage(foundCircleImage, ToPath("foundCircles.png"));
-            } catch (IOException e) {
-                System.out.println("Failed to write out an image");
-                System.exit(0);
+        @Override
+        protected DetectionResult doInBackground() throws IOException {
+            BufferedImage inImg = ImageIO.read(file);
+            if (inImg == null) {
+                throw new IOException("Unsupported image format");
             }
+            image = new BufferedImage(inImg.getWidth(), inImg.getHeight(), BufferedImage.TYPE_INT_RGB);
+            image.getGraphics().drawImage(inImg, 0, 0, null);
+            image.getGraphics().dispose();
+
+            int stages = PipelineStage.values().length;
+            return detector.Detect(image, (stage, partial) -> {
+                if (isCancelled()) {
+                    throw new CancellationException();
+                }
+                setProgress(100 * (stage.ordinal() + 1) / stages);
+                publish(new StageDone(stage, partial));
+            });
         }
-    }
 
-    private String ToPath(String file) {
-        return baseImgName.split("\\.")[0] + "-" + file;
-    }
+        @Override
+        protected void process(List<StageDone> chunks) {
+            if (this != worker) {
+                return;
+            }
+            if (baseImg != image) {
+                baseImg = image;
+                imageLabel.setIcon(new ImageIcon(baseImg));
+            }
+            StageDone last = chunks.get(chunks.size() - 1);
+            result = last.partial;
+            doneStage = last.stage;
+            statusLabel.setText(file.getName() + ": " + last.stage.label + " done");
+            ShowSelectedStage();
+        }
 
-    /**
-     * Convolves in a single direction. Uses relfection at edges.
-     * @param img BufferedImage matrix the convolution is to be run on.
-     * @param filter double[] filter to be used in convolution.
-     * @param horizontal boolean flag determining which direction to OneWayConvolve.
-     * @return BufferedImage convolved matrix
-     */
-    private static BufferedImage OneWayConvolve(BufferedImage img, double[] filter, boolean horizontal) {
-        BufferedImage convolvedImg = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-
-        for (int y = 0; y < img.getHeight(); y++) {
-            for (int x = 0; x < img.getWidth(); x++) {
-                int index = ((int)-(filter.length / 2));
-                int filteredC = 0;
-                for (int f = 0; f < filter.length; f++) {
-                    int sampleIndex;
-                    Color c;
-                    if (horizontal) {
-                        sampleIndex = Math.max(0, Math.min(x + f + index, img.getWidth() - 1)); // bound the filter
-                        c = new Color(img.getRGB(sampleIndex, y));
-                    } else {
-                        sampleIndex = Math.max(0, Math.min(y + f + index, img.getHeight() - 1)); // bound the filter
-                        c = new Color(img.getRGB(x, sampleIndex));
-                    }
-                    filteredC += (int)(c.getRed() * filter[f]); // Only works for grayscale images
+        @Override
+        protected void done() {
+            if (this != worker || isCancelled()) {
+                return;
+            }
+            worker = null;
+            progressBar.setVisible(false);
+            try {
+                result = get();
+                doneStage = PipelineStage.RADII;
+                ShowSelectedStage();
+                statusLabel.setText((result.profile != null) ? ProfileReport.StatusLine(result.profile) : " ");
+                graph = new StageGraph(pool, result, params);
+                if (MainWindow.this.params.FirstChanged(params) != null) {
+                    // The sliders moved while it was detecting
+                    Retune();
                 }
-                Color newC = new Color(filteredC, filteredC, filteredC);
-                convolvedImg.setRGB(x, y, newC.getRGB());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                statusLabel.setText(" ");
+                String msg = "Failed to open image: " + file.getName() + "\n";
+                msg += "Error: " + e.getCause().getMessage();
+                JOptionPane.showMessageDialog(mainPanel, msg, "Image IO Error", JOptionPane.ERROR_MESSAGE);
             }
         }
-        return convolvedImg;
     }
 
     /**
-     * Converts an image from RGB to grayscale
-     * @param img Source image to convert.
-     * @return BufferedImage grayscale version of img.
+     * Reruns the stages of the open image that read a parameter that changed, coalescing slider moves made while a
+     * rerun is in progress into the next one.
      */
-    private static BufferedImage ImageToGrayscale(BufferedImage img) {
-        BufferedImage gImg = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-
-        for (int y = 0; y < img.getHeight(); y++) {
-            for (int x = 0; x < img.getWidth(); x++) {
-                Color c = new Color(img.getRGB(x, y));
-                int cGray = (int) ((0.2989 * c.getRed()) + (0.5870 * c.getGreen()) + (0.1140 * c.getBlue()));
-                gImg.setRGB(x, y, new Color(cGray, cGray, cGray).getRGB());
-            }
+    private void Retune() {
+        if (graph == null) {
+            return;
+        }
+        if (tuner != null) {
+            retune = true;
+            return;
+        }
+        PipelineStage from = graph.Stale(params);
+        if (from == null) {
+            return;
         }
-        return gImg;
+        doneStage = PipelineStage.values()[from.ordinal() - 1];
+        renderedStages.removeIf(stage -> stage.stage.compareTo(from) >= 0);
+        statusLabel.setText("Rerunning from " + from.label);
+        tuner = new TuneWorker(graph, params.Copy());
+        tuner.execute();
     }
 
     /**
-     * Use a square gaussian kernel of size kernelSize to blur the image.
-     * @param img BufferedImage to blur.
-     * @param kernelSize Size of the width and height of the gaussian kernel.
-     * @return BufferedImage of the blurred image.
+     * Reruns the stages of the open image with new parameters off the Event Dispatch Thread. Only one runs at a time,
+     * as the stages are not thread safe.
      */
-    private static BufferedImage GaussianBlur(BufferedImage img, int kernelSize) {
-        int minX = -(kernelSize / 2);
-        double[] kernel = GaussianRange(minX, minX + kernelSize - 1);
+    private final class TuneWorker extends SwingWorker<DetectionResult, StageDone> {
+        private final StageGraph graph;
+        private final DetectorParams params;
 
-        BufferedImage horizontal = OneWayConvolve(img, kernel, true);
-        return OneWayConvolve(horizontal, kernel, false);
-    }
+        TuneWorker(StageGraph graph, DetectorParams params) {
+            this.graph = graph;
+            this.params = params;
+        }
 
-    /**
-     * Sobel filters the input image
-     * @param img BufferedImage img input image, must be grayscale.
-     * @param xGradValues int[][] to be filled with the actual values of the x gradient.
-     * @param yGradValues int[][] to be filled with the actual values of the y gradient.
-     * @return BufferedImage[] array containing xGradient, yGradient and edgeGradient BufferedImages.
-     */
-    private static BufferedImage[] SobelFilter(BufferedImage img, int[][] xGradValues, int[][] yGradValues) {
-        int[][] filterX = new int[][]{{-1, 0, 1}, {-2, 0, 2}, {-1, 0, 1}};
-        int[][] filterY = new int[][]{{-1, -2, -1}, {0, 0, 0}, {1, 2, 1}};
-
-        BufferedImage xGradient = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-        BufferedImage yGradient = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-        BufferedImage edgeGradients = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-
-        for (int y = 1; y < img.getHeight() - 1; y++) {
-            for (int x = 1; x < img.getWidth() - 1; x++) {
-                int xVal = 0;
-                int yVal = 0;
-                for (int fi = 0; fi < 3; fi++) {
-                    for (int fj = 0; fj < 3; fj++) {
-                        int c = new Color(img.getRGB(x + fj - 1, y + fi - 1)).getRed();
-                        xVal += c * filterX[fi][fj];
-                        yVal += c * filterY[fi][fj];
-                    }
+        @Override
+        protected DetectionResult doInBackground() {
+            return graph.Run(params, (stage, partial) -> {
+                if (isCancelled()) {
+                    throw new CancellationException();
                 }
+                publish(new StageDone(stage, partial));
+            });
+        }
 
-                xGradValues[y][x] = xVal;
-                yGradValues[y][x] = yVal;
-
-                xVal = Math.min(255, Math.abs(xVal));
-                yVal = Math.min(255, Math.abs(yVal));
-                xGradient.setRGB(x, y, new Color(xVal, xVal, xVal).getRGB());
-                yGradient.setRGB(x, y, new Color(yVal, yVal, yVal).getRGB());
-
-                int cG = (int) Math.ceil(Math.hypot(xVal, yVal));  // sqrt(xVal^2 + yVal^2)
-                cG = Math.min(255, Math.abs(cG));
-                edgeGradients.setRGB(x, y, new Color(cG, cG, cG).getRGB());
+        @Override
+        protected void process(List<StageDone> chunks) {
+            if (this != tuner) {
+                return;
             }
+            StageDone last = chunks.get(chunks.size() - 1);
+            result = last.partial;
+            doneStage = last.stage;
+            ShowSelectedStage();
         }
 
-        return new BufferedImage[]{xGradient, yGradient, edgeGradients};
-    }
-
-    /**
-     * Edge thinning technique. Filters edge based on local maxima. Also does threshold filtering after initial
-     * operation to determine strong and weak edges.
-     * @param grad BufferedImage grad is the combination of xGrad and yGrad.
-     * @param xGrad int[][] xGrad is the edge gradient values for the x axis.
-     * @param yGrad int[][] yGrad is the edge gradient values for the y axis.
-     * @return BufferedImage[] after edge thinning and determining strong and weak edges (Strong = White, Weak = Red).
-     */
-    private static BufferedImage[] NonMaximalFilter(BufferedImage grad, int[][] xGrad, int[][] yGrad) {
-        BufferedImage nonMax = new BufferedImage(grad.getWidth(), grad.getHeight(), grad.getType());
-        BufferedImage filtered = new BufferedImage(grad.getWidth(), grad.getHeight(), grad.getType());
-        int RGB_WHITE = Color.WHITE.getRGB();
-
-        for (int y = 0; y < grad.getHeight(); y++) {
-            for (int x = 0; x < grad.getWidth(); x++) {
-                int xLum = xGrad[y][x];
-                int yLum = yGrad[y][x];
-                double theta = Math.toDegrees(Math.atan2(yLum, xLum));
-                // Rounded to nearest 45 degrees
-                theta = (Math.round(theta / 45) * 45) % 180;
-                theta = (theta >= 0) ? theta : 180 + theta;
-
-                int lum = new Color(grad.getRGB(x, y)).getRed();
-                int aLum = 0;
-                int bLum = 0;
-                int extraLum = 0;
-
-                if (theta == 0) {
-                    if (x - 1 >= 0) {
-                        extraLum = new Color(grad.getRGB(x-1, y)).getRed(); // West
-                        aLum = new Color(nonMax.getRGB(x-1, y)).getRed(); // West
-                    }
-
-                    if (x + 1 < grad.getWidth()) {
-                        bLum = new Color(grad.getRGB(x+1, y)).getRed(); // East
-                    }
-                } else if (theta == 45) { // 45 Degrees
-                    if ((x-1 >= 0) && (y-1 >= 0)) {
-                        extraLum = new Color(grad.getRGB(x-1, y-1)).getRed(); // NW
-                        aLum = new Color(nonMax.getRGB(x-1, y-1)).getRed(); // NW
-                    }
-
-                    if ((x+1 < grad.getWidth()) && (y+1 < grad.getHeight())) {
-                        bLum = new Color(grad.getRGB(x+1, y+1)).getRed(); // SE
-                    }
-                } else if (theta == 90) { // 90 Degrees
-                    if (y - 1 >= 0) {
-                        extraLum = new Color(grad.getRGB(x, y-1)).getRed(); // N
-                        aLum = new Color(nonMax.getRGB(x, y-1)).getRed(); // N
-                    }
-
-                    if (y + 1 < grad.getHeight()) {
-                        bLum = new Color(grad.getRGB(x, y+1)).getRed(); // S
-                    }
-                } else if (theta == 135) { // 135 degrees
-                    if ((x+1 < grad.getWidth()) && (y-1 >= 0)) {
-                        extraLum = new Color(grad.getRGB(x+1, y-1)).getRed(); // NE
-                        aLum = new Color(nonMax.getRGB(x+1, y-1)).getRed(); // NE
-                    }
-
-                    if ((x-1 >= 0) && (y+1 < grad.getHeight())) {
-                        bLum = new Color(grad.getRGB(x-1, y+1)).getRed(); // SW
-                    }
-                }
-
-                int low = 20;
-                int high = 120;
-
-                if ((lum > aLum) && (lum > bLum) && (lum >= extraLum)) {
-                    nonMax.setRGB(x, y, RGB_WHITE);
-                    if (lum >= high) {
-                        filtered.setRGB(x, y, RGB_WHITE); // Strong edges
-                    } else if (lum >= low) {
-                        filtered.setRGB(x, y, new Color(120, 0, 0).getRGB()); // Weak edges
-                    }
-                }
+        @Override
+        protected void done() {
+            if (this != tuner) {
+                return;
+            }
+            tuner = null;
+            try {
+                result = get();
+                doneStage = PipelineStage.RADII;
+                ShowSelectedStage();
+                statusLabel.setText(ProfileReport.StatusLine(result.profile));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                statusLabel.setText("Failed to rerun: " + e.getCause().getMessage());
+            }
+            if (retune) {
+                retune = false;
+                Retune();
             }
         }
-
-        return new BufferedImage[]{nonMax, filtered};
     }
 
     /**
-     * Hysteresis function used to fill in line segments where weak lines are.
-     * @param nmsImg BufferedImage after initial filtering, has strong and weak lines (strong = 255, weak = 120).
-     * @return BufferedImage after performing the hysteresis step.
+     * Called when a slider moves. Images opened from now on are detected with the new parameters, and the open image
+     * reruns the stages they change.
      */
-    private static BufferedImage Hysteresis(BufferedImage nmsImg) {
-        BufferedImage hysteresisImg = new BufferedImage(nmsImg.getWidth(), nmsImg.getHeight(), nmsImg.getType());
-        boolean[][] checkedCells = new boolean[nmsImg.getHeight()][nmsImg.getWidth()];
-
-        for (int y = 0; y < nmsImg.getHeight(); y++) {
-            for (int x = 0; x < nmsImg.getWidth(); x++) {
-                int lum = new Color(nmsImg.getRGB(x, y)).getRed();
-                if (lum != 255 && !checkedCells[y][x]) {
-                    if (lum == 120) {
-                        ArrayList<int[]> edge = new ArrayList<>();
-                        FollowLine(x, y, nmsImg, edge, checkedCells);
-                        if (edge.size() > 1 && edge.get(0)[0] == -1) {
-                            for (int i = 1; i < edge.size(); i++) {
-                                int[] xy = edge.get(i);
-                                if (xy[0] != -1) {
-                                    hysteresisImg.setRGB(xy[0], xy[1], Color.WHITE.getRGB());
-                                    nmsImg.setRGB(xy[0], xy[1], Color.CYAN.getRGB());
-                                }
-                            }
-                        }
-                    }
-                } else if (lum == 255) {
-                    hysteresisImg.setRGB(x, y, Color.WHITE.getRGB());
-                    checkedCells[y][x] = true;
-                }
-            }
-        }
-
-        return hysteresisImg;
+    private void ParamsChanged() {
+        detector = new CircleDetector(pool, params.Copy(), true).WithCache(cache, true);
+        Retune();
     }
 
     /**
-     * Recursive grass-fire BLOB algorithm.
-     * @param x int of current x coordinate.
-     * @param y int of current y coordinate.
-     * @param img BufferedImage that has already been filtered to have strong and weak lines.
-     * @param edgeList ArrayList<int[]> of pixels in the extracted line. Value at index 0 determines if it should be considered.
-     * @param checked boolean[][] used to determine if a pixel has already been checked.
+     * Builds a slider per tunable parameter.
+     * @return JPanel with the labelled sliders.
      */
-    private static void FollowLine(int x, int y, BufferedImage img, ArrayList<int[]> edgeList, boolean[][] checked) {
-        int lum = new Color(img.getRGB(x, y)).getRed();
-        if (!checked[y][x]) {
-            checked[y][x] = true;
-            if (lum == 255) {
-                edgeList.add(0, new int[]{-1, 1});
-            } else if (lum == 120) {
-                edgeList.add(new int[]{x, y});
-                for (int i = -1; i <= 1; i++) {
-                    for (int j = -1; j <= 1; j++) {
-                        int xi = Math.min(img.getWidth(), Math.max(0, x+j));
-                        int yi = Math.min(img.getHeight(), Math.max(0, y+i));
-                        FollowLine(xi, yi, img, edgeList, checked);
-                    }
-                }
-            }
-        } else if (edgeList.get(0)[0] != -1 && lum == 255) {
-            edgeList.add(0, new int[]{-1, 1});
-        }
+    private JPanel TuningPanel() {
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+        panel.setBorder(BorderFactory.createTitledBorder("Parameters"));
+        AddSlider(panel, "Blur size", 0, 7, params.blurSize / 2, v -> String.valueOf(2 * v + 1),
+                v -> params.blurSize = 2 * v + 1);
+        AddSlider(panel, "Blur sigma", 1, 50, (int) Math.round(params.blurSigma * 10), v -> String.valueOf(v / 10.0),
+                v -> params.blurSigma = v / 10.0);
+        JSlider low = AddSlider(panel, "Low threshold", 0, 255, params.lowThreshold, String::valueOf,
+                v -> params.lowThreshold = v);
+        JSlider high = AddSlider(panel, "High threshold", 0, 255, params.highThreshold, String::valueOf,
+                v -> params.highThreshold = v);
+        AddSlider(panel, "Peak window", 1, 20, params.peakWindow, String::valueOf, v -> params.peakWindow = v);
+        AddSlider(panel, "Peak ratio", 0, 100, (int) Math.round(params.peakRatio * 100), v -> v + "%",
+                v -> params.peakRatio = v / 100.0);
+        JSlider minRadius = AddSlider(panel, "Min radius", 1, 400, params.minRadius, String::valueOf,
+                v -> params.minRadius = v);
+        JSlider maxRadius = AddSlider(panel, "Max radius", 1, 400, params.maxRadius, String::valueOf,
+                v -> params.maxRadius = v);
+        AddSlider(panel, "Score ratio", 0, 100, (int) Math.round(params.scoreRatio * 100), v -> v + "%",
+                v -> params.scoreRatio = v / 100.0);
+
+        // Keep each range ordered by pushing the other end along
+        low.addChangeListener(e -> high.setValue(Math.max(high.getValue(), low.getValue())));
+        high.addChangeListener(e -> low.setValue(Math.min(low.getValue(), high.getValue())));
+        minRadius.addChangeListener(e -> maxRadius.setValue(Math.max(maxRadius.getValue(), minRadius.getValue())));
+        maxRadius.addChangeListener(e -> minRadius.setValue(Math.min(minRadius.getValue(), maxRadius.getValue())));
+        return panel;
     }
 
     /**
-     * Bressenham's Circle Drawing Algorithm as defined here:
-     * http://www.gamedev.net/page/resources/_/technical/graphics-programming-and-theory/bresenhams-line-and-circle-algorithms-r767
-     * @param centerX int x pixel center of the circle.
-     * @param centerY int y pixel center of the circle.
-     * @param radius int radius of the circle.
-     * @param img BufferedImage to draw the circle to.
+     * @param panel JPanel to add the slider and its label to.
+     * @param name String name of the parameter.
+     * @param min int lowest slider value.
+     * @param max int highest slider value.
+     * @param value int starting slider value.
+     * @param format IntFunction to show a slider value as the parameter value.
+     * @param apply IntConsumer to set the parameter from a slider value.
+     * @return JSlider added.
      */
-    private static int DrawCircle(int centerX, int centerY, int radius, boolean compare, BufferedImage img) {
-        int d = 3 - (2 * radius);
-        int x = 0;
-        int y = radius;
-
-        int rgb_col = new Color(21, 160, 255).getRGB();
-        int matches = 0;
-
-        while (x <= y) {
-            if (centerX + x < img.getWidth()) {
-                if (centerY + y < img.getHeight()) {
-                    if (compare) {
-                        int currLum = new Color(img.getRGB(centerX + x, centerY + y)).getRed();
-                        if (currLum == 255) {
-                            matches++;
-                        }
-                    } else {
-                        img.setRGB(centerX + x, centerY + y, rgb_col);
-                    }
-                }
-
-                if (centerY - y >= 0) {
-                    if (compare) {
-                        int currLum = new Color(img.getRGB(centerX + x, centerY - y)).getRed();
-                        if (currLum == 255) {
-                            matches++;
-                        }
-                    } else {
-                        img.setRGB(centerX + x, centerY - y, rgb_col);
-                    }
-                }
-            }
-
-            if (centerX - x >= 0) {
-                if (centerY + y < img.getHeight()) {
-                    if (compare) {
-                        int currLum = new Color(img.getRGB(centerX - x, centerY + y)).getRed();
-                        if (currLum == 255) {
-                            matches++;
-                        }
-                    } else {
-                        img.setRGB(centerX - x, centerY + y, rgb_col);
-                    }
-                }
-
-                if (centerY - y >= 0) {
-                    if (compare) {
-                        int currLum = new Color(img.getRGB(centerX - x, centerY - y)).getRed();
-                        if (currLum == 255) {
-                            matches++;
-                        }
-                    } else {
-                        img.setRGB(centerX - x, centerY - y, rgb_col);
-                    }
-                }
-            }
-
-            if (centerX + y < img.getWidth()) {
-                if (centerY + x < img.getHeight()) {
-                    if (compare) {
-                        int currLum = new Color(img.getRGB(centerX + y, centerY + x)).getRed();
-                        if (currLum == 255) {
-                            matches++;
-                        }
-                    } else {
-                        img.setRGB(centerX + y, centerY + x, rgb_col);
-                    }
-                }
-
-                if (centerY - x >= 0) {
-                    if (compare) {
-                        int currLum = new Color(img.getRGB(centerX + y, centerY - x)).getRed();
-                        if (currLum == 255) {
-                            matches++;
-                        }
-                    } else {
-                        img.setRGB(centerX + y, centerY - x, rgb_col);
-                    }
-                }
-            }
-
-            if (centerX - y >= 0) {
-                if (centerY + x < img.getHeight()) {
-                    if (compare) {
-                        int currLum = new Color(img.getRGB(centerX - y, centerY + x)).getRed();
-                        if (currLum == 255) {
-                            matches++;
-                        }
-                    } else {
-                        img.setRGB(centerX - y, centerY + x, rgb_col);
-                    }
-                }
-
-                if (centerY - x >= 0) {
-                    if (compare) {
-                        int currLum = new Color(img.getRGB(centerX - y, centerY - x)).getRed();
-                        if (currLum == 255) {
-                            matches++;
-                        }
-                    } else {
-                        img.setRGB(centerX - y, centerY - x, rgb_col);
-                    }
-                }
-            }
-
-            if (d < 0) {
-                d += (4 * x) + 6;
-            } else {
-                d += 4 * (x - y) + 10;
-                y--;
-            }
-            x++;
-        }
-        return matches;
+    private JSlider AddSlider(JPanel panel, String name, int min, int max, int value, IntFunction<String> format,
+                              IntConsumer apply) {
+        JSlider slider = new JSlider(min, max, Math.max(min, Math.min(max, value)));
+        JLabel label = new JLabel(name + ": " + format.apply(slider.getValue()));
+        label.setAlignmentX(Component.LEFT_ALIGNMENT);
+        slider.setAlignmentX(Component.LEFT_ALIGNMENT);
+        slider.addChangeListener(e -> {
+            label.setText(name + ": " + format.apply(slider.getValue()));
+            apply.accept(slider.getValue());
+            ParamsChanged();
+        });
+        panel.add(label);
+        panel.add(slider);
+        return slider;
     }
 
     /**
-     * Generalized Bresenham's Line Drawing Algorithm from:
-     * https://www.cs.umd.edu/class/fall2003/cmsc427/bresenham.html
-     * @param x1 int start x coord.
-     * @param y1 int start y coord.
-     * @param x2 int end x coord.
-     * @param y2 int end y coord.
-     * @param accum
+     * Saves the image in the currently selected tab to the directory specified by the user.
+     * @param tab JPanel to get the image from.
      */
-    private static void DrawLine(int x1, int y1, int x2, int y2, int[][] accum) {
-        int deltaX = Math.abs(x2 - x1);
-        int deltaY = Math.abs(y2 - y1);
-
-        int s1 = ((x2 - x1) > 0) ? 1 : (deltaX > 0) ? -1 : 0;
-        int s2 = ((y2 - y1) > 0) ? 1 : (deltaY > 0) ? -1 : 0;
-
-        boolean swap = false;
-
-        if (deltaY > deltaX) {
-            deltaX = deltaY;
-            deltaY = Math.abs(x2 - x1);
-            swap = true;
-        }
-
-        int y = y1;
-        int x = x1;
-        int d = (2 * deltaY) - deltaX;
-
-        for (int i = 0; i < deltaX; i++) {
-            if ((x > 0 && x < accum[0].length) && (y > 0 && y < accum.length)) {
-                accum[y][x] += 1;
-            }
-
-            while (d >= 0) {
-                d -= 2 * deltaX;
-                if (swap) {
-                    x += s1;
-                } else {
-                    y += s2;
-                }
-            }
-            d += 2 * deltaY;
-            if (swap) {
-                y += s2;
-            } else {
-                x += s1;
+    private void SaveTabImage(JPanel tab) {
+        JFileChooser chooser = new JFileChooser(System.getProperty("user.dir"));
+        FileNameExtensionFilter filter = new FileNameExtensionFilter("JPG, PNG, BMP & GIF Images",
+                "jpg", "png", "bmp", "gif");
+        chooser.setFileFilter(filter);
+        int returnVal = chooser.showSaveDialog(mainPanel);
+        if(returnVal == JFileChooser.APPROVE_OPTION) {
+            try {
+                BufferedImage img = (BufferedImage) ((ImageIcon)((JLabel)tab.getComponent(0)).getIcon()).getImage();
+                SaveImage(img, chooser.getSelectedFile().getName());
+            } catch (IOException ioe) {
+                String msg = "Failed to openMenuItem imageLabel: " + chooser.getSelectedFile().getName() + "\n";
+                msg += "Error: " + ioe.getMessage();
+                JOptionPane.showMessageDialog(mainPanel, msg, "Image IO Error", JOptionPane.ERROR_MESSAGE);
             }
         }
     }
 
-    private static BufferedImage[] HoughCircleDetection(BufferedImage img, int[][] xGrad, int[][] yGrad) {
-        int[][] accum = new int[img.getHeight()][img.getWidth()];
-        ArrayList<int[]> centers = new ArrayList<>();
-        BufferedImage lines = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-        BufferedImage foundCircles = new BufferedImage(img.getWidth(), img.getHeight(), img.getType());
-
-        int length = (int) Math.round(Math.hypot(img.getWidth(), img.getHeight()));
-
-        for (int y = 0; y < img.getHeight(); y++) {
-            for (int x = 0; x < img.getWidth(); x++) {
-                foundCircles.setRGB(x, y, img.getRGB(x, y));
-
-                int lum = new Color(img.getRGB(x, y)).getRed();
-                if (lum == 255) {
-                    int xLum = xGrad[y][x];
-                    int yLum = yGrad[y][x];
-                    double theta = Math.atan2(yLum, xLum);
-
-                    int x1 = (int) Math.round(x + length * Math.cos(theta));
-                    int y1 = (int) Math.round(y + length * Math.sin(theta));
-
-                    int x2 = (int) Math.round(x + (-length * Math.cos(theta)));
-                    int y2 = (int) Math.round(y + (-length * Math.sin(theta)));
-
-                    DrawLine(x1, y1, x2, y2, accum);
-                }
-            }
-        }
-
-        int minVal = Integer.MAX_VALUE;
-        int maxVal = Integer.MIN_VALUE;
-        for (int y = 0; y < img.getHeight(); y++) {
-            for (int x = 0; x < img.getWidth(); x++) {
-                if (minVal > accum[y][x]) {
-                    minVal = accum[y][x];
-                }
-                if (maxVal < accum[y][x]) {
-                    maxVal = accum[y][x];
-                }
-            }
-        }
-
-        for (int y = 0; y < img.getHeight(); y++) {
-            for (int x = 0; x < img.getWidth(); x++) {
-                int lum = Math.round((255 * (accum[y][x] - minVal)) / ((float) (maxVal - minVal)));
-                lines.setRGB(x, y, new Color(lum, lum, lum).getRGB());
-
-                boolean bigger = true;
-                for (int i = -5; i <= 5; i++) {
-                    for (int j = -5; j <= 5; j++) {
-                        int xVal = x + j;
-                        int yVal = y + i;
-
-                        if ((xVal >= 0 && xVal < img.getWidth()) && (yVal >= 0 && yVal < img.getHeight())) {
-                            if (accum[y][x] < accum[yVal][xVal]) {
-                                bigger = false;
-                            }
-                        }
-                    }
-                }
+    private void SaveImage(BufferedImage img, String outName) throws IOException {
+        ImagePlanes.SaveImage(img, new File(outName));
+    }
 
-                if (bigger && (accum[y][x] > (maxVal * 0.2))) {
-                    centers.add(new int[]{x, y});
-                    lines.setRGB(x, y, Color.CYAN.getRGB());
-                }
-            }
-        }
+    /**
+     * Connects each stage to the label of its tab and renders a stage the first time its tab is opened.
+     */
+    private void BindStageTabs() {
+        stageLabels.put(StageImage.GRAYSCALE, grayscaleImageLabel);
+        stageLabels.put(StageImage.BLURRED, blurredImageLabel);
+        stageLabels.put(StageImage.X_GRADIENT, xGradientImageLabel);
+        stageLabels.put(StageImage.Y_GRADIENT, yGradientImageLabel);
+        stageLabels.put(StageImage.SOBEL_EDGES, edgeImageLabel);
+        stageLabels.put(StageImage.NON_MAX, nonMaxImageLabel);
+        stageLabels.put(StageImage.FILTERED_NMS, filteredNMSImageLabel);
+        stageLabels.put(StageImage.HYSTERESIS, hysteresisImageLabel);
+        stageLabels.put(StageImage.HOUGH_LINES, houghImageLabel);
+        stageLabels.put(StageImage.FOUND_CIRCLES, circleImageLabel);
+
+        imageTabs.addChangeListener(e -> ShowSelectedStage());
+    }
 
-        int biggestRadius = Math.min(200, length / 2);
-        int[] bestRadii = new int[centers.size()];
-        int[] bestRadiiScore = new int[centers.size()];
-        int maxRScore = 0;
-
-        for (int c = 0; c < centers.size(); c++) {
-            int[] center = centers.get(c);
-            for (int radius = 1; radius < biggestRadius; radius++) {
-                int matches = Math.round((2 * DrawCircle(center[0], center[1], radius, true, foundCircles)) / (float)radius);
-                if (bestRadiiScore[c] < matches) {
-                    bestRadii[c] = radius;
-                    bestRadiiScore[c] = matches;
-                }
-            }
-            if (bestRadiiScore[c] > maxRScore) {
-                maxRScore = bestRadiiScore[c];
-            }
+    /**
+     * Renders the stage in the selected tab if its planes are known and it has not been rendered yet. Only the stage
+     * in the selected tab is rendered, the others are rendered when their tab is opened.
+     */
+    private void ShowSelectedStage() {
+        if (result == null) {
+            return;
         }
-
-
-        for (int i = 0; i < bestRadii.length; i++) {
-            if (bestRadiiScore[i] > (0.2 * maxRScore)) {
-                int[] center = centers.get(i);
-                DrawCircle(center[0], center[1], bestRadii[i], false, foundCircles);
+        Component tab = imageTabs.getSelectedComponent();
+        for (Map.Entry<StageImage, JLabel> entry : stageLabels.entrySet()) {
+            if (entry.getValue().getParent() == tab && entry.getKey().stage.compareTo(doneStage) <= 0
+                    && renderedStages.add(entry.getKey())) {
+                entry.getValue().setIcon(new ImageIcon(entry.getKey().Render(result)));
             }
         }
-
-        return new BufferedImage[]{lines, foundCircles};
     }
 
     public MainWindow() {
         openMenuItem = new JMenuItem("Open");
         saveMenuItem = new JMenuItem("Save");
         // When clicked the button opens the file selector dialog and if the imageLabel is valid it sets it
-        openMenuItem.addActionListener(e -> {
-            ReadAndSetBaseImage();
-            ProcessImage(false);
-        });
+        openMenuItem.addActionListener(e -> OpenImage());
 
         // When clicked the button opens a dialog to enable saving of the currently viewed image
         saveMenuItem.addActionListener(e -> SaveTabImage((JPanel) imageTabs.getSelectedComponent()));
     }
 
-    public static void main(String[] args) {
+    /**
+     * @return true if MainWindow.form is bound into this class, which the IDE's form instrumentation does and a
+     * plain javac or Maven build does not. Without it every form field is null.
+     */
+    static boolean IsFormBound() {
+        return new MainWindow().mainPanel != null;
+    }
+
+    /**
+     * Opens the window. Every detection in the window is profiled for the status bar, it only ever detects one
+     * image at a time. Results are always cached in memory, and on disk with --cache=DIR. The sliders start from
+     * the parameters on the command line.
+     * @param cmd CommandLine with the detector settings.
+     */
+    static void Show(CommandLine cmd) {
         MainWindow mainWindow = new MainWindow();
+        mainWindow.pool = cmd.Pool();
+        // Reopening an image shows its stages straight from memory
+        mainWindow.cache = new DetectionCache(cmd.cacheMemory * (1L << 20), cmd.cacheDir);
+        mainWindow.params = cmd.params.Copy();
+        mainWindow.detector = new CircleDetector(mainWindow.pool, mainWindow.params.Copy(), true)
+                .WithCache(mainWindow.cache, true);
+        mainWindow.BindStageTabs();
+        JFrame frame = new JFrame("Hough Detector");
+
+        // Menu Bar
+        JMenuBar menuBar = new JMenuBar();
+        JMenu jMenu = new JMenu("File");
+        jMenu.add(mainWindow.openMenuItem);
+        jMenu.add(mainWindow.saveMenuItem);
+        menuBar.add(jMenu);
+
+        frame.setJMenuBar(menuBar);
+
+        // Status bar below the form with the progress of the current detection and the stage times of the last one
+        mainWindow.statusLabel = new JLabel(" ");
+        mainWindow.statusLabel.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
+        mainWindow.progressBar = new JProgressBar(0, 100);
+        mainWindow.progressBar.setVisible(false);
+        JPanel statusBar = new JPanel(new BorderLayout());
+        statusBar.add(mainWindow.statusLabel, BorderLayout.CENTER);
+        statusBar.add(mainWindow.progressBar, BorderLayout.EAST);
+        JPanel content = new JPanel(new BorderLayout());
+        content.add(mainWindow.mainPanel, BorderLayout.CENTER);
+        content.add(statusBar, BorderLayout.SOUTH);
+        content.add(mainWindow.TuningPanel(), BorderLayout.EAST);
+        frame.setContentPane(content);
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.pack();
+        frame.setMinimumSize(new Dimension(900, 600));
+        frame.setLocationRelativeTo(null); // Center the frame
+        frame.setVisible(true);
+    }
 
-        if (args.length > 0) {
-            mainWindow.GUI = false;
-            File inf = new File(args[0]);
-            try {
-                mainWindow.SetBaseImage(inf);
-            } catch (IOException e) {
-                System.out.println("Invalid file specified: " + args[0]);
-                System.exit(0);
-            }
-            mainWindow.ProcessImage(true);
-        } else {
-            JFrame frame = new JFrame("Hough Detector");
-
-            // Menu Bar
-            JMenuBar menuBar = new JMenuBar();
-            JMenu jMenu = new JMenu("File");
-            jMenu.add(mainWindow.openMenuItem);
-            jMenu.add(mainWindow.saveMenuItem);
-            menuBar.add(jMenu);
-
-            frame.setJMenuBar(menuBar);
-            frame.setContentPane(mainWindow.mainPanel);
-            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            frame.pack();
-            frame.setMinimumSize(new Dimension(900, 600));
-            frame.setLocationRelativeTo(null); // Center the frame
-            frame.setVisible(true);
-        }
+    /**
+     * Kept so the window can still be launched from the IDE, arguments are handled by Main.
+     */
+    public static void main(String[] args) {
+        Main.main(args);
     }
 }
@@ -0,0 +1,40 @@
+package com.jethro.core;
+
+import java.util.List;
+
+/**
+ * A detected circle.
+ */
+public final class Circle {
+    public final int x;
+    public final int y;
+    public final int radius;
+    public final int score;
+
+    public Circle(int x, int y, int radius, int score) {
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+        this.score = score;
+    }
+
+    /**
+     * @param circles List of Circles to describe.
+     * @return String of the circles as space separated x,y,radius,score groups.
+     */
+    public static String Join(List<Circle> circles) {
+        StringBuilder sb = new StringBuilder();
+        for (Circle circle : circles) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(circle);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return x + "," + y + "," + radius + "," + score;
+    }
+}
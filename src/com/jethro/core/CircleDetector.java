@@ -0,0 +1,2106 @@
+package com.jethro.core;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Hough circle detector working on flat, row-major primitive planes. Images are only converted to and from
+ * BufferedImage at the edges by ImagePlanes.
+ * The pixel stages (grayscale, blur, Sobel and non-maximal suppression) run in row bands on the detector's
+ * ForkJoinPool and give bit-identical results to a serial run.
+ * With pyramid levels set, a full-frame search first runs the whole chain on a downsampled copy of the frame and
+ * then only searches small windows around the circles found there at full resolution.
+ * When profiling is on each detection also measures its stages into a FrameProfile. Otherwise a profile is only
+ * made while a JFR recording has the detector events enabled, and the stages cost one null check each.
+ * A detector given a DetectionCache looks every frame up by its pixels first: a known frame with known parameters
+ * skips detection, and a known frame with other parameters skips the edge stage.
+ * A detector given a RegionOfInterest runs the chain on a crop around each part of the region instead of the frame.
+ * The grayscale, blur and Sobel loops run on VectorKernels when the JVM was started with
+ * --add-modules jdk.incubator.vector, unless -Dhough.vector=false is set, and give the same planes either way.
+ */
+public final class CircleDetector {
+    /**
+     * Fixed-point luminance weights, 0.2989, 0.5870 and 0.1140 scaled by 2^GRAY_SHIFT and rounded up. The weighted
+     * sum shifted down is the exact (2989 * r + 5870 * g + 1140 * b) / 10000 for every color.
+     */
+    static final int GRAY_RED = 1253678;
+    static final int GRAY_GREEN = 2462057;
+    static final int GRAY_BLUE = 478151;
+    static final int GRAY_SHIFT = 22;
+
+    /** Use VectorKernels for the inner loops they cover. */
+    static final boolean VECTOR = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && Boolean.parseBoolean(System.getProperty("hough.vector", "true")) && VectorKernels.Usable();
+
+    /** Sobel magnitude by sum of squares, see Magnitude. */
+    private static final byte[] MAGNITUDES = MagnitudeTable();
+
+    private final ForkJoinPool pool;
+    private final DetectorParams params;
+    private final boolean profiling;
+    private final DetectionCache cache;
+    private final boolean keepPlanes;
+    private final RegionOfInterest region;
+
+    /**
+     * Creates a detector with the default parameters that runs every stage on the calling thread.
+     */
+    public CircleDetector() {
+        this(null, new DetectorParams());
+    }
+
+    /**
+     * @param pool ForkJoinPool to run the pixel stages on, null to run them serially.
+     * @param params DetectorParams to detect with, copied so later changes do not affect this detector.
+     */
+    public CircleDetector(ForkJoinPool pool, DetectorParams params) {
+        this(pool, params, false);
+    }
+
+    /**
+     * @param pool ForkJoinPool to run the pixel stages on, null to run them serially.
+     * @param params DetectorParams to detect with, copied so later changes do not affect this detector.
+     * @param profiling boolean measure every detection, the results carry a FrameProfile.
+     */
+    public CircleDetector(ForkJoinPool pool, DetectorParams params, boolean profiling) {
+        this(pool, params, profiling, null, false, null);
+    }
+
+    private CircleDetector(ForkJoinPool pool, DetectorParams params, boolean profiling, DetectionCache cache,
+                           boolean keepPlanes, RegionOfInterest region) {
+        this.pool = pool;
+        this.params = params.Copy();
+        this.profiling = profiling;
+        this.cache = cache;
+        this.keepPlanes = keepPlanes;
+        this.region = region;
+    }
+
+    /**
+     * @param params DetectorParams for the new detector.
+     * @return CircleDetector on the same pool, cache and region as this one with other parameters, not profiling.
+     */
+    public CircleDetector WithParams(DetectorParams params) {
+        return new CircleDetector(pool, params, false, cache, keepPlanes, region);
+    }
+
+    /**
+     * @param cache DetectionCache to look frames up in and keep their results in, null to not cache.
+     * @param planes boolean results must carry every plane, for rendering stage images. When false, a frame found
+     *               in the cache only gets its grayscale plane, centers and circles, a frame whose edge stage
+     *               is cached gets no blurred, magnitude or label planes, and a frame detected in a region gets
+     *               no planes besides its grayscale plane.
+     * @return CircleDetector like this one that uses the cache.
+     */
+    public CircleDetector WithCache(DetectionCache cache, boolean planes) {
+        return new CircleDetector(pool, params, profiling, cache, planes, region);
+    }
+
+    /**
+     * Full-frame searches with a region run the chain on each of its boxes (see DetectRegion), pyramid levels are
+     * not used. Windowed searches are already local and ignore the region.
+     * @param region RegionOfInterest to detect in, null to detect in the whole frame.
+     * @return CircleDetector like this one that only detects in the region.
+     */
+    public CircleDetector WithRegion(RegionOfInterest region) {
+        return new CircleDetector(pool, params, profiling, cache, keepPlanes, region);
+    }
+
+    /**
+     * Runs the full detection chain on an image.
+     * @param img BufferedImage to detect circles in.
+     * @return DetectionResult holding every working plane and the circles found.
+     */
+    public DetectionResult Detect(BufferedImage img) {
+        return Detect(img, null, null);
+    }
+
+    /**
+     * Runs the detection chain on an image, limiting the Hough search to the given windows.
+     * @param img BufferedImage to detect circles in.
+     * @param windows List of SearchWindows to search, null to search the whole frame.
+     * @return DetectionResult holding every working plane and the circles found.
+     */
+    public DetectionResult Detect(BufferedImage img, List<SearchWindow> windows) {
+        return Detect(img, windows, null);
+    }
+
+    /**
+     * Runs the detection chain on an image using reusable working memory.
+     * @param img BufferedImage to detect circles in.
+     * @param windows List of SearchWindows to search, null to search the whole frame.
+     * @param buffers FrameBuffers to work in, null to allocate new planes. The result shares the planes of the
+     *                buffers and is only valid until they are used again.
+     * @return DetectionResult holding every working plane and the circles found.
+     */
+    public DetectionResult Detect(BufferedImage img, List<SearchWindow> windows, FrameBuffers buffers) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] rgb = (buffers == null) ? ImagePlanes.FromImage(img)
+                : ImagePlanes.FromImage(img, buffers.For(width, height).rgb);
+        return Detect(rgb, width, height, windows, buffers);
+    }
+
+    /**
+     * Runs the full detection chain on an image and reports each stage as it finishes.
+     * @param img BufferedImage to detect circles in.
+     * @param listener StageListener to report the stages to.
+     * @return DetectionResult holding every working plane and the circles found.
+     */
+    public DetectionResult Detect(BufferedImage img, StageListener listener) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        return Detect(ImagePlanes.FromImage(img), width, height, null, null, listener);
+    }
+
+    /**
+     * Runs the detection chain on a packed RGB plane.
+     * @param rgb int[] packed 0xRRGGBB pixels.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param windows List of SearchWindows to search, null to search the whole frame.
+     * @return DetectionResult holding every working plane and the circles found.
+     */
+    public DetectionResult Detect(int[] rgb, int width, int height, List<SearchWindow> windows) {
+        return Detect(rgb, width, height, windows, null);
+    }
+
+    /**
+     * Runs the detection chain on a packed RGB plane using reusable working memory.
+     * @param rgb int[] packed 0xRRGGBB pixels.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param windows List of SearchWindows to search, null to search the whole frame.
+     * @param buffers FrameBuffers to work in, null to allocate new planes.
+     * @return DetectionResult holding every working plane and the circles found.
+     */
+    public DetectionResult Detect(int[] rgb, int width, int height, List<SearchWindow> windows,
+                                  FrameBuffers buffers) {
+        return Detect(rgb, width, height, windows, buffers, null);
+    }
+
+    private DetectionResult Detect(int[] rgb, int width, int height, List<SearchWindow> windows,
+                                   FrameBuffers buffers, StageListener listener) {
+        FrameProfile profile = FrameProfile.Create(width, height, profiling);
+        FrameProfile.Begin(profile);
+        byte[] grayscale = (buffers == null) ? new byte[width * height] : buffers.For(width, height).grayscale;
+        ImageToGrayscale(pool, rgb, grayscale, width, height);
+        FrameProfile.End(profile, PipelineStage.GRAYSCALE);
+        if (listener != null) {
+            listener.StageDone(PipelineStage.GRAYSCALE, new DetectionResult(width, height, grayscale, null, null,
+                    null, null, false, null, null, null, null, null, profile));
+        }
+        return DetectGray(grayscale, width, height, windows, profile, buffers, listener);
+    }
+
+    /**
+     * Runs the detection chain on a frame of a mapped frame file. Luminance frames are copied straight into the
+     * grayscale plane and skip the grayscale conversion, no BufferedImage is made either way.
+     * @param frames RawFrames to read the frame from.
+     * @param frame int index of the frame.
+     * @param windows List of SearchWindows to search, null to search the whole frame.
+     * @param buffers FrameBuffers to work in, null to allocate new planes.
+     * @return DetectionResult holding every working plane and the circles found.
+     */
+    public DetectionResult Detect(RawFrames frames, int frame, List<SearchWindow> windows, FrameBuffers buffers)
+            throws IOException {
+        int width = frames.Width(frame);
+        int height = frames.Height(frame);
+        FrameBuffers.Planes planes = (buffers == null) ? null : buffers.For(width, height);
+        FrameProfile profile = FrameProfile.Create(width, height, profiling);
+        FrameProfile.Begin(profile);
+        byte[] grayscale = (planes == null) ? new byte[width * height] : planes.grayscale;
+        if (frames.IsGray()) {
+            frames.ReadLuminance(frame, grayscale);
+        } else {
+            int[] rgb = (planes == null) ? new int[width * height] : planes.rgb;
+            frames.ReadRgb(frame, rgb);
+            ImageToGrayscale(pool, rgb, grayscale, width, height);
+        }
+        FrameProfile.End(profile, PipelineStage.GRAYSCALE);
+        return DetectGray(grayscale, width, height, windows, profile, buffers, null);
+    }
+
+    /**
+     * Runs the detection chain on an image that is already a luminance plane.
+     * @param grayscale byte[] unsigned luminance plane.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param windows List of SearchWindows to search, null to search the whole frame.
+     * @return DetectionResult holding every working plane and the circles found.
+     */
+    public DetectionResult DetectGray(byte[] grayscale, int width, int height, List<SearchWindow> windows) {
+        return DetectGray(grayscale, width, height, windows, FrameProfile.Create(width, height, profiling), null,
+                null);
+    }
+
+    /**
+     * Runs the detection chain on a luminance plane using reusable working memory.
+     * @param grayscale byte[] unsigned luminance plane, used as the result's grayscale plane.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param windows List of SearchWindows to search, null to search the whole frame.
+     * @param buffers FrameBuffers to work in, null to allocate new planes.
+     * @return DetectionResult holding every working plane and the circles found.
+     */
+    public DetectionResult DetectGray(byte[] grayscale, int width, int height, List<SearchWindow> windows,
+                                      FrameBuffers buffers) {
+        return DetectGray(grayscale, width, height, windows, FrameProfile.Create(width, height, profiling), buffers,
+                null);
+    }
+
+    private DetectionResult DetectGray(byte[] grayscale, int width, int height, List<SearchWindow> windows,
+                                       FrameProfile profile, FrameBuffers buffers, StageListener listener) {
+        String frameKey = null;
+        DetectionResult result = null;
+        if (region != null && windows == null) {
+            result = DetectRegion(grayscale, width, height, profile, buffers);
+        } else if (cache != null) {
+            FrameProfile.Begin(profile);
+            frameKey = DetectionCache.FrameKey(grayscale, width, height, params);
+            if (windows == null) {
+                result = Cached(grayscale, width, height, frameKey, profile);
+            }
+            FrameProfile.End(profile, PipelineStage.CACHE);
+        }
+        if (result == null) {
+            if (windows == null && params.pyramidLevels > 0) {
+                result = DetectPyramid(grayscale, width, height, frameKey, profile, buffers, listener);
+            } else {
+                result = RunChain(grayscale, width, height, params, windows, frameKey, null, profile, buffers,
+                        listener);
+            }
+            if (cache != null && windows == null) {
+                FrameProfile.Begin(profile);
+                int[] accumulator = null;
+                if (keepPlanes) {
+                    accumulator = (buffers == null) ? result.accumulator : result.accumulator.clone();
+                }
+                cache.PutFound(frameKey, params, new DetectionCache.Found(accumulator, result.centers,
+                        result.circles));
+                FrameProfile.End(profile, PipelineStage.CACHE);
+            }
+        }
+        if (profile != null) {
+            profile.Finish(result.circles.size());
+        }
+        if (listener != null) {
+            listener.StageDone(PipelineStage.RADII, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return DetectionResult of a full-frame detection of the frame with these parameters, null if the cache
+     * does not have everything the result needs.
+     */
+    private DetectionResult Cached(byte[] grayscale, int width, int height, String frameKey, FrameProfile profile) {
+        DetectionCache.Found found = cache.Found(frameKey, width, height, params, keepPlanes);
+        if (found == null) {
+            return null;
+        }
+        if (!keepPlanes) {
+            return new DetectionResult(width, height, grayscale, null, null, null, null, true, null, null, null,
+                    found.centers, found.circles, profile);
+        }
+        DetectionCache.Edges edges = cache.Edges(frameKey, width, height, true);
+        if (edges == null) {
+            return null;
+        }
+        return new DetectionResult(width, height, grayscale, edges.blurred, edges.xGradient, edges.yGradient,
+                edges.magnitude, edges.sparseGradients, edges.labels, edges.edges, found.accumulator, found.centers,
+                found.circles, profile);
+    }
+
+    /**
+     * Coarse-to-fine search. The chain runs on the frame halved pyramidLevels times, and each circle found there
+     * becomes a SearchWindow for a windowed Hough search at full resolution, refineWindow pixels either side of
+     * its scaled center and radius. Each window keeps only its best circle, so a window refines one circle and
+     * does not pick up new ones. The pixel stages still run over the full frame at full resolution, which is cheap
+     * next to full-frame voting with lines the length of the image diagonal.
+     */
+    private DetectionResult DetectPyramid(byte[] grayscale, int width, int height, String frameKey,
+                                          FrameProfile profile, FrameBuffers buffers, StageListener listener) {
+        FrameProfile.Begin(profile);
+        byte[] coarse = grayscale;
+        int coarseWidth = width;
+        int coarseHeight = height;
+        int scale = 1;
+        for (int level = 0; level < params.pyramidLevels && Math.min(coarseWidth, coarseHeight) >= 32; level++) {
+            byte[] half = (buffers == null) ? new byte[(coarseWidth / 2) * (coarseHeight / 2)]
+                    : buffers.For(coarseWidth / 2, coarseHeight / 2).grayscale;
+            Downsample(pool, coarse, coarseWidth, coarseHeight, half);
+            coarse = half;
+            coarseWidth /= 2;
+            coarseHeight /= 2;
+            scale *= 2;
+        }
+        FrameProfile.End(profile, PipelineStage.DOWNSAMPLE);
+
+        DetectorParams coarseParams = params.Copy();
+        coarseParams.minRadius = Math.max(1, params.minRadius / scale);
+        coarseParams.maxRadius = Math.max(1, (params.maxRadius + scale - 1) / scale);
+        coarseParams.peakWindow = Math.max(2, params.peakWindow / scale);
+        DetectionResult coarseResult = RunChain(coarse, coarseWidth, coarseHeight, coarseParams, null, null, null,
+                profile, buffers, null);
+
+        List<SearchWindow> windows = new ArrayList<>();
+        int refine = params.refineWindow;
+        for (Circle circle : coarseResult.circles) {
+            int radius = circle.radius * scale;
+            windows.add(new SearchWindow(circle.x * scale + scale / 2, circle.y * scale + scale / 2, refine,
+                    Math.max(params.minRadius, radius - refine), Math.min(params.maxRadius, radius + refine)));
+        }
+        // The windowed Hough stage keeps each window's best circle only
+        return RunChain(grayscale, width, height, params, windows, frameKey, null, profile, buffers, listener);
+    }
+
+    /**
+     * Runs the chain on a crop around each box of the region, wide enough that the blur, Sobel and non-maximal
+     * suppression inside the box match a full-frame run. Hysteresis cannot follow a weak edge out of the crop, and
+     * only edge pixels inside the region vote. Each box keeps the circles centered inside the region and not in an
+     * earlier box, moved into frame coordinates. The working planes are the size of the crops, and the result only
+     * has full-frame planes, with the boxes pasted in and zero around them, when the detector keeps planes.
+     */
+    private DetectionResult DetectRegion(byte[] grayscale, int width, int height, FrameProfile profile,
+                                         FrameBuffers buffers) {
+        int halo = params.blurSize / 2 + 2;
+        List<int[]> boxes = region.Boxes(width, height);
+        int size = width * height;
+        byte[] blurred = keepPlanes ? new byte[size] : null;
+        int[] xGradient = keepPlanes ? new int[size] : null;
+        int[] yGradient = keepPlanes ? new int[size] : null;
+        byte[] magnitude = keepPlanes ? new byte[size] : null;
+        byte[] labels = keepPlanes ? new byte[size] : null;
+        byte[] edges = keepPlanes ? new byte[size] : null;
+        int[] accumulator = keepPlanes ? new int[size] : null;
+        boolean sparseGradients = false;
+        ArrayList<int[]> centers = new ArrayList<>();
+        ArrayList<Circle> circles = new ArrayList<>();
+
+        for (int b = 0; b < boxes.size(); b++) {
+            int[] box = boxes.get(b);
+            int cropX = Math.max(0, box[0] - halo);
+            int cropY = Math.max(0, box[1] - halo);
+            int cropWidth = Math.min(width, box[0] + box[2] + halo) - cropX;
+            int cropHeight = Math.min(height, box[1] + box[3] + halo) - cropY;
+            byte[] crop = (buffers == null) ? new byte[cropWidth * cropHeight]
+                    : buffers.For(cropWidth, cropHeight).grayscale;
+            for (int y = 0; y < cropHeight; y++) {
+                System.arraycopy(grayscale, (cropY + y) * width + cropX, crop, y * cropWidth, cropWidth);
+            }
+            byte[] voteMask = region.VoteMask(box, cropX, cropY, cropWidth, cropHeight);
+            DetectionResult part = RunChain(crop, cropWidth, cropHeight, params, null, null, voteMask, profile,
+                    buffers, null);
+
+            for (int c = 0; c < part.circles.size(); c++) {
+                Circle circle = part.circles.get(c);
+                if (voteMask[circle.y * cropWidth + circle.x] != 0
+                        && !InEarlierBox(boxes, b, circle.x + cropX, circle.y + cropY)) {
+                    circles.add(new Circle(circle.x + cropX, circle.y + cropY, circle.radius, circle.score));
+                }
+            }
+            for (int[] center : part.centers) {
+                if (voteMask[center[1] * cropWidth + center[0]] != 0
+                        && !InEarlierBox(boxes, b, center[0] + cropX, center[1] + cropY)) {
+                    centers.add(new int[]{center[0] + cropX, center[1] + cropY});
+                }
+            }
+            if (keepPlanes) {
+                for (int y = box[1]; y < box[1] + box[3]; y++) {
+                    int from = (y - cropY) * cropWidth + box[0] - cropX;
+                    int to = y * width + box[0];
+                    System.arraycopy(part.blurred, from, blurred, to, box[2]);
+                    System.arraycopy(part.xGradient, from, xGradient, to, box[2]);
+                    System.arraycopy(part.yGradient, from, yGradient, to, box[2]);
+                    System.arraycopy(part.magnitude, from, magnitude, to, box[2]);
+                    System.arraycopy(part.labels, from, labels, to, box[2]);
+                    System.arraycopy(part.edges, from, edges, to, box[2]);
+                    System.arraycopy(part.accumulator, from, accumulator, to, box[2]);
+                }
+                sparseGradients |= part.sparseGradients;
+            }
+        }
+        if (profile != null) {
+            profile.centers = centers.size();
+        }
+        return new DetectionResult(width, height, grayscale, blurred, xGradient, yGradient, magnitude,
+                sparseGradients, labels, edges, accumulator, centers, circles, profile);
+    }
+
+    private static boolean InEarlierBox(List<int[]> boxes, int b, int x, int y) {
+        for (int e = 0; e < b; e++) {
+            int[] box = boxes.get(e);
+            if (x >= box[0] && x < box[0] + box[2] && y >= box[1] && y < box[1] + box[3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Halves a luminance plane in both directions, each output pixel is the rounded mean of a 2x2 block.
+     * @param pool ForkJoinPool to run on, null to run serially.
+     * @param src byte[] unsigned luminance plane.
+     * @param width int width of src.
+     * @param height int height of src.
+     * @param dst byte[] to be filled with the plane of width / 2 by height / 2.
+     */
+    public static void Downsample(ForkJoinPool pool, byte[] src, int width, int height, byte[] dst) {
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        RowBands.ForEach(pool, halfHeight, (y0, y1) -> {
+            for (int y = y0; y < y1; y++) {
+                int top = 2 * y * width;
+                int bottom = top + width;
+                for (int x = 0; x < halfWidth; x++) {
+                    int sum = (src[top + 2 * x] & 0xFF) + (src[top + 2 * x + 1] & 0xFF)
+                            + (src[bottom + 2 * x] & 0xFF) + (src[bottom + 2 * x + 1] & 0xFF);
+                    dst[y * halfWidth + x] = (byte) ((sum + 2) >> 2);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the edge stage, or takes it from the cache, then the Hough stages.
+     * @param frameKey String cache key of the grayscale plane, null to hash it here if there is a cache.
+     * @param voteMask byte[] plane that is nonzero where edge pixels may vote, null to let every edge pixel vote.
+     * @param listener StageListener to report the edge stages to, null to not report them.
+     */
+    private DetectionResult RunChain(byte[] grayscale, int width, int height, DetectorParams params,
+                                     List<SearchWindow> windows, String frameKey, byte[] voteMask,
+                                     FrameProfile profile, FrameBuffers buffers, StageListener listener) {
+        int size = width * height;
+        FrameBuffers.Planes planes = null;
+        if (buffers != null) {
+            planes = buffers.For(width, height);
+            FrameBuffers.Clear(planes);
+        }
+
+        EdgeList edgeList = (buffers == null) ? new EdgeList() : buffers.edgeList;
+        DetectionCache.Edges edges = null;
+        if (cache != null) {
+            FrameProfile.Begin(profile);
+            if (frameKey == null) {
+                frameKey = DetectionCache.FrameKey(grayscale, width, height, params);
+            }
+            edges = cache.Edges(frameKey, width, height, keepPlanes);
+            if (edges != null && !edges.HasPlanes()) {
+                byte[] edgePlane = (planes == null) ? new byte[size] : planes.edges;
+                int[] xGradValues = (planes == null) ? new int[size] : planes.xGradient;
+                int[] yGradValues = (planes == null) ? new int[size] : planes.yGradient;
+                edges.Expand(edgePlane, xGradValues, yGradValues);
+                edges = new DetectionCache.Edges(width, height, null, xGradValues, yGradValues, null, true, null,
+                        edgePlane);
+            }
+            if (edges != null) {
+                edgeList.Collect(pool, edges.edges, edges.xGradient, edges.yGradient, width, height);
+            }
+            FrameProfile.End(profile, PipelineStage.CACHE);
+            if (edges != null && listener != null) {
+                listener.StageDone(PipelineStage.HYSTERESIS, new DetectionResult(width, height, grayscale,
+                        edges.blurred, edges.xGradient, edges.yGradient, edges.magnitude, edges.sparseGradients,
+                        edges.labels, edges.edges, null, null, null, profile));
+            }
+        }
+        if (edges == null) {
+            edges = EdgeStage(grayscale, width, height, params, planes, profile, buffers, edgeList, listener);
+            if (cache != null) {
+                FrameProfile.Begin(profile);
+                if (keepPlanes && planes != null) {
+                    cache.PutEdges(frameKey, new DetectionCache.Edges(width, height, edges.blurred.clone(),
+                            edges.xGradient.clone(), edges.yGradient.clone(), edges.magnitude.clone(),
+                            edges.sparseGradients, edges.labels.clone(), edges.edges.clone()));
+                } else {
+                    cache.PutEdges(frameKey, keepPlanes ? edges : edges.ToList());
+                }
+                FrameProfile.End(profile, PipelineStage.CACHE);
+            }
+        }
+
+        byte[] edgePlane = edges.edges;
+        if (voteMask != null) {
+            // Masked into a copy, the edge plane may belong to the cache
+            edgePlane = new byte[size];
+            for (int i = 0; i < size; i++) {
+                edgePlane[i] = (voteMask[i] != 0) ? edges.edges[i] : EdgeLabels.NONE;
+            }
+            edgeList.Keep(voteMask, width, height);
+        }
+
+        int[] accum = (planes == null) ? new int[size] : planes.accumulator;
+        ArrayList<int[]> centers = new ArrayList<>();
+        ArrayList<Circle> circles = new ArrayList<>();
+        if (windows == null) {
+            HoughCircleDetection(pool, edgeList, width, height, params, accum, centers, circles, profile, buffers);
+        } else {
+            HoughCircleDetection(edgeList, width, height, params, windows, accum, centers, circles, profile,
+                    buffers);
+        }
+
+        return new DetectionResult(width, height, grayscale, edges.blurred, edges.xGradient, edges.yGradient,
+                edges.magnitude, edges.sparseGradients, edges.labels, edgePlane, accum, centers, circles, profile);
+    }
+
+    /**
+     * Blur, Sobel, non-maximal suppression and hysteresis, the stages that only depend on the pixels. Hysteresis
+     * also fills the edge list.
+     */
+    private DetectionCache.Edges EdgeStage(byte[] grayscale, int width, int height, DetectorParams params,
+                                           FrameBuffers.Planes planes, FrameProfile profile, FrameBuffers buffers,
+                                           EdgeList edgeList, StageListener listener) {
+        int size = width * height;
+        FrameProfile.Begin(profile);
+        byte[] blurred = (planes == null) ? new byte[size] : planes.blurred;
+        GaussianBlur(pool, grayscale, (planes == null) ? new byte[size] : planes.horizontal, blurred, width, height,
+                params.blurSize, params.blurSigma);
+        FrameProfile.End(profile, PipelineStage.BLUR);
+        if (listener != null) {
+            listener.StageDone(PipelineStage.BLUR, new DetectionResult(width, height, grayscale, blurred, null, null,
+                    null, false, null, null, null, null, null, profile));
+        }
+
+        FrameProfile.Begin(profile);
+        int[] xGradValues = (planes == null) ? new int[size] : planes.xGradient;
+        int[] yGradValues = (planes == null) ? new int[size] : planes.yGradient;
+        byte[] magnitude = (planes == null) ? new byte[size] : planes.magnitude;
+        byte[] labels = (planes == null) ? new byte[size] : planes.labels;
+        if (params.fusedEdges) {
+            // The fused pass is timed as Sobel, resolving the suppression chains as non-maximal suppression
+            RowBands.ForEach(pool, height, (y0, y1) -> SobelNonMaximalRows(blurred, width, height, xGradValues,
+                    yGradValues, magnitude, labels, y0, y1));
+            FrameProfile.End(profile, PipelineStage.SOBEL);
+            if (listener != null) {
+                listener.StageDone(PipelineStage.SOBEL, new DetectionResult(width, height, grayscale, blurred,
+                        xGradValues, yGradValues, magnitude, true, null, null, null, null, null, profile));
+            }
+            FrameProfile.Begin(profile);
+            ResolveNonMaximal(magnitude, width, labels, params.lowThreshold, params.highThreshold);
+            FrameProfile.End(profile, PipelineStage.NON_MAXIMAL);
+        } else {
+            SobelFilter(pool, blurred, width, height, xGradValues, yGradValues, magnitude);
+            FrameProfile.End(profile, PipelineStage.SOBEL);
+            if (listener != null) {
+                listener.StageDone(PipelineStage.SOBEL, new DetectionResult(width, height, grayscale, blurred,
+                        xGradValues, yGradValues, magnitude, false, null, null, null, null, null, profile));
+            }
+            FrameProfile.Begin(profile);
+            NonMaximalFilter(pool, magnitude, xGradValues, yGradValues, width, height, labels, params.lowThreshold,
+                    params.highThreshold);
+            FrameProfile.End(profile, PipelineStage.NON_MAXIMAL);
+        }
+
+        if (listener != null) {
+            listener.StageDone(PipelineStage.NON_MAXIMAL, new DetectionResult(width, height, grayscale, blurred,
+                    xGradValues, yGradValues, magnitude, params.fusedEdges, labels, null, null, null, null, profile));
+        }
+
+        FrameProfile.Begin(profile);
+        byte[] edges = (planes == null) ? new byte[size] : planes.edges;
+        Hysteresis(pool, labels, width, height, edges, buffers);
+        edgeList.Collect(pool, edges, xGradValues, yGradValues, width, height);
+        FrameProfile.End(profile, PipelineStage.HYSTERESIS);
+        if (listener != null) {
+            listener.StageDone(PipelineStage.HYSTERESIS, new DetectionResult(width, height, grayscale, blurred,
+                    xGradValues, yGradValues, magnitude, params.fusedEdges, labels, edges, null, null, null,
+                    profile));
+        }
+        return new DetectionCache.Edges(width, height, blurred, xGradValues, yGradValues, magnitude,
+                params.fusedEdges, labels, edges);
+    }
+
+    /**
+     * Samples the gaussian distribution at (x, 0).
+     * @param x int x coordinate to sample the gaussian at.
+     * @param sigma double standard deviation of the gaussian.
+     * @return Double of the gaussian at point (x, 0).
+     */
+    private static double Gaussian(int x, double sigma) {
+        double sigmaSq = sigma * sigma;
+        return ((1 / (2 * Math.PI * sigmaSq)) * Math.exp(-(x * x) / sigmaSq));
+    }
+
+    /**
+     * Returns a range of values from minX to maxX.
+     * @param minX int lower bound of the range.
+     * @param maxX int upper bound of the range.
+     * @param sigma double standard deviation of the gaussian.
+     * @return Double array containing normalized results.
+     */
+    static double[] GaussianRange(int minX, int maxX, double sigma) {
+        double total = 0;
+        double[] gaussRange = new double[(maxX - minX) + 1];
+
+        for (int i = minX; i < maxX + 1; i++) {
+            gaussRange[i - minX] = Gaussian(i, sigma);
+            total += gaussRange[i - minX];
+        }
+
+        for (int i = 0; i < gaussRange.length; i++) {
+            gaussRange[i] = gaussRange[i] / total;
+        }
+
+        return gaussRange;
+    }
+
+    /**
+     * Converts a packed RGB plane to a luminance plane with the fixed-point GRAY weights.
+     * @param pool ForkJoinPool to run on, null to run serially.
+     * @param rgb int[] packed 0xRRGGBB source pixels.
+     * @param gray byte[] to be filled with the luminance of each pixel.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     */
+    public static void ImageToGrayscale(ForkJoinPool pool, int[] rgb, byte[] gray, int width, int height) {
+        RowBands.ForEach(pool, height, (y0, y1) -> {
+            int start = VECTOR ? VectorKernels.Grayscale(rgb, gray, y0 * width, y1 * width) : y0 * width;
+            GrayscalePixels(rgb, gray, start, y1 * width);
+        });
+    }
+
+    /**
+     * Scalar grayscale conversion of pixels from (inclusive) to to (exclusive).
+     */
+    static void GrayscalePixels(int[] rgb, byte[] gray, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int c = rgb[i];
+            int r = (c >> 16) & 0xFF;
+            int g = (c >> 8) & 0xFF;
+            int b = c & 0xFF;
+            gray[i] = (byte) ((GRAY_RED * r + GRAY_GREEN * g + GRAY_BLUE * b) >>> GRAY_SHIFT);
+        }
+    }
+
+    /**
+     * Convolves in a single direction. Clamps samples at the edges.
+     * @param pool ForkJoinPool to run on, null to run serially.
+     * @param src byte[] luminance plane the convolution is to be run on.
+     * @param dst byte[] to be filled with the convolved plane.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param filter double[] filter to be used in convolution.
+     * @param horizontal boolean flag determining which direction to OneWayConvolve.
+     */
+    public static void OneWayConvolve(ForkJoinPool pool, byte[] src, byte[] dst, int width, int height,
+                                      double[] filter, boolean horizontal) {
+        int[] weights = VECTOR ? VectorKernels.FixedPointWeights(filter) : null;
+        RowBands.ForEach(pool, height, (y0, y1) -> OneWayConvolveRows(src, dst, width, height, filter, weights,
+                horizontal, y0, y1));
+    }
+
+    /**
+     * @param weights int[] fixed-point weights of the filter for VectorKernels, null to convolve in scalar code.
+     */
+    private static void OneWayConvolveRows(byte[] src, byte[] dst, int width, int height, double[] filter,
+                                           int[] weights, boolean horizontal, int y0, int y1) {
+        int index = -(filter.length / 2);
+        int[] tapRows = new int[filter.length];
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            if (weights == null) {
+                OneWayConvolvePixels(src, dst, width, height, filter, horizontal, y, 0, width);
+            } else if (horizontal) {
+                // The vector kernel does the middle of the row, the clamped ends are left to the scalar loop
+                int middle = Math.min(-index, width);
+                int end = VectorKernels.ConvolveRow(src, dst, row, width, weights);
+                OneWayConvolvePixels(src, dst, width, height, filter, true, y, 0, middle);
+                OneWayConvolvePixels(src, dst, width, height, filter, true, y, end, width);
+            } else {
+                for (int f = 0; f < filter.length; f++) {
+                    tapRows[f] = Math.max(0, Math.min(y + f + index, height - 1)) * width;
+                }
+                int end = VectorKernels.ConvolveColumns(src, dst, tapRows, row, width, weights);
+                OneWayConvolvePixels(src, dst, width, height, filter, false, y, end, width);
+            }
+        }
+    }
+
+    /**
+     * Convolves columns x0 (inclusive) to x1 (exclusive) of row y.
+     */
+    static void OneWayConvolvePixels(byte[] src, byte[] dst, int width, int height, double[] filter,
+                                             boolean horizontal, int y, int x0, int x1) {
+        int index = -(filter.length / 2);
+        int row = y * width;
+        for (int x = x0; x < x1; x++) {
+            int filteredC = 0;
+            for (int f = 0; f < filter.length; f++) {
+                int sample;
+                if (horizontal) {
+                    int sampleIndex = Math.max(0, Math.min(x + f + index, width - 1)); // bound the filter
+                    sample = src[row + sampleIndex] & 0xFF;
+                } else {
+                    int sampleIndex = Math.max(0, Math.min(y + f + index, height - 1)); // bound the filter
+                    sample = src[sampleIndex * width + x] & 0xFF;
+                }
+                filteredC += (int) (sample * filter[f]);
+            }
+            dst[row + x] = (byte) filteredC;
+        }
+    }
+
+    /**
+     * Use a square gaussian kernel of size kernelSize to blur the plane.
+     * @param pool ForkJoinPool to run on, null to run serially.
+     * @param src byte[] luminance plane to blur.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param kernelSize Size of the width and height of the gaussian kernel.
+     * @param sigma double standard deviation of the gaussian.
+     * @return byte[] blurred plane.
+     */
+    public static byte[] GaussianBlur(ForkJoinPool pool, byte[] src, int width, int height, int kernelSize,
+                                      double sigma) {
+        byte[] blurred = new byte[src.length];
+        GaussianBlur(pool, src, new byte[src.length], blurred, width, height, kernelSize, sigma);
+        return blurred;
+    }
+
+    /**
+     * Applies a gaussian blur into planes the caller provides.
+     * @param pool ForkJoinPool to run on, null to run serially.
+     * @param src byte[] luminance plane to blur.
+     * @param horizontal byte[] to hold the horizontally blurred plane in between the two passes.
+     * @param blurred byte[] to be filled with the blurred plane.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param kernelSize Size of the width and height of the gaussian kernel.
+     * @param sigma double standard deviation of the gaussian.
+     */
+    public static void GaussianBlur(ForkJoinPool pool, byte[] src, byte[] horizontal, byte[] blurred, int width,
+                                    int height, int kernelSize, double sigma) {
+        int minX = -(kernelSize / 2);
+        double[] kernel = GaussianRange(minX, minX + kernelSize - 1, sigma);
+
+        OneWayConvolve(pool, src, horizontal, width, height, kernel, true);
+        OneWayConvolve(pool, horizontal, blurred, width, height, kernel, false);
+    }
+
+    /**
+     * Sobel filters the input plane. The one pixel border is left at zero.
+     * @param pool ForkJoinPool to run on, null to run serially.
+     * @param src byte[] blurred luminance plane.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param xGradValues int[] to be filled with the actual values of the x gradient.
+     * @param yGradValues int[] to be filled with the actual values of the y gradient.
+     * @param magnitude byte[] to be filled with the clamped edge gradient magnitude.
+     */
+    public static void SobelFilter(ForkJoinPool pool, byte[] src, int width, int height, int[] xGradValues,
+                                   int[] yGradValues, byte[] magnitude) {
+        RowBands.ForEach(pool, height, (y0, y1) -> SobelRows(src, width, height, xGradValues, yGradValues,
+                magnitude, y0, y1));
+    }
+
+    private static void SobelRows(byte[] src, int width, int height, int[] xGradValues, int[] yGradValues,
+                                  byte[] magnitude, int y0, int y1) {
+        for (int y = Math.max(1, y0); y < Math.min(height - 1, y1); y++) {
+            SobelRow(src, width, y, xGradValues, yGradValues, magnitude, y * width);
+        }
+    }
+
+    /**
+     * Sobel filters columns 1 to width - 2 of a row that is not a border row.
+     * @param offset int index in the outputs of the row's first pixel.
+     */
+    private static void SobelRow(byte[] src, int width, int y, int[] xOut, int[] yOut, byte[] magnitudeOut,
+                                 int offset) {
+        int start = 1;
+        if (VECTOR) {
+            start = VectorKernels.SobelGradients(src, width, y, xOut, yOut, offset);
+            for (int x = 1; x < start; x++) {
+                magnitudeOut[offset + x] = (byte) Magnitude(xOut[offset + x], yOut[offset + x]);
+            }
+        }
+        SobelPixels(src, width, y, xOut, yOut, magnitudeOut, offset, start);
+    }
+
+    /**
+     * Scalar Sobel filter of columns from to width - 2 of a row that is not a border row.
+     * @param offset int index in the outputs of the row's first pixel.
+     * @param from int first column to filter, at least 1.
+     */
+    static void SobelPixels(byte[] src, int width, int y, int[] xOut, int[] yOut, byte[] magnitudeOut, int offset,
+                            int from) {
+        for (int x = from; x < width - 1; x++) {
+            int i = y * width + x;
+            int nw = src[i - width - 1] & 0xFF;
+            int n = src[i - width] & 0xFF;
+            int ne = src[i - width + 1] & 0xFF;
+            int w = src[i - 1] & 0xFF;
+            int e = src[i + 1] & 0xFF;
+            int sw = src[i + width - 1] & 0xFF;
+            int s = src[i + width] & 0xFF;
+            int se = src[i + width + 1] & 0xFF;
+
+            int xVal = (ne + 2 * e + se) - (nw + 2 * w + sw);
+            int yVal = (sw + 2 * s + se) - (nw + 2 * n + ne);
+
+            xOut[offset + x] = xVal;
+            yOut[offset + x] = yVal;
+            magnitudeOut[offset + x] = (byte) Magnitude(xVal, yVal);
+        }
+    }
+
+    /**
+     * Gradient magnitude as shown in the Sobel image: both components are clamped to 255 and the length is
+     * rounded up, then clamped to 255 again. Integer square root, equal to ceil(hypot(x, y)) for every input.
+     * @param xVal int x gradient.
+     * @param yVal int y gradient.
+     * @return int magnitude from 0 to 255.
+     */
+    private static int Magnitude(int xVal, int yVal) {
+        int x = Math.min(255, Math.abs(xVal));
+        int y = Math.min(255, Math.abs(yVal));
+        return MAGNITUDES[Math.min(255 * 255, x * x + y * y)] & 0xFF;
+    }
+
+    /**
+     * @return byte[] magnitude of every sum of squares up to 255 * 255, the square root rounded up. Any larger sum
+     * clamps to 255 anyway.
+     */
+    private static byte[] MagnitudeTable() {
+        byte[] table = new byte[255 * 255 + 1];
+        for (int sumSq = 0; sumSq < table.length; sumSq++) {
+            int root = (int) Math.sqrt(sumSq);
+            if (root * root < sumSq) {
+                root++;
+            }
+            table[sumSq] = (byte) Math.min(255, root);
+        }
+        return table;
+    }
+
+    /**
+     * Gradient direction rounded to the nearest 45 degrees, folded into 0 to 135, without trig. A direction is
+     * within 22.5 degrees of the x axis when |y| < (sqrt(2) - 1) |x|, which squares to (|x| + |y|)^2 < 2 x^2.
+     * The diagonals are told apart by the signs. Gives the same sector as rounding atan2 in degrees for every
+     * Sobel output.
+     * @param xVal int x gradient.
+     * @param yVal int y gradient.
+     * @return int 0, 45, 90 or 135.
+     */
+    private static int Sector(int xVal, int yVal) {
+        int x = Math.abs(xVal);
+        int y = Math.abs(yVal);
+        int sumSq = (x + y) * (x + y);
+        if (sumSq < 2 * x * x || sumSq == 0) {
+            return 0;
+        }
+        if (sumSq < 2 * y * y) {
+            return 90;
+        }
+        return ((xVal > 0) == (yVal > 0)) ? 45 : 135;
+    }
+
+    /** Candidate flag used while non-maximal suppression resolves, the low bits hold the back neighbour. */
+    private static final int NMS_CANDIDATE = 8;
+    private static final int BACK_NONE = 0;
+    private static final int BACK_W = 1;
+    private static final int BACK_NW = 2;
+    private static final int BACK_N = 3;
+    private static final int BACK_NE = 4;
+
+    /**
+     * Edge thinning technique. Filters edge based on local maxima. Also does threshold filtering after initial
+     * operation to determine strong and weak edges.
+     * A pixel is kept when it beats its forward neighbour along the gradient, is at least as bright as its back
+     * neighbour (W, NW, N or NE) and that back neighbour was not kept itself. The last rule chains pixels together
+     * in raster order, so the comparisons run in parallel bands and only the cheap chain resolution is serial.
+     * @param pool ForkJoinPool to run on, null to run serially.
+     * @param grad byte[] grad is the combination of xGrad and yGrad.
+     * @param xGrad int[] xGrad is the edge gradient values for the x axis.
+     * @param yGrad int[] yGrad is the edge gradient values for the y axis.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param labels byte[] to be filled with EdgeLabels values.
+     * @param low int magnitude from which a local maximum is a weak edge.
+     * @param high int magnitude from which a local maximum is a strong edge.
+     */
+    public static void NonMaximalFilter(ForkJoinPool pool, byte[] grad, int[] xGrad, int[] yGrad, int width,
+                                        int height, byte[] labels, int low, int high) {
+        NonMaximalCandidates(pool, grad, xGrad, yGrad, width, height, labels);
+        ResolveNonMaximal(grad, width, labels, low, high);
+    }
+
+    /**
+     * Sobel filter, non-maximal suppression and the double threshold in one pass over the blurred plane. Each row
+     * band keeps the last three rows of gradient in a ring, so the gradient planes are never read back. Only the
+     * edge candidates get their gradient and magnitude written out, which is all voting needs.
+     * Gives the same labels as SobelFilter followed by NonMaximalFilter.
+     * @param pool ForkJoinPool to run on, null to run serially.
+     * @param src byte[] blurred luminance plane.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param xGrad int[] to be filled with the x gradient of the edge candidates.
+     * @param yGrad int[] to be filled with the y gradient of the edge candidates.
+     * @param magnitude byte[] to be filled with the gradient magnitude of the edge candidates.
+     * @param labels byte[] to be filled with EdgeLabels values.
+     * @param low int magnitude from which a local maximum is a weak edge.
+     * @param high int magnitude from which a local maximum is a strong edge.
+     */
+    public static void SobelNonMaximal(ForkJoinPool pool, byte[] src, int width, int height, int[] xGrad,
+                                       int[] yGrad, byte[] magnitude, byte[] labels, int low, int high) {
+        RowBands.ForEach(pool, height, (y0, y1) -> SobelNonMaximalRows(src, width, height, xGrad, yGrad, magnitude,
+                labels, y0, y1));
+        ResolveNonMaximal(magnitude, width, labels, low, high);
+    }
+
+    private static void SobelNonMaximalRows(byte[] src, int width, int height, int[] xGrad, int[] yGrad,
+                                            byte[] magnitude, byte[] codes, int y0, int y1) {
+        byte[] ringMagnitude = new byte[3 * width];
+        int[] ringX = new int[3 * width];
+        int[] ringY = new int[3 * width];
+
+        int computed = y0 - 2;
+        for (int y = y0; y < y1; y++) {
+            // Sobel rows y - 1 to y + 1 have to be in the ring before row y can be suppressed
+            while (computed < Math.min(height - 1, y + 1)) {
+                computed++;
+                if (computed >= 0) {
+                    SobelRing(src, width, height, computed, ringX, ringY, ringMagnitude, (computed % 3) * width);
+                }
+            }
+
+            int above = ((y + 2) % 3) * width;
+            int row = (y % 3) * width;
+            int below = ((y + 1) % 3) * width;
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (ringMagnitude[row + x] == 0) {
+                    // Flat pixels are never candidates, and they are most of a frame
+                    codes[i] = 0;
+                    continue;
+                }
+                int gx = ringX[row + x];
+                int gy = ringY[row + x];
+                int code = CandidateCode(Sector(gx, gy), x, y, width, height, ringMagnitude, above, row, below);
+                codes[i] = (byte) code;
+                if ((code & NMS_CANDIDATE) != 0) {
+                    xGrad[i] = gx;
+                    yGrad[i] = gy;
+                    magnitude[i] = ringMagnitude[row + x];
+                }
+            }
+        }
+    }
+
+    /**
+     * Sobel filters one row into a ring slot. The border rows and columns are zero, as in SobelFilter.
+     */
+    private static void SobelRing(byte[] src, int width, int height, int y, int[] ringX, int[] ringY,
+                                  byte[] ringMagnitude, int slot) {
+        ringX[slot] = 0;
+        ringY[slot] = 0;
+        ringMagnitude[slot] = 0;
+        ringX[slot + width - 1] = 0;
+        ringY[slot + width - 1] = 0;
+        ringMagnitude[slot + width - 1] = 0;
+        if (y == 0 || y == height - 1) {
+            Arrays.fill(ringX, slot, slot + width, 0);
+            Arrays.fill(ringY, slot, slot + width, 0);
+            Arrays.fill(ringMagnitude, slot, slot + width, (byte) 0);
+            return;
+        }
+        SobelRow(src, width, y, ringX, ringY, ringMagnitude, slot);
+    }
+
+    /**
+     * Resolves the candidate codes left by the parallel pass into labels, in raster order so every back neighbour
+     * is final before it is looked at, and applies the double threshold.
+     * @param grad byte[] gradient magnitude, read at the candidates only.
+     * @param width int width of the plane.
+     * @param labels byte[] holding candidate codes, overwritten with EdgeLabels values.
+     * @param low int magnitude from which a local maximum is a weak edge.
+     * @param high int magnitude from which a local maximum is a strong edge.
+     */
+    static void ResolveNonMaximal(byte[] grad, int width, byte[] labels, int low, int high) {
+        for (int i = 0; i < labels.length; i++) {
+            int code = labels[i];
+            byte label = EdgeLabels.NONE;
+            if ((code & NMS_CANDIDATE) != 0) {
+                int back;
+                switch (code & ~NMS_CANDIDATE) {
+                    case BACK_W:
+                        back = i - 1;
+                        break;
+                    case BACK_NW:
+                        back = i - width - 1;
+                        break;
+                    case BACK_N:
+                        back = i - width;
+                        break;
+                    case BACK_NE:
+                        back = i - width + 1;
+                        break;
+                    default:
+                        back = -1;
+                        break;
+                }
+
+                // The back neighbour has already been resolved
+                if (back < 0 || labels[back] == EdgeLabels.NONE) {
+                    int lum = grad[i] & 0xFF;
+                    if (lum >= high) {
+                        label = EdgeLabels.STRONG; // Strong edges
+                    } else if (lum >= low) {
+                        label = EdgeLabels.WEAK; // Weak edges
+                    } else {
+                        label = EdgeLabels.LOCAL_MAX;
+                    }
+                }
+            }
+            labels[i] = label;
+        }
+    }
+
+    /**
+     * Does every comparison of non-maximal suppression that does not depend on other output pixels, leaving a
+     * candidate flag and the back neighbour direction in codes. The codes do not depend on the thresholds, so they
+     * can be resolved again with others.
+     * @param pool ForkJoinPool to run on, null to run serially.
+     * @param grad byte[] gradient magnitude.
+     * @param xGrad int[] x gradient values.
+     * @param yGrad int[] y gradient values.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param codes byte[] to be filled with the candidate codes ResolveNonMaximal takes.
+     */
+    static void NonMaximalCandidates(ForkJoinPool pool, byte[] grad, int[] xGrad, int[] yGrad, int width,
+                                     int height, byte[] codes) {
+        RowBands.ForEach(pool, height, (y0, y1) -> NonMaximalCandidates(grad, xGrad, yGrad, width, height, codes,
+                y0, y1));
+    }
+
+    private static void NonMaximalCandidates(byte[] grad, int[] xGrad, int[] yGrad, int width, int height,
+                                             byte[] codes, int y0, int y1) {
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                codes[i] = (byte) CandidateCode(Sector(xGrad[i], yGrad[i]), x, y, width, height, grad,
+                        i - x - width, i - x, i - x + width);
+            }
+        }
+    }
+
+    /**
+     * Compares a pixel with its neighbours along the gradient. The pixel is a candidate when it is brighter than
+     * its forward neighbour and at least as bright as its back neighbour (W, NW, N or NE).
+     * @param sector int gradient direction from Sector.
+     * @param x int x coordinate of the pixel.
+     * @param y int y coordinate of the pixel.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param grad byte[] holding the magnitude of rows y - 1, y and y + 1.
+     * @param above int index of x = 0 of row y - 1 in grad, not read on the first row.
+     * @param row int index of x = 0 of row y in grad.
+     * @param below int index of x = 0 of row y + 1 in grad, not read on the last row.
+     * @return int candidate flag and back neighbour direction.
+     */
+    private static int CandidateCode(int sector, int x, int y, int width, int height, byte[] grad, int above,
+                                     int row, int below) {
+        int lum = grad[row + x] & 0xFF;
+        int bLum = 0;
+        int extraLum = 0;
+        int back = BACK_NONE;
+
+        if (sector == 0) {
+            if (x - 1 >= 0) {
+                extraLum = grad[row + x - 1] & 0xFF; // West
+                back = BACK_W;
+            }
+            if (x + 1 < width) {
+                bLum = grad[row + x + 1] & 0xFF; // East
+            }
+        } else if (sector == 45) { // 45 Degrees
+            if ((x - 1 >= 0) && (y - 1 >= 0)) {
+                extraLum = grad[above + x - 1] & 0xFF; // NW
+                back = BACK_NW;
+            }
+            if ((x + 1 < width) && (y + 1 < height)) {
+                bLum = grad[below + x + 1] & 0xFF; // SE
+            }
+        } else if (sector == 90) { // 90 Degrees
+            if (y - 1 >= 0) {
+                extraLum = grad[above + x] & 0xFF; // N
+                back = BACK_N;
+            }
+            if (y + 1 < height) {
+                bLum = grad[below + x] & 0xFF; // S
+            }
+        } else { // 135 degrees
+            if ((x + 1 < width) && (y - 1 >= 0)) {
+                extraLum = grad[above + x + 1] & 0xFF; // NE
+                back = BACK_NE;
+            }
+            if ((x - 1 >= 0) && (y + 1 < height)) {
+                bLum = grad[below + x - 1] & 0xFF; // SW
+            }
+        }
+
+        // A kept back neighbour counts as 255, which lum can never beat
+        boolean candidate = (lum > 0) && (lum > bLum) && (lum >= extraLum);
+        return (candidate ? NMS_CANDIDATE : 0) | back;
+    }
+
+    /**
+     * Hysteresis function used to fill in line segments where weak lines are. A weak pixel becomes an edge when it
+     * is 8-connected to a strong pixel through other weak pixels. Nothing recurses and the labels are left as they
+     * are.
+     * Without a pool the weak pixels are flooded from every strong pixel with an explicit work stack. With a pool
+     * the strong and weak pixels are labelled with union-find, first inside each row band in parallel and then
+     * across the band boundaries, and a component is kept if it holds a strong pixel. Both give the same edges.
+     * @param pool ForkJoinPool to run the labelling on, null to flood serially.
+     * @param labels byte[] after initial filtering, has strong and weak lines.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param edges byte[] to be filled with the final STRONG and PROMOTED edge pixels, must start out as NONE.
+     */
+    public static void Hysteresis(ForkJoinPool pool, byte[] labels, int width, int height, byte[] edges) {
+        Hysteresis(pool, labels, width, height, edges, null);
+    }
+
+    private static void Hysteresis(ForkJoinPool pool, byte[] labels, int width, int height, byte[] edges,
+                                   FrameBuffers buffers) {
+        if (pool == null || pool.getParallelism() <= 1) {
+            FloodHysteresis(labels, width, height, edges, buffers);
+        } else {
+            UnionFindHysteresis(pool, labels, width, height, edges, buffers);
+        }
+    }
+
+    private static boolean IsCandidate(byte label) {
+        return label == EdgeLabels.STRONG || label == EdgeLabels.WEAK;
+    }
+
+    /**
+     * Grass-fire from every strong pixel into its weak neighbours using an explicit stack. The stack never holds
+     * more entries than there are weak pixels.
+     */
+    private static void FloodHysteresis(byte[] labels, int width, int height, byte[] edges, FrameBuffers buffers) {
+        int[] stack = (buffers == null) ? new int[64] : buffers.stack;
+
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] != EdgeLabels.STRONG) {
+                continue;
+            }
+            edges[i] = EdgeLabels.STRONG;
+
+            int top = 0;
+            stack[top++] = i;
+            while (top > 0) {
+                int p = stack[--top];
+                int x = p % width;
+                int y = p / width;
+                for (int yn = Math.max(0, y - 1); yn <= Math.min(height - 1, y + 1); yn++) {
+                    for (int xn = Math.max(0, x - 1); xn <= Math.min(width - 1, x + 1); xn++) {
+                        int n = yn * width + xn;
+                        if (labels[n] == EdgeLabels.WEAK && edges[n] == EdgeLabels.NONE) {
+                            edges[n] = EdgeLabels.PROMOTED;
+                            if (top == stack.length) {
+                                stack = Arrays.copyOf(stack, top * 2);
+                            }
+                            stack[top++] = n;
+                        }
+                    }
+                }
+            }
+        }
+        if (buffers != null) {
+            buffers.stack = stack;
+        }
+    }
+
+    /**
+     * Two-pass union-find labelling of the strong and weak pixels. Unions always link the larger root under the
+     * smaller one, so every parent index is at most the index of its child and a single raster-order pass
+     * flattens the forest.
+     */
+    private static void UnionFindHysteresis(ForkJoinPool pool, byte[] labels, int width, int height, byte[] edges,
+                                            FrameBuffers buffers) {
+        int[] parent = FrameBuffers.Grow((buffers == null) ? null : buffers.parent, labels.length);
+        byte[] hasStrong = FrameBuffers.Grow((buffers == null) ? null : buffers.hasStrong, labels.length);
+        if (buffers != null) {
+            buffers.parent = parent;
+            buffers.hasStrong = hasStrong;
+        }
+
+        // Pass one, each band only links pixels inside itself
+        ArrayList<Integer> bandStarts = new ArrayList<>();
+        RowBands.ForEach(pool, height, (y0, y1) -> {
+            synchronized (bandStarts) {
+                bandStarts.add(y0);
+            }
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    if (!IsCandidate(labels[i])) {
+                        continue;
+                    }
+                    parent[i] = i;
+                    hasStrong[i] = 0;
+                    if (x > 0 && IsCandidate(labels[i - 1])) {
+                        Union(parent, i, i - 1);
+                    }
+                    if (y > y0) {
+                        for (int xn = Math.max(0, x - 1); xn <= Math.min(width - 1, x + 1); xn++) {
+                            if (IsCandidate(labels[i - width - x + xn])) {
+                                Union(parent, i, i - width - x + xn);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        // Pass two, stitch each band to the one above it
+        for (int y : bandStarts) {
+            if (y == 0) {
+                continue;
+            }
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (!IsCandidate(labels[i])) {
+                    continue;
+                }
+                for (int xn = Math.max(0, x - 1); xn <= Math.min(width - 1, x + 1); xn++) {
+                    if (IsCandidate(labels[i - width - x + xn])) {
+                        Union(parent, i, i - width - x + xn);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < labels.length; i++) {
+            if (IsCandidate(labels[i])) {
+                parent[i] = parent[parent[i]];
+                if (labels[i] == EdgeLabels.STRONG) {
+                    hasStrong[parent[i]] = 1;
+                }
+            }
+        }
+
+        RowBands.ForEach(pool, height, (y0, y1) -> {
+            for (int i = y0 * width; i < y1 * width; i++) {
+                if (labels[i] == EdgeLabels.STRONG) {
+                    edges[i] = EdgeLabels.STRONG;
+                } else if (labels[i] == EdgeLabels.WEAK && hasStrong[parent[i]] != 0) {
+                    edges[i] = EdgeLabels.PROMOTED;
+                }
+            }
+        });
+    }
+
+    private static int Find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]]; // Path halving
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void Union(int[] parent, int a, int b) {
+        int rootA = Find(parent, a);
+        int rootB = Find(parent, b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+
+    /** Voters a voting task should have before splitting them across the pool pays for merging. */
+    private static final int MIN_VOTERS_PER_TASK = 4096;
+
+    /**
+     * Generalized Bresenham's Line Drawing Algorithm from:
+     * https://www.cs.umd.edu/class/fall2003/cmsc427/bresenham.html
+     * Lists the accumulator cells on the line instead of voting into them, so the same walk serves every counter
+     * type. The end point and the cells on the first row and column are left out.
+     * @param x1 int start x coord.
+     * @param y1 int start y coord.
+     * @param x2 int end x coord.
+     * @param y2 int end y coord.
+     * @param width int width of the accumulator.
+     * @param height int height of the accumulator.
+     * @param pixels int[] to be filled with the cell indices, at least as long as the line.
+     * @return int number of cells listed.
+     */
+    private static int LinePixels(int x1, int y1, int x2, int y2, int width, int height, int[] pixels) {
+        int deltaX = Math.abs(x2 - x1);
+        int deltaY = Math.abs(y2 - y1);
+
+        int s1 = ((x2 - x1) > 0) ? 1 : (deltaX > 0) ? -1 : 0;
+        int s2 = ((y2 - y1) > 0) ? 1 : (deltaY > 0) ? -1 : 0;
+
+        boolean swap = false;
+
+        if (deltaY > deltaX) {
+            deltaX = deltaY;
+            deltaY = Math.abs(x2 - x1);
+            swap = true;
+        }
+
+        int y = y1;
+        int x = x1;
+        int d = (2 * deltaY) - deltaX;
+        int count = 0;
+
+        for (int i = 0; i < deltaX; i++) {
+            if ((x > 0 && x < width) && (y > 0 && y < height)) {
+                pixels[count++] = y * width + x;
+            }
+
+            while (d >= 0) {
+                d -= 2 * deltaX;
+                if (swap) {
+                    x += s1;
+                } else {
+                    y += s2;
+                }
+            }
+            d += 2 * deltaY;
+            if (swap) {
+                y += s2;
+            } else {
+                x += s1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lines voted along by full-frame voting, as distances from the edge pixel along its gradient.
+     */
+    private static final class VoteSegments {
+        /** Distance each line starts at, negated on the far side. */
+        final int near;
+        /** Distance each line ends at, not included. */
+        final int far;
+        /** Whether a second line runs against the gradient. */
+        final boolean bothSides;
+
+        /**
+         * @param params DetectorParams radius range and voting mode.
+         * @param length int image diagonal.
+         * @param biggestRadius int largest radius searched for.
+         */
+        VoteSegments(DetectorParams params, int length, int biggestRadius) {
+            if (params.boundedVoting) {
+                this.near = Math.min(params.minRadius, biggestRadius + 1);
+                this.far = biggestRadius + 1;
+                this.bothSides = true;
+            } else {
+                // One line across the whole image, through the edge pixel
+                this.near = length;
+                this.far = -length;
+                this.bothSides = false;
+            }
+        }
+
+        /**
+         * @return int length of pixel list a line can need.
+         */
+        int MaxPixels() {
+            return Math.abs(far - near) + 2;
+        }
+    }
+
+    /**
+     * Votes for the edge list entries v0 to v1 - 1 into one of two counter planes. Every cell gets at most one vote
+     * from each edge pixel, since a line never crosses a cell twice and the two sides of a pixel never meet, so
+     * compact counters hold the votes of up to 65535 pixels.
+     * @param accum int[] counters to vote into, null to vote into compact.
+     * @param compact char[] counters to vote into when accum is null.
+     * @return long number of votes cast.
+     */
+    private static long VoteRange(EdgeList edgeList, int v0, int v1, int width, int height, VoteSegments segments,
+                                  int[] accum, char[] compact) {
+        int[] pixels = new int[segments.MaxPixels()];
+        int[] xs = edgeList.x;
+        int[] ys = edgeList.y;
+        double[] cosines = edgeList.cos;
+        double[] sines = edgeList.sin;
+        long votes = 0;
+        for (int v = v0; v < v1; v++) {
+            int x = xs[v];
+            int y = ys[v];
+            double cos = cosines[v];
+            double sin = sines[v];
+            for (int side = 1; side >= (segments.bothSides ? -1 : 1); side -= 2) {
+                int x1 = (int) Math.round(x + side * segments.near * cos);
+                int y1 = (int) Math.round(y + side * segments.near * sin);
+                int x2 = (int) Math.round(x + side * segments.far * cos);
+                int y2 = (int) Math.round(y + side * segments.far * sin);
+                int count = LinePixels(x1, y1, x2, y2, width, height, pixels);
+                if (accum != null) {
+                    for (int k = 0; k < count; k++) {
+                        accum[pixels[k]]++;
+                    }
+                } else {
+                    for (int k = 0; k < count; k++) {
+                        compact[pixels[k]]++;
+                    }
+                }
+                votes += count;
+            }
+        }
+        return votes;
+    }
+
+    /**
+     * Votes for every edge pixel. With a pool the voters are split into one contiguous run per task, the first
+     * task votes straight into accum and the others into private counter planes that are added in afterwards, so
+     * no vote needs a lock and the totals match a serial run exactly. The private planes use 16 bit counters when
+     * no task has more than 65535 voters.
+     * @return long number of votes cast.
+     */
+    private static long Vote(ForkJoinPool pool, EdgeList edgeList, int width, int height, VoteSegments segments,
+                             int[] accum, FrameBuffers buffers) {
+        int voterCount = edgeList.count;
+        int tasks = (pool == null) ? 1 : Math.min(pool.getParallelism(), voterCount / MIN_VOTERS_PER_TASK);
+        if (tasks <= 1) {
+            return VoteRange(edgeList, 0, voterCount, width, height, segments, accum, null);
+        }
+
+        int size = width * height;
+        int perTask = (voterCount + tasks - 1) / tasks;
+        boolean useCompact = perTask <= Character.MAX_VALUE;
+        char[][] compact = new char[tasks][];
+        int[][] wide = new int[tasks][];
+        for (int t = 1; t < tasks; t++) {
+            if (useCompact) {
+                compact[t] = (buffers == null) ? new char[size] : buffers.CompactVotes(t, size);
+            } else {
+                wide[t] = (buffers == null) ? new int[size] : buffers.WideVotes(t, size);
+            }
+        }
+
+        long[] votes = new long[tasks];
+        RowBands.ForEachPart(pool, tasks, t -> {
+            int v0 = t * perTask;
+            int v1 = Math.min(voterCount, v0 + perTask);
+            votes[t] = VoteRange(edgeList, v0, v1, width, height, segments, (t == 0) ? accum : wide[t],
+                    compact[t]);
+        });
+
+        // Adding a private plane in also clears it for the next frame
+        RowBands.ForEach(pool, height, (y0, y1) -> {
+            for (int t = 1; t < tasks; t++) {
+                if (useCompact) {
+                    char[] counts = compact[t];
+                    for (int i = y0 * width; i < y1 * width; i++) {
+                        accum[i] += counts[i];
+                        counts[i] = 0;
+                    }
+                } else {
+                    int[] counts = wide[t];
+                    for (int i = y0 * width; i < y1 * width; i++) {
+                        accum[i] += counts[i];
+                        counts[i] = 0;
+                    }
+                }
+            }
+        });
+
+        long total = 0;
+        for (long taskVotes : votes) {
+            total += taskVotes;
+        }
+        return total;
+    }
+
+    /**
+     * Votes for circle centers along the gradient of every edge pixel, picks the accumulator peaks and estimates
+     * the best radius for each of them. Each edge pixel votes on either side of itself between the smallest and
+     * largest radius searched for, or across the whole image when bounded voting is off.
+     * @param pool ForkJoinPool to run voting and peak finding on, null to run serially.
+     * @param edges byte[] hysteresis output.
+     * @param xGrad int[] x gradient values.
+     * @param yGrad int[] y gradient values.
+     * @param width int width of the planes.
+     * @param height int height of the planes.
+     * @param params DetectorParams radius range, voting mode and peak settings.
+     * @param accum int[] accumulator to vote into, must start out zeroed.
+     * @param centers ArrayList<int[]> to be filled with the accumulator peaks.
+     * @param circles ArrayList<Circle> to be filled with the circles found.
+     * @param profile FrameProfile to measure voting, peak finding and radius search into, null to not measure.
+     * @param buffers FrameBuffers to take scratch arrays from, null to allocate them.
+     */
+    public static void HoughCircleDetection(ForkJoinPool pool, byte[] edges, int[] xGrad, int[] yGrad, int width,
+                                            int height, DetectorParams params, int[] accum,
+                                            ArrayList<int[]> centers, ArrayList<Circle> circles,
+                                            FrameProfile profile, FrameBuffers buffers) {
+        FrameProfile.Begin(profile);
+        EdgeList edgeList = (buffers == null) ? new EdgeList() : buffers.edgeList;
+        edgeList.Collect(pool, edges, xGrad, yGrad, width, height);
+        FrameProfile.End(profile, PipelineStage.VOTING);
+        HoughCircleDetection(pool, edgeList, width, height, params, accum, centers, circles, profile, buffers);
+    }
+
+    /**
+     * Full-frame Hough stages over an edge list.
+     */
+    private static void HoughCircleDetection(ForkJoinPool pool, EdgeList edgeList, int width, int height,
+                                             DetectorParams params, int[] accum, ArrayList<int[]> centers,
+                                             ArrayList<Circle> circles, FrameProfile profile,
+                                             FrameBuffers buffers) {
+        FrameProfile.Begin(profile);
+        long votes = Vote(pool, edgeList, width, height, params, accum, buffers);
+        FrameProfile.End(profile, PipelineStage.VOTING);
+
+        FrameProfile.Begin(profile);
+        Peaks(pool, accum, width, height, params, centers, buffers);
+        FrameProfile.End(profile, PipelineStage.PEAKS);
+
+        FrameProfile.Begin(profile);
+        int[] bestRadii = new int[centers.size()];
+        int[] bestScores = new int[centers.size()];
+        EstimateRadii(edgeList, width, height, centers, params, bestRadii, bestScores, buffers);
+        KeepStrongest(centers, bestRadii, bestScores, params.scoreRatio, circles);
+        FrameProfile.End(profile, PipelineStage.RADII);
+
+        if (profile != null) {
+            profile.edgePixels += edgeList.count;
+            profile.votes += votes;
+            profile.centers += centers.size();
+        }
+    }
+
+    /**
+     * Full-frame voting along the radius range of the parameters.
+     * @return long number of votes cast.
+     */
+    static long Vote(ForkJoinPool pool, EdgeList edgeList, int width, int height, DetectorParams params,
+                     int[] accum, FrameBuffers buffers) {
+        int length = (int) Math.round(Math.hypot(width, height));
+        return Vote(pool, edgeList, width, height,
+                new VoteSegments(params, length, BiggestRadius(params, width, height)), accum, buffers);
+    }
+
+    /**
+     * @return int largest radius searched in a frame, the parameters' maximum limited to half the diagonal.
+     */
+    private static int BiggestRadius(DetectorParams params, int width, int height) {
+        int length = (int) Math.round(Math.hypot(width, height));
+        return Math.min(params.maxRadius, length / 2 - 1);
+    }
+
+    /**
+     * Finds the accumulator peaks above the parameters' fraction of the largest cell.
+     */
+    static void Peaks(ForkJoinPool pool, int[] accum, int width, int height, DetectorParams params,
+                      List<int[]> centers, FrameBuffers buffers) {
+        int maxVal = Integer.MIN_VALUE;
+        for (int cell : accum) {
+            if (maxVal < cell) {
+                maxVal = cell;
+            }
+        }
+        FindPeaks(pool, accum, width, height, params, maxVal * params.peakRatio, centers, buffers);
+    }
+
+    /**
+     * Finds the best radius of every center over the parameters' radius range.
+     */
+    static void EstimateRadii(EdgeList edgeList, int width, int height, List<int[]> centers, DetectorParams params,
+                              int[] bestRadii, int[] bestScores, FrameBuffers buffers) {
+        int[] minRadii = new int[centers.size()];
+        int[] maxRadii = new int[centers.size()];
+        Arrays.fill(minRadii, params.minRadius);
+        Arrays.fill(maxRadii, BiggestRadius(params, width, height));
+        EstimateRadii(edgeList, null, edgeList.count, width, height, centers, minRadii, maxRadii,
+                params.radiusEarlyExit, bestRadii, bestScores, buffers);
+    }
+
+    /**
+     * Hough stage limited to a set of search windows, used when the circles of the previous frame are known.
+     * Edge pixels near a window only vote along the window's radius band and only the window's center area is
+     * searched for peaks and radii. Each window keeps its best circle only, see KeepBestPerWindow.
+     * @param edges byte[] hysteresis output.
+     * @param xGrad int[] x gradient values.
+     * @param yGrad int[] y gradient values.
+     * @param width int width of the planes.
+     * @param height int height of the planes.
+     * @param params DetectorParams peak and radius estimation settings.
+     * @param windows List<SearchWindow> regions to search.
+     * @param accum int[] accumulator to vote into, must start out zeroed.
+     * @param centers ArrayList<int[]> to be filled with the accumulator peaks.
+     * @param circles ArrayList<Circle> to be filled with the circles found.
+     * @param profile FrameProfile to measure voting, peak finding and radius search into, null to not measure.
+     * @param buffers FrameBuffers to take scratch arrays from, null to allocate them.
+     */
+    public static void HoughCircleDetection(byte[] edges, int[] xGrad, int[] yGrad, int width, int height,
+                                            DetectorParams params, List<SearchWindow> windows, int[] accum,
+                                            ArrayList<int[]> centers, ArrayList<Circle> circles,
+                                            FrameProfile profile, FrameBuffers buffers) {
+        FrameProfile.Begin(profile);
+        EdgeList edgeList = (buffers == null) ? new EdgeList() : buffers.edgeList;
+        edgeList.Collect(null, edges, xGrad, yGrad, width, height);
+        FrameProfile.End(profile, PipelineStage.VOTING);
+        HoughCircleDetection(edgeList, width, height, params, windows, accum, centers, circles, profile, buffers);
+    }
+
+    /**
+     * Windowed Hough stages over an edge list. The edge pixels near a window are found through the list's row
+     * starts.
+     */
+    private static void HoughCircleDetection(EdgeList edgeList, int width, int height, DetectorParams params,
+                                             List<SearchWindow> windows, int[] accum, ArrayList<int[]> centers,
+                                             ArrayList<Circle> circles, FrameProfile profile,
+                                             FrameBuffers buffers) {
+        FrameProfile.Begin(profile);
+        int[] voters = (buffers == null) ? new int[64] : buffers.voters;
+        int voterCount = 0;
+        long votes = 0;
+
+        int longestLine = 0;
+        for (SearchWindow window : windows) {
+            longestLine = Math.max(longestLine, Math.abs(window.maxRadius + 1 - window.minRadius) + 2);
+        }
+        int[] pixels = new int[longestLine];
+
+        for (SearchWindow window : windows) {
+            int reach = window.margin + window.maxRadius;
+            int x0 = Math.max(0, window.x - reach);
+            int x1 = Math.min(width - 1, window.x + reach);
+            int y0 = Math.max(0, window.y - reach);
+            int y1 = Math.min(height - 1, window.y + reach);
+            if (y0 > y1) {
+                continue;
+            }
+            for (int e = edgeList.rowStart[y0]; e < edgeList.rowStart[y1 + 1]; e++) {
+                int x = edgeList.x[e];
+                if (x < x0 || x > x1) {
+                    continue;
+                }
+                int y = edgeList.y[e];
+                double cos = edgeList.cos[e];
+                double sin = edgeList.sin[e];
+                for (int side = -1; side <= 1; side += 2) {
+                    int lineX1 = (int) Math.round(x + side * window.minRadius * cos);
+                    int lineY1 = (int) Math.round(y + side * window.minRadius * sin);
+                    int lineX2 = (int) Math.round(x + side * (window.maxRadius + 1) * cos);
+                    int lineY2 = (int) Math.round(y + side * (window.maxRadius + 1) * sin);
+                    int count = LinePixels(lineX1, lineY1, lineX2, lineY2, width, height, pixels);
+                    for (int k = 0; k < count; k++) {
+                        accum[pixels[k]]++;
+                    }
+                    votes += count;
+                }
+
+                if (voterCount == voters.length) {
+                    voters = Arrays.copyOf(voters, voterCount * 2);
+                }
+                voters[voterCount++] = e;
+            }
+        }
+
+        // Overlapping windows see the same edge pixel more than once, it should only count once per radius. Sorted
+        // entries are in raster order, like the edge list itself
+        Arrays.sort(voters, 0, voterCount);
+        int unique = 0;
+        for (int v = 0; v < voterCount; v++) {
+            if (unique == 0 || voters[unique - 1] != voters[v]) {
+                voters[unique++] = voters[v];
+            }
+        }
+        if (buffers != null) {
+            buffers.voters = voters;
+        }
+        FrameProfile.End(profile, PipelineStage.VOTING);
+
+        FrameProfile.Begin(profile);
+        ArrayList<Integer> minRadii = new ArrayList<>();
+        ArrayList<Integer> maxRadii = new ArrayList<>();
+        // First center of each window, the window's centers run up to the next one's
+        int[] windowStart = new int[windows.size() + 1];
+        for (int w = 0; w < windows.size(); w++) {
+            SearchWindow window = windows.get(w);
+            windowStart[w] = centers.size();
+            int x0 = Math.max(0, window.x - window.margin);
+            int x1 = Math.min(width - 1, window.x + window.margin);
+            int y0 = Math.max(0, window.y - window.margin);
+            int y1 = Math.min(height - 1, window.y + window.margin);
+
+            int maxVal = 0;
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    maxVal = Math.max(maxVal, accum[y * width + x]);
+                }
+            }
+
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    if (IsPeak(accum, width, height, x, y, params.peakWindow, maxVal * params.peakRatio)) {
+                        centers.add(new int[]{x, y});
+                        minRadii.add(window.minRadius);
+                        maxRadii.add(window.maxRadius);
+                    }
+                }
+            }
+        }
+        windowStart[windows.size()] = centers.size();
+
+        FrameProfile.End(profile, PipelineStage.PEAKS);
+
+        FrameProfile.Begin(profile);
+        int[] bestRadii = new int[centers.size()];
+        int[] bestScores = new int[centers.size()];
+        EstimateRadii(edgeList, voters, unique, width, height, centers,
+                minRadii.stream().mapToInt(Integer::intValue).toArray(),
+                maxRadii.stream().mapToInt(Integer::intValue).toArray(), params.radiusEarlyExit, bestRadii,
+                bestScores, buffers);
+        KeepBestPerWindow(centers, windowStart, bestRadii, bestScores, params.scoreRatio, circles);
+        FrameProfile.End(profile, PipelineStage.RADII);
+
+        if (profile != null) {
+            profile.edgePixels += unique;
+            profile.votes += votes;
+            profile.centers += centers.size();
+        }
+    }
+
+    /**
+     * Finds the accumulator cells that are above threshold and have no cell with more votes within peakWindow
+     * cells of them, in raster order.
+     * The dense mode takes a separable running maximum over the window (van Herk/Gil-Werman, three comparisons
+     * per cell whatever the window size) and keeps the cells equal to it. The sparse mode only looks at cells above
+     * the threshold and checks their window directly, which wins when few cells get that many votes.
+     * @param pool ForkJoinPool to run the dense mode on, null to run serially.
+     * @param accum int[] accumulator.
+     * @param width int width of the accumulator.
+     * @param height int height of the accumulator.
+     * @param params DetectorParams peak window size and mode.
+     * @param threshold double votes a cell must exceed to be a peak.
+     * @param centers List<int[]> to be filled with the peaks as {x, y} pairs.
+     */
+    public static void FindPeaks(ForkJoinPool pool, int[] accum, int width, int height, DetectorParams params,
+                                 double threshold, List<int[]> centers) {
+        FindPeaks(pool, accum, width, height, params, threshold, centers, null);
+    }
+
+    private static void FindPeaks(ForkJoinPool pool, int[] accum, int width, int height, DetectorParams params,
+                                  double threshold, List<int[]> centers, FrameBuffers buffers) {
+        int half = params.peakWindow;
+        if (params.sparsePeaks) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (IsPeak(accum, width, height, x, y, half, threshold)) {
+                        centers.add(new int[]{x, y});
+                    }
+                }
+            }
+            return;
+        }
+
+        int[] rowMax = FrameBuffers.Grow((buffers == null) ? null : buffers.rowMax, accum.length);
+        int[] windowMax = FrameBuffers.Grow((buffers == null) ? null : buffers.windowMax, accum.length);
+        if (buffers != null) {
+            buffers.rowMax = rowMax;
+            buffers.windowMax = windowMax;
+        }
+        RowBands.ForEach(pool, height, (y0, y1) -> {
+            int[] prefix = new int[width + 2 * half];
+            int[] suffix = new int[width + 2 * half];
+            for (int y = y0; y < y1; y++) {
+                RunningMax(accum, y * width, 1, width, half, rowMax, prefix, suffix);
+            }
+        });
+        RowBands.ForEach(pool, width, (x0, x1) -> {
+            int[] prefix = new int[height + 2 * half];
+            int[] suffix = new int[height + 2 * half];
+            for (int x = x0; x < x1; x++) {
+                RunningMax(rowMax, x, width, height, half, windowMax, prefix, suffix);
+            }
+        });
+
+        for (int i = 0; i < accum.length; i++) {
+            if (accum[i] > threshold && accum[i] == windowMax[i]) {
+                centers.add(new int[]{i % width, i / width});
+            }
+        }
+    }
+
+    /**
+     * van Herk/Gil-Werman running maximum over one row or column. dst[k] becomes the largest of src[k - half] to
+     * src[k + half], clipped to the line. The line is padded by half on each side and cut into blocks of
+     * 2 * half + 1; every window then spans at most two blocks and is the larger of one block suffix and the next
+     * block prefix.
+     * @param src int[] plane to read.
+     * @param offset int index of the first element of the line.
+     * @param stride int distance between consecutive elements of the line.
+     * @param n int length of the line.
+     * @param half int half width of the window.
+     * @param dst int[] plane to write, using the same offset and stride.
+     * @param prefix int[] scratch of at least n + 2 * half.
+     * @param suffix int[] scratch of at least n + 2 * half.
+     */
+    private static void RunningMax(int[] src, int offset, int stride, int n, int half, int[] dst, int[] prefix,
+                                   int[] suffix) {
+        int window = 2 * half + 1;
+        int padded = n + 2 * half;
+        for (int p = 0; p < padded; p++) {
+            int v = (p < half || p >= n + half) ? Integer.MIN_VALUE : src[offset + (p - half) * stride];
+            prefix[p] = (p % window == 0) ? v : Math.max(prefix[p - 1], v);
+        }
+        for (int p = padded - 1; p >= 0; p--) {
+            int v = (p < half || p >= n + half) ? Integer.MIN_VALUE : src[offset + (p - half) * stride];
+            suffix[p] = (p % window == window - 1 || p == padded - 1) ? v : Math.max(suffix[p + 1], v);
+        }
+        for (int k = 0; k < n; k++) {
+            dst[offset + k * stride] = Math.max(suffix[k], prefix[k + 2 * half]);
+        }
+    }
+
+    /**
+     * @return true if the accumulator cell at (x, y) is above threshold and no cell within half cells of it has
+     * more votes.
+     */
+    private static boolean IsPeak(int[] accum, int width, int height, int x, int y, int half, double threshold) {
+        int votes = accum[y * width + x];
+        if (votes <= threshold) {
+            return false;
+        }
+        for (int i = -half; i <= half; i++) {
+            for (int j = -half; j <= half; j++) {
+                int xVal = x + j;
+                int yVal = y + i;
+
+                if ((xVal >= 0 && xVal < width) && (yVal >= 0 && yVal < height)) {
+                    if (votes < accum[yVal * width + xVal]) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the radius of each center from a histogram of the distances to the edge pixels that voted. A radius
+     * scores twice its edge count over the radius, the same measure the old per-radius circle scan used.
+     * Voters are bucketed into square cells first, so each center only visits the voters that can lie within its
+     * largest radius.
+     * @param edgeList EdgeList of the frame.
+     * @param voters int[] entries of the edge list that voted, null if they all did.
+     * @param voterCount int number of voters in use.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param centers List<int[]> candidate centers.
+     * @param minRadii int[] smallest radius to accept for each center.
+     * @param maxRadii int[] largest radius to accept for each center.
+     * @param earlyExit boolean stop a center's histogram once its best radius can no longer be overtaken, and only
+     * finish the count of that radius. The radii and scores are the same either way.
+     * @param bestRadii int[] to be filled with the best radius of each center.
+     * @param bestRadiiScore int[] to be filled with the score of that radius, 0 if the center has no radius.
+     * @param buffers FrameBuffers to take scratch arrays from, null to allocate them.
+     */
+    private static void EstimateRadii(EdgeList edgeList, int[] voters, int voterCount, int width, int height,
+                                      List<int[]> centers, int[] minRadii, int[] maxRadii, boolean earlyExit,
+                                      int[] bestRadii, int[] bestRadiiScore, FrameBuffers buffers) {
+        int largestRadius = 0;
+        for (int c = 0; c < centers.size(); c++) {
+            largestRadius = Math.max(largestRadius, maxRadii[c]);
+        }
+        if (largestRadius < 1) {
+            return;
+        }
+
+        // Counting sort of the voters by cell
+        int cell = Math.max(8, largestRadius / 2);
+        int cols = (width + cell - 1) / cell;
+        int rows = (height + cell - 1) / cell;
+        int[] cellStart = new int[cols * rows + 1];
+        int[] xs = edgeList.x;
+        int[] ys = edgeList.y;
+        for (int v = 0; v < voterCount; v++) {
+            int e = (voters == null) ? v : voters[v];
+            cellStart[(ys[e] / cell) * cols + xs[e] / cell + 1]++;
+        }
+        for (int k = 0; k < cols * rows; k++) {
+            cellStart[k + 1] += cellStart[k];
+        }
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        int[] sorted = FrameBuffers.Grow((buffers == null) ? null : buffers.sorted, voterCount);
+        if (buffers != null) {
+            buffers.sorted = sorted;
+        }
+        for (int v = 0; v < voterCount; v++) {
+            int e = (voters == null) ? v : voters[v];
+            sorted[fill[(ys[e] / cell) * cols + xs[e] / cell]++] = e;
+        }
+
+        int[] hist = new int[largestRadius + 1];
+
+        for (int c = 0; c < centers.size(); c++) {
+            int[] center = centers.get(c);
+            int minR = Math.max(1, minRadii[c]);
+            int maxR = maxRadii[c];
+            if (maxR < minR) {
+                continue;
+            }
+            Arrays.fill(hist, 0);
+            double lowSq = (minR - 0.5) * (minR - 0.5);
+            double highSq = (maxR + 0.5) * (maxR + 0.5);
+
+            int col0 = Math.max(0, (center[0] - maxR - 1) / cell);
+            int col1 = Math.min(cols - 1, (center[0] + maxR + 1) / cell);
+            int row0 = Math.max(0, (center[1] - maxR - 1) / cell);
+            int row1 = Math.min(rows - 1, (center[1] + maxR + 1) / cell);
+
+            int remaining = 0;
+            for (int row = row0; row <= row1; row++) {
+                remaining += cellStart[row * cols + col1 + 1] - cellStart[row * cols + col0];
+            }
+
+            int visited = 0;
+            int exitRow = -1;
+            int exitVoter = 0;
+            scan:
+            for (int row = row0; row <= row1; row++) {
+                for (int k = cellStart[row * cols + col0]; k < cellStart[row * cols + col1 + 1]; k++) {
+                    int e = sorted[k];
+                    int dx = xs[e] - center[0];
+                    int dy = ys[e] - center[1];
+                    int distSq = dx * dx + dy * dy;
+                    if (distSq >= lowSq && distSq < highSq) {
+                        int radius = (int) Math.round(Math.sqrt(distSq));
+                        if (radius >= minR && radius <= maxR) {
+                            hist[radius]++;
+                        }
+                    }
+                    remaining--;
+                    if (earlyExit && (++visited & 63) == 0 && IsDominant(hist, minR, maxR, remaining)) {
+                        exitRow = row;
+                        exitVoter = k + 1;
+                        break scan;
+                    }
+                }
+            }
+
+            for (int radius = minR; radius <= maxR; radius++) {
+                int score = Math.round((2 * hist[radius]) / (float) radius);
+                if (bestRadiiScore[c] < score) {
+                    bestRadii[c] = radius;
+                    bestRadiiScore[c] = score;
+                }
+            }
+
+            if (exitRow >= 0) {
+                // The best radius is settled but its count is not, finish it over the voters the exit skipped so
+                // the score is the one a full histogram gives. The band holds exactly the distances that round to it
+                int radius = bestRadii[c];
+                double nearSq = (radius - 0.5) * (radius - 0.5);
+                double farSq = (radius + 0.5) * (radius + 0.5);
+                for (int row = exitRow; row <= row1; row++) {
+                    int from = (row == exitRow) ? exitVoter : cellStart[row * cols + col0];
+                    for (int k = from; k < cellStart[row * cols + col1 + 1]; k++) {
+                        int e = sorted[k];
+                        int dx = xs[e] - center[0];
+                        int dy = ys[e] - center[1];
+                        int distSq = dx * dx + dy * dy;
+                        if (distSq >= nearSq && distSq < farSq) {
+                            hist[radius]++;
+                        }
+                    }
+                }
+                bestRadiiScore[c] = Math.round((2 * hist[radius]) / (float) radius);
+            }
+        }
+    }
+
+    /**
+     * Keeps the circles that score more than a fraction of the best one.
+     * @param centers List<int[]> circle centers as {x, y} pairs.
+     * @param bestRadii int[] radius of each center.
+     * @param bestScores int[] score of each center.
+     * @param scoreRatio double fraction of the best score a circle must exceed.
+     * @param circles List<Circle> to be filled with the circles kept.
+     */
+    static void KeepStrongest(List<int[]> centers, int[] bestRadii, int[] bestScores, double scoreRatio,
+                              List<Circle> circles) {
+        int maxRScore = 0;
+        for (int score : bestScores) {
+            maxRScore = Math.max(maxRScore, score);
+        }
+        for (int c = 0; c < bestRadii.length; c++) {
+            if (bestScores[c] > (scoreRatio * maxRScore)) {
+                int[] center = centers.get(c);
+                circles.add(new Circle(center[0], center[1], bestRadii[c], bestScores[c]));
+            }
+        }
+    }
+
+    /**
+     * Keeps the best scoring center of each search window, as KeepStrongest does for a whole frame. A window is
+     * searched for one predicted circle, so its weaker peaks are noise, and a window that misses its circle would
+     * otherwise fill up with them. A window whose best center was already kept for an earlier, overlapping window
+     * found the same circle and keeps nothing.
+     * @param centers List<int[]> accumulator peaks, grouped by window.
+     * @param windowStart int[] first center of each window, with the number of centers as its last entry.
+     * @param bestRadii int[] radius found for each center.
+     * @param bestScores int[] score of each radius.
+     * @param scoreRatio double fraction of the best kept score the others must exceed.
+     * @param circles List<Circle> to be filled with the circles kept, in window order.
+     */
+    static void KeepBestPerWindow(List<int[]> centers, int[] windowStart, int[] bestRadii, int[] bestScores,
+                                  double scoreRatio, List<Circle> circles) {
+        ArrayList<int[]> kept = new ArrayList<>();
+        int[] keptRadii = new int[windowStart.length - 1];
+        int[] keptScores = new int[windowStart.length - 1];
+        for (int w = 0; w + 1 < windowStart.length; w++) {
+            int best = -1;
+            for (int c = windowStart[w]; c < windowStart[w + 1]; c++) {
+                if (best < 0 || bestScores[c] > bestScores[best]) {
+                    best = c;
+                }
+            }
+            if (best >= 0 && !Contains(kept, centers.get(best))) {
+                keptRadii[kept.size()] = bestRadii[best];
+                keptScores[kept.size()] = bestScores[best];
+                kept.add(centers.get(best));
+            }
+        }
+        KeepStrongest(kept, Arrays.copyOf(keptRadii, kept.size()), Arrays.copyOf(keptScores, kept.size()),
+                scoreRatio, circles);
+    }
+
+    private static boolean Contains(List<int[]> centers, int[] center) {
+        for (int[] other : centers) {
+            if (other[0] == center[0] && other[1] == center[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if no other radius could beat the current best score even if every remaining voter fell on it.
+     */
+    private static boolean IsDominant(int[] hist, int minR, int maxR, int remaining) {
+        int bestRadius = 0;
+        int bestScore = 0;
+        for (int radius = minR; radius <= maxR; radius++) {
+            int score = Math.round((2 * hist[radius]) / (float) radius);
+            if (bestScore < score) {
+                bestRadius = radius;
+                bestScore = score;
+            }
+        }
+        if (bestScore == 0) {
+            return false;
+        }
+        for (int radius = minR; radius <= maxR; radius++) {
+            if (radius != bestRadius && Math.round((2 * (hist[radius] + remaining)) / (float) radius) >= bestScore) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
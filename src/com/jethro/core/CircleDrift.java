@@ -0,0 +1,71 @@
+package com.jethro.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How far one set of circles drifts from a reference set, such as pyramid results from full-resolution results.
+ * Circles are paired greedily, closest centers first, and a pair only counts if the centers are within half the
+ * reference radius of each other. Comparisons can be added up over many frames.
+ */
+public final class CircleDrift {
+    private int frames;
+    private int matched;
+    private int missed;
+    private int extra;
+    private double centerSum;
+    private double centerMax;
+    private long radiusSum;
+    private int radiusMax;
+
+    /**
+     * @param reference List of Circles taken as correct.
+     * @param found List of Circles to compare against them.
+     */
+    public synchronized void Add(List<Circle> reference, List<Circle> found) {
+        List<double[]> pairs = new ArrayList<>();
+        for (int r = 0; r < reference.size(); r++) {
+            Circle ref = reference.get(r);
+            double limit = Math.max(2.0, ref.radius / 2.0);
+            for (int f = 0; f < found.size(); f++) {
+                double distance = Math.hypot(found.get(f).x - ref.x, found.get(f).y - ref.y);
+                if (distance <= limit) {
+                    pairs.add(new double[]{distance, r, f});
+                }
+            }
+        }
+        pairs.sort((a, b) -> Double.compare(a[0], b[0]));
+
+        boolean[] refUsed = new boolean[reference.size()];
+        boolean[] foundUsed = new boolean[found.size()];
+        int frameMatched = 0;
+        for (double[] pair : pairs) {
+            int r = (int) pair[1];
+            int f = (int) pair[2];
+            if (refUsed[r] || foundUsed[f]) {
+                continue;
+            }
+            refUsed[r] = true;
+            foundUsed[f] = true;
+            frameMatched++;
+            int radiusDiff = Math.abs(found.get(f).radius - reference.get(r).radius);
+            centerSum += pair[0];
+            centerMax = Math.max(centerMax, pair[0]);
+            radiusSum += radiusDiff;
+            radiusMax = Math.max(radiusMax, radiusDiff);
+        }
+
+        frames++;
+        matched += frameMatched;
+        missed += reference.size() - frameMatched;
+        extra += found.size() - frameMatched;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("drift over %d frames: %d of %d matched, %d missed, %d extra, center mean %.2f max "
+                        + "%.2f px, radius mean %.2f max %d px", frames, matched, matched + missed, missed, extra,
+                (matched > 0) ? centerSum / matched : 0.0, centerMax,
+                (matched > 0) ? radiusSum / (double) matched : 0.0, radiusMax);
+    }
+}
@@ -0,0 +1,142 @@
+package com.jethro.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries the circles found in one frame of a sequence forward to the next. While every tracked circle keeps being
+ * found the detector only searches small windows around the predicted positions; a full-frame detection is run
+ * periodically, and on the same frame again when a circle is lost or its score falls well below the score it was
+ * first found with.
+ */
+public final class CircleTracker {
+    /** A track whose score falls below this fraction of its initial score triggers a full-frame detection. */
+    private static final double MIN_SCORE_RATIO = 0.5;
+
+    private static final class Track {
+        double x;
+        double y;
+        double radius;
+        double vx;
+        double vy;
+        int initialScore;
+    }
+
+    private final int redetectInterval;
+    private final int margin;
+    private final int radiusBand;
+
+    private final List<Track> tracks = new ArrayList<>();
+    private int framesSinceFull = 0;
+    private boolean lostTrack = true;
+
+    /**
+     * @param redetectInterval int frames between forced full-frame detections.
+     * @param margin int pixels around a predicted center to search.
+     * @param radiusBand int pixels either side of a predicted radius to search.
+     */
+    public CircleTracker(int redetectInterval, int margin, int radiusBand) {
+        this.redetectInterval = redetectInterval;
+        this.margin = margin;
+        this.radiusBand = radiusBand;
+    }
+
+    /**
+     * @return List of SearchWindows around the predicted circles for the next frame, or null if the next frame needs
+     * a full-frame detection.
+     */
+    public List<SearchWindow> Predict() {
+        if (lostTrack || tracks.isEmpty() || framesSinceFull >= redetectInterval) {
+            return null;
+        }
+        List<SearchWindow> windows = new ArrayList<>();
+        for (Track track : tracks) {
+            int speed = (int) Math.ceil(Math.hypot(track.vx, track.vy));
+            windows.add(new SearchWindow((int) Math.round(track.x + track.vx), (int) Math.round(track.y + track.vy),
+                    margin + speed, Math.max(1, (int) Math.round(track.radius) - radiusBand),
+                    (int) Math.round(track.radius) + radiusBand));
+        }
+        return windows;
+    }
+
+    /**
+     * Matches the circles found in a frame to the tracks and updates their positions and velocities. Circles found
+     * through Predict's windows are only taken if they still hold every track; if one is lost or its score falls
+     * below MIN_SCORE_RATIO of its initial score the tracks are left as they were, and the frame should be searched
+     * in full and passed in again before its circles are used.
+     * @param circles List of Circles found in the frame.
+     * @param fullFrame boolean true if the frame was searched in full rather than through Predict's windows.
+     * @return boolean true if the tracks were updated, false if the windowed circles lost a track.
+     */
+    public boolean Update(List<Circle> circles, boolean fullFrame) {
+        int[] matches = new int[tracks.size()];
+        boolean[] used = new boolean[circles.size()];
+
+        for (int t = 0; t < tracks.size(); t++) {
+            Track track = tracks.get(t);
+            double px = track.x + track.vx;
+            double py = track.y + track.vy;
+            double gate = margin + Math.hypot(track.vx, track.vy) + radiusBand;
+
+            int best = -1;
+            double bestDistance = Double.MAX_VALUE;
+            for (int c = 0; c < circles.size(); c++) {
+                Circle circle = circles.get(c);
+                double distance = Math.hypot(circle.x - px, circle.y - py);
+                if (!used[c] && distance <= gate && Math.abs(circle.radius - track.radius) <= radiusBand
+                        && distance < bestDistance) {
+                    best = c;
+                    bestDistance = distance;
+                }
+            }
+
+            if (!fullFrame && (best < 0 || circles.get(best).score < track.initialScore * MIN_SCORE_RATIO)) {
+                lostTrack = true;
+                return false;
+            }
+            matches[t] = best;
+            if (best >= 0) {
+                used[best] = true;
+            }
+        }
+        lostTrack = false;
+
+        List<Track> updated = new ArrayList<>();
+        for (int t = 0; t < tracks.size(); t++) {
+            if (matches[t] < 0) {
+                continue;
+            }
+            Track track = tracks.get(t);
+            Circle circle = circles.get(matches[t]);
+            track.vx = circle.x - track.x;
+            track.vy = circle.y - track.y;
+            track.x = circle.x;
+            track.y = circle.y;
+            track.radius = circle.radius;
+            if (fullFrame) {
+                track.initialScore = circle.score;
+            }
+            updated.add(track);
+        }
+
+        if (fullFrame) {
+            for (int c = 0; c < circles.size(); c++) {
+                if (!used[c]) {
+                    Circle circle = circles.get(c);
+                    Track track = new Track();
+                    track.x = circle.x;
+                    track.y = circle.y;
+                    track.radius = circle.radius;
+                    track.initialScore = circle.score;
+                    updated.add(track);
+                }
+            }
+            framesSinceFull = 0;
+        }
+        framesSinceFull++;
+
+        tracks.clear();
+        tracks.addAll(updated);
+        return true;
+    }
+}
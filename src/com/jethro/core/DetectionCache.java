@@ -0,0 +1,461 @@
+package com.jethro.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of detections. A frame is known by a hash of its luminance plane and the edge stage
+ * parameters, so the same pixels hit the cache whatever file, format or path they came from. Two things are kept per
+ * frame: the edge stage (blur, Sobel, non-maximal suppression and hysteresis), and the Hough results, which also
+ * depend on the DetectorParams of the Hough stages. A change to those parameters still reuses the edge stage.
+ * The memory tier drops the least recently used entries once it is over its byte budget. The optional disk tier
+ * keeps the circles and the hysteresis map, as a list of edge pixels with their gradients, in small binary files
+ * named after their keys, so they survive the process. Disk errors are treated as misses. Thread safe.
+ */
+public final class DetectionCache {
+    private static final int EDGES_MAGIC = 0x4A454447;
+    private static final int FOUND_MAGIC = 0x4A464E44;
+    /** Bytes of a map entry and its key, charged on top of the arrays an entry holds. */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * Output of the edge stage of one frame. Either holds every plane, or only the edge list, which is all the Hough
+     * stages need.
+     */
+    static final class Edges {
+        final int width;
+        final int height;
+        /** Edge stage planes, all null when only the edge list is kept. */
+        final byte[] blurred;
+        final int[] xGradient;
+        final int[] yGradient;
+        final byte[] magnitude;
+        final boolean sparseGradients;
+        final byte[] labels;
+        final byte[] edges;
+        /** Edge pixels of the hysteresis map in ascending order, with their label and gradients. */
+        private int[] index;
+        private byte[] label;
+        private short[] xEdge;
+        private short[] yEdge;
+
+        Edges(int width, int height, byte[] blurred, int[] xGradient, int[] yGradient, byte[] magnitude,
+              boolean sparseGradients, byte[] labels, byte[] edges) {
+            this.width = width;
+            this.height = height;
+            this.blurred = blurred;
+            this.xGradient = xGradient;
+            this.yGradient = yGradient;
+            this.magnitude = magnitude;
+            this.sparseGradients = sparseGradients;
+            this.labels = labels;
+            this.edges = edges;
+        }
+
+        private Edges(int width, int height, int[] index, byte[] label, short[] xEdge, short[] yEdge) {
+            this(width, height, null, null, null, null, true, null, null);
+            this.index = index;
+            this.label = label;
+            this.xEdge = xEdge;
+            this.yEdge = yEdge;
+        }
+
+        /**
+         * @return true if the edge and gradient planes are set, the other planes are too unless these Edges were
+         * expanded from an edge list.
+         */
+        boolean HasPlanes() {
+            return edges != null;
+        }
+
+        /**
+         * Writes the edge list into planes. Gradients are only written at the edge pixels.
+         * @param edges byte[] zeroed hysteresis plane to fill.
+         * @param xGradient int[] x gradient plane.
+         * @param yGradient int[] y gradient plane.
+         */
+        void Expand(byte[] edges, int[] xGradient, int[] yGradient) {
+            for (int e = 0; e < index.length; e++) {
+                edges[index[e]] = label[e];
+                xGradient[index[e]] = xEdge[e];
+                yGradient[index[e]] = yEdge[e];
+            }
+        }
+
+        /**
+         * @return Edges holding only the edge list of these planes.
+         */
+        Edges ToList() {
+            if (!HasPlanes()) {
+                return this;
+            }
+            int count = 0;
+            for (byte value : edges) {
+                if (EdgeLabels.IsEdge(value)) {
+                    count++;
+                }
+            }
+            int[] listIndex = new int[count];
+            byte[] listLabel = new byte[count];
+            short[] listX = new short[count];
+            short[] listY = new short[count];
+            int e = 0;
+            for (int i = 0; i < edges.length; i++) {
+                if (EdgeLabels.IsEdge(edges[i])) {
+                    // Sobel of 8 bit pixels is at most 4 * 255, so the gradients fit in a short
+                    listIndex[e] = i;
+                    listLabel[e] = edges[i];
+                    listX[e] = (short) xGradient[i];
+                    listY[e] = (short) yGradient[i];
+                    e++;
+                }
+            }
+            return new Edges(width, height, listIndex, listLabel, listX, listY);
+        }
+
+        long Bytes() {
+            if (HasPlanes()) {
+                return (long) width * height * 13 + ENTRY_OVERHEAD;
+            }
+            return (long) index.length * 9 + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Output of the Hough stages of one frame for one set of parameters.
+     */
+    static final class Found {
+        /** Accumulator plane, null when only the circles are kept. */
+        final int[] accumulator;
+        final List<int[]> centers;
+        final List<Circle> circles;
+
+        Found(int[] accumulator, List<int[]> centers, List<Circle> circles) {
+            this.accumulator = accumulator;
+            this.centers = centers;
+            this.circles = circles;
+        }
+
+        long Bytes() {
+            long bytes = (accumulator == null) ? 0 : (long) accumulator.length * 4;
+            return bytes + (long) centers.size() * 24 + (long) circles.size() * 32 + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final long memoryBytes;
+    private final File directory;
+    private final LinkedHashMap<String, Object> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long usedBytes = 0;
+
+    /**
+     * @param memoryBytes long budget of the memory tier in bytes, 0 to keep nothing in memory.
+     * @param directory File directory of the disk tier, created if missing, null to not keep anything on disk.
+     */
+    public DetectionCache(long memoryBytes, File directory) {
+        this.memoryBytes = memoryBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * @param grayscale byte[] luminance plane of a frame.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     * @param params DetectorParams the edge stage is run with.
+     * @return String hex key of the frame's pixels and the edge stage parameters.
+     */
+    public static String FrameKey(byte[] grayscale, int width, int height, DetectorParams params) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(params.EdgeKey().getBytes(StandardCharsets.US_ASCII));
+        digest.update(new byte[]{(byte) (width >> 24), (byte) (width >> 16), (byte) (width >> 8), (byte) width,
+                (byte) (height >> 24), (byte) (height >> 16), (byte) (height >> 8), (byte) height});
+        digest.update(grayscale, 0, width * height);
+        return HexFormat.of().formatHex(digest.digest(), 0, 16);
+    }
+
+    /**
+     * @param frameKey String key of the frame.
+     * @param width int width of the frame.
+     * @param height int height of the frame.
+     * @param planes boolean every plane is needed, not just the edge list.
+     * @return Edges of the frame, null on a miss.
+     */
+    Edges Edges(String frameKey, int width, int height, boolean planes) {
+        Object entry = Get("e:" + frameKey);
+        if (entry != null && (!planes || ((Edges) entry).HasPlanes())) {
+            return (Edges) entry;
+        }
+        if (planes || directory == null) {
+            return null;
+        }
+        Edges loaded = ReadEdges(new File(directory, frameKey + ".edges"), width, height);
+        if (loaded != null) {
+            Put("e:" + frameKey, loaded, loaded.Bytes());
+        }
+        return loaded;
+    }
+
+    /**
+     * Keeps the edge stage of a frame. The disk tier gets the edge list if it does not have the frame yet.
+     * @param frameKey String key of the frame.
+     * @param edges Edges to keep, their arrays must not be written to afterwards.
+     */
+    void PutEdges(String frameKey, Edges edges) {
+        Put("e:" + frameKey, edges, edges.Bytes());
+        if (directory != null) {
+            File file = new File(directory, frameKey + ".edges");
+            if (!file.exists()) {
+                WriteEdges(file, edges.ToList());
+            }
+        }
+    }
+
+    /**
+     * @param frameKey String key of the frame.
+     * @param width int width of the frame.
+     * @param height int height of the frame.
+     * @param params DetectorParams the results were found with.
+     * @param planes boolean the accumulator is needed, not just the circles.
+     * @return Found results, null on a miss.
+     */
+    Found Found(String frameKey, int width, int height, DetectorParams params, boolean planes) {
+        String paramsKey = params.CacheKey();
+        Object entry = Get("f:" + frameKey + "/" + paramsKey);
+        if (entry != null && (!planes || ((Found) entry).accumulator != null)) {
+            return (Found) entry;
+        }
+        if (planes || directory == null) {
+            return null;
+        }
+        Found loaded = ReadFound(FoundFile(frameKey, paramsKey), paramsKey, width, height);
+        if (loaded != null) {
+            Put("f:" + frameKey + "/" + paramsKey, loaded, loaded.Bytes());
+        }
+        return loaded;
+    }
+
+    /**
+     * Keeps the Hough results of a frame, on disk without the accumulator.
+     * @param frameKey String key of the frame.
+     * @param params DetectorParams the results were found with.
+     * @param found Found results to keep, their arrays must not be written to afterwards.
+     */
+    void PutFound(String frameKey, DetectorParams params, Found found) {
+        String paramsKey = params.CacheKey();
+        Put("f:" + frameKey + "/" + paramsKey, found, found.Bytes());
+        if (directory != null) {
+            WriteFound(FoundFile(frameKey, paramsKey), paramsKey, found);
+        }
+    }
+
+    private synchronized Object Get(String key) {
+        return memory.get(key);
+    }
+
+    private synchronized void Put(String key, Object entry, long bytes) {
+        if (bytes > memoryBytes) {
+            return;
+        }
+        Object old = memory.put(key, entry);
+        if (old != null) {
+            usedBytes -= Bytes(old);
+        }
+        usedBytes += bytes;
+        Iterator<Map.Entry<String, Object>> eldest = memory.entrySet().iterator();
+        while (usedBytes > memoryBytes && eldest.hasNext()) {
+            usedBytes -= Bytes(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    private static long Bytes(Object entry) {
+        return (entry instanceof Edges) ? ((Edges) entry).Bytes() : ((Found) entry).Bytes();
+    }
+
+    private File FoundFile(String frameKey, String paramsKey) {
+        return new File(directory, frameKey + "-" + Integer.toHexString(paramsKey.hashCode()) + ".circles");
+    }
+
+    /**
+     * Edge file: magic, width, height and edge count, then per edge pixel the distance to the previous one as an
+     * unsigned varint, its label and its x and y gradients as shorts. A file that does not fit the frame or is cut
+     * short or garbled anywhere reads as a miss.
+     */
+    private static Edges ReadEdges(File file, int width, int height) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != EDGES_MAGIC || in.readInt() != width || in.readInt() != height) {
+                return null;
+            }
+            int count = in.readInt();
+            // Every edge pixel takes at least six bytes after the sixteen of the header
+            if (count < 0 || count > width * height || count > (file.length() - 16) / 6) {
+                return null;
+            }
+            int[] index = new int[count];
+            byte[] label = new byte[count];
+            short[] xEdge = new short[count];
+            short[] yEdge = new short[count];
+            long previous = 0;
+            for (int e = 0; e < count; e++) {
+                long delta = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if (shift > 28) {
+                        // Longer than any int
+                        return null;
+                    }
+                    b = in.readUnsignedByte();
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                previous += delta;
+                // The indices ascend, only the first may be 0
+                if ((e > 0 && delta == 0) || previous >= width * height) {
+                    return null;
+                }
+                index[e] = (int) previous;
+                label[e] = in.readByte();
+                xEdge[e] = in.readShort();
+                yEdge[e] = in.readShort();
+            }
+            return new Edges(width, height, index, label, xEdge, yEdge);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void WriteEdges(File file, Edges edges) {
+        Write(file, out -> {
+            out.writeInt(EDGES_MAGIC);
+            out.writeInt(edges.width);
+            out.writeInt(edges.height);
+            out.writeInt(edges.index.length);
+            int previous = 0;
+            for (int e = 0; e < edges.index.length; e++) {
+                int delta = edges.index[e] - previous;
+                previous = edges.index[e];
+                while ((delta & ~0x7F) != 0) {
+                    out.writeByte((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                }
+                out.writeByte(delta);
+                out.writeByte(edges.label[e]);
+                out.writeShort(edges.xEdge[e]);
+                out.writeShort(edges.yEdge[e]);
+            }
+        });
+    }
+
+    /**
+     * Circles file: magic and the parameters key, then the centers as x, y pairs and the circles as x, y, radius,
+     * score, each list preceded by its length. A file that does not fit the frame or is cut short or garbled
+     * anywhere reads as a miss.
+     */
+    private static Found ReadFound(File file, String paramsKey, int width, int height) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FOUND_MAGIC || !in.readUTF().equals(paramsKey)) {
+                return null;
+            }
+            // A center takes eight bytes and a circle sixteen, and there is at most one center per pixel
+            int centerCount = in.readInt();
+            if (centerCount < 0 || centerCount > width * height || centerCount > file.length() / 8) {
+                return null;
+            }
+            ArrayList<int[]> centers = new ArrayList<>(centerCount);
+            for (int c = 0; c < centerCount; c++) {
+                int x = in.readInt();
+                int y = in.readInt();
+                if (x < 0 || x >= width || y < 0 || y >= height) {
+                    return null;
+                }
+                centers.add(new int[]{x, y});
+            }
+            int circleCount = in.readInt();
+            if (circleCount < 0 || circleCount > centerCount || circleCount > file.length() / 16) {
+                return null;
+            }
+            ArrayList<Circle> circles = new ArrayList<>(circleCount);
+            for (int c = 0; c < circleCount; c++) {
+                circles.add(new Circle(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+            }
+            return new Found(null, centers, circles);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void WriteFound(File file, String paramsKey, Found found) {
+        Write(file, out -> {
+            out.writeInt(FOUND_MAGIC);
+            out.writeUTF(paramsKey);
+            out.writeInt(found.centers.size());
+            for (int[] center : found.centers) {
+                out.writeInt(center[0]);
+                out.writeInt(center[1]);
+            }
+            out.writeInt(found.circles.size());
+            for (Circle circle : found.circles) {
+                out.writeInt(circle.x);
+                out.writeInt(circle.y);
+                out.writeInt(circle.radius);
+                out.writeInt(circle.score);
+            }
+        });
+    }
+
+    private interface Writer {
+        void WriteTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes a file next to its final name and moves it into place, so a reader never sees half a file even when
+     * several processes share the directory.
+     */
+    private void Write(File file, Writer writer) {
+        File temp = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                return;
+            }
+            temp = File.createTempFile(file.getName(), ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+                    1 << 16))) {
+                writer.WriteTo(out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+}
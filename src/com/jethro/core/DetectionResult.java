@@ -0,0 +1,70 @@
+package com.jethro.core;
+
+import java.util.List;
+
+/**
+ * Working planes and detected circles for a single frame. All planes are flat, row-major and width * height long.
+ * Luminance planes hold unsigned bytes. A result from a detector with a DetectionCache that does not keep planes may
+ * have only its grayscale plane, centers and circles, see CircleDetector.WithCache.
+ */
+public final class DetectionResult {
+    public final int width;
+    public final int height;
+
+    public final byte[] grayscale;
+    public final byte[] blurred;
+    /** X gradient, only set at the edge candidates when sparseGradients is true. */
+    public final int[] xGradient;
+    /** Y gradient, only set at the edge candidates when sparseGradients is true. */
+    public final int[] yGradient;
+    /** Clamped gradient magnitude, only set at the edge candidates when sparseGradients is true. */
+    public final byte[] magnitude;
+    /** The fused edge stage ran and only wrote the gradient planes where labels are not NONE. */
+    public final boolean sparseGradients;
+    /** Non-maximal suppression labels. */
+    public final byte[] labels;
+    /** Hysteresis output, every pixel is NONE, STRONG or PROMOTED. */
+    public final byte[] edges;
+    public final int[] accumulator;
+    /** Accumulator peaks as {x, y} pairs. */
+    public final List<int[]> centers;
+    public final List<Circle> circles;
+    /** Stage measurements, null unless the detector was profiling. */
+    public final FrameProfile profile;
+
+    DetectionResult(int width, int height, byte[] grayscale, byte[] blurred, int[] xGradient, int[] yGradient,
+                    byte[] magnitude, boolean sparseGradients, byte[] labels, byte[] edges, int[] accumulator,
+                    List<int[]> centers, List<Circle> circles, FrameProfile profile) {
+        this.width = width;
+        this.height = height;
+        this.grayscale = grayscale;
+        this.blurred = blurred;
+        this.xGradient = xGradient;
+        this.yGradient = yGradient;
+        this.magnitude = magnitude;
+        this.sparseGradients = sparseGradients;
+        this.labels = labels;
+        this.edges = edges;
+        this.accumulator = accumulator;
+        this.centers = centers;
+        this.circles = circles;
+        this.profile = profile;
+    }
+
+    /**
+     * @return DetectionResult with the gradient planes set at every pixel, this one unless the gradients are
+     * sparse, in which case they are recomputed from the blurred plane.
+     */
+    public DetectionResult WithDenseGradients() {
+        if (!sparseGradients) {
+            return this;
+        }
+        int size = width * height;
+        int[] xDense = new int[size];
+        int[] yDense = new int[size];
+        byte[] magnitudeDense = new byte[size];
+        CircleDetector.SobelFilter(null, blurred, width, height, xDense, yDense, magnitudeDense);
+        return new DetectionResult(width, height, grayscale, blurred, xDense, yDense, magnitudeDense, false, labels,
+                edges, accumulator, centers, circles, profile);
+    }
+}
@@ -0,0 +1,118 @@
+package com.jethro.core;
+
+/**
+ * Tunable parameters of the circle detector. StageKey tells which of them each stage reads, which is what decides
+ * the stages a change has to rerun.
+ */
+public final class DetectorParams {
+    /** Width and height of the Gaussian blur kernel, odd. */
+    public int blurSize = 5;
+    /** Standard deviation of the Gaussian blur kernel, in pixels. */
+    public double blurSigma = 1.4;
+    /** Gradient magnitude from which a local maximum is a weak edge, kept when it touches a strong one. */
+    public int lowThreshold = 20;
+    /** Gradient magnitude from which a local maximum is a strong edge. */
+    public int highThreshold = 120;
+    /** Half size of the square window an accumulator peak must be the maximum of. */
+    public int peakWindow = 5;
+    /** Fraction of the largest accumulator value a peak must exceed. */
+    public double peakRatio = 0.2;
+    /** Check the window of each cell above the vote floor directly instead of taking a running maximum. */
+    public boolean sparsePeaks = false;
+    /** Smallest circle radius searched for, in pixels. */
+    public int minRadius = 1;
+    /** Largest circle radius searched for, in pixels. Also limited to half the image diagonal. */
+    public int maxRadius = 199;
+    /** Vote only between the smallest and largest radius on either side of an edge pixel, not across the image. */
+    public boolean boundedVoting = true;
+    /**
+     * Stop building a center's radius histogram once no other radius can overtake the current best, then only
+     * finish counting that radius. The circles are the same as with the full histogram.
+     */
+    public boolean radiusEarlyExit = true;
+    /** Fraction of the best circle's score the other circles must exceed. */
+    public double scoreRatio = 0.2;
+    /** Run Sobel and non-maximal suppression as one streaming pass that keeps only the candidates' gradients. */
+    public boolean fusedEdges = true;
+    /** Times a full-frame search halves the frame before searching it, 0 searches at full resolution only. */
+    public int pyramidLevels = 0;
+    /** Pixels either side of a downsampled circle's center and radius searched at full resolution. */
+    public int refineWindow = 6;
+
+    /**
+     * @param stage PipelineStage of the detection chain.
+     * @return String of the parameters the stage reads itself, empty for a stage that reads none. A stage gives the
+     * same output for the same input under two parameter sets with the same key. DOWNSAMPLE stands for the pyramid
+     * search as a whole.
+     */
+    public String StageKey(PipelineStage stage) {
+        switch (stage) {
+            case DOWNSAMPLE:
+                return pyramidLevels + " " + refineWindow;
+            case BLUR:
+                return blurSize + " " + blurSigma;
+            case NON_MAXIMAL:
+                return lowThreshold + "-" + highThreshold;
+            case VOTING:
+                return minRadius + "-" + maxRadius + " " + boundedVoting;
+            case PEAKS:
+                return peakWindow + " " + peakRatio + " " + sparsePeaks;
+            case RADII:
+                return minRadius + "-" + maxRadius + " " + scoreRatio;
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * @return String of every parameter the edge stage reads, blur to hysteresis.
+     */
+    public String EdgeKey() {
+        return "blur " + StageKey(PipelineStage.BLUR) + " thresholds " + StageKey(PipelineStage.NON_MAXIMAL);
+    }
+
+    /**
+     * @return String naming every parameter that changes the circles found in a given hysteresis map, the part of a
+     * DetectionCache key that is not the frame.
+     */
+    public String CacheKey() {
+        return "peaks " + StageKey(PipelineStage.PEAKS) + " radii " + StageKey(PipelineStage.RADII) + " voting "
+                + StageKey(PipelineStage.VOTING) + " pyramid " + StageKey(PipelineStage.DOWNSAMPLE);
+    }
+
+    /**
+     * @param other DetectorParams the stage outputs at hand were made with.
+     * @return PipelineStage of the first stage, from BLUR on, that reads a parameter that differs, null if none does.
+     */
+    public PipelineStage FirstChanged(DetectorParams other) {
+        for (PipelineStage stage : PipelineStage.values()) {
+            if (stage.compareTo(PipelineStage.BLUR) >= 0 && !StageKey(stage).equals(other.StageKey(stage))) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return DetectorParams with the same values as this one.
+     */
+    public DetectorParams Copy() {
+        DetectorParams copy = new DetectorParams();
+        copy.blurSize = blurSize;
+        copy.blurSigma = blurSigma;
+        copy.lowThreshold = lowThreshold;
+        copy.highThreshold = highThreshold;
+        copy.peakWindow = peakWindow;
+        copy.peakRatio = peakRatio;
+        copy.sparsePeaks = sparsePeaks;
+        copy.minRadius = minRadius;
+        copy.maxRadius = maxRadius;
+        copy.boundedVoting = boundedVoting;
+        copy.radiusEarlyExit = radiusEarlyExit;
+        copy.scoreRatio = scoreRatio;
+        copy.fusedEdges = fusedEdges;
+        copy.pyramidLevels = pyramidLevels;
+        copy.refineWindow = refineWindow;
+        return copy;
+    }
+}
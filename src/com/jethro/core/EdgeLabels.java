@@ -0,0 +1,29 @@
+package com.jethro.core;
+
+/**
+ * Values stored in the byte edge-label maps produced by the non-maximal suppression and hysteresis stages.
+ * Replaces the old colour codes (strong = white, weak = dark red, promoted = cyan).
+ */
+public final class EdgeLabels {
+    /** Pixel is not a local maximum. */
+    public static final byte NONE = 0;
+    /** Pixel is a local maximum but is below the low threshold. */
+    public static final byte LOCAL_MAX = 1;
+    /** Local maximum between the low and high thresholds. */
+    public static final byte WEAK = 2;
+    /** Local maximum at or above the high threshold. */
+    public static final byte STRONG = 3;
+    /** Weak edge that hysteresis connected to a strong edge. */
+    public static final byte PROMOTED = 4;
+
+    private EdgeLabels() {
+    }
+
+    /**
+     * @param label byte label to test.
+     * @return true if the label marks a final edge pixel (strong or promoted).
+     */
+    public static boolean IsEdge(byte label) {
+        return label == STRONG || label == PROMOTED;
+    }
+}
@@ -0,0 +1,117 @@
+package com.jethro.core;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The edge pixels of a hysteresis plane as parallel arrays in raster order: position, gradient, and the cosine and
+ * sine of the gradient direction. It is made once, after hysteresis, and the Hough stages only walk the list, so
+ * their cost follows the number of edge pixels rather than the frame area. rowStart gives the pixels of any run of
+ * rows without a search. The arrays only grow, so a list kept in FrameBuffers allocates nothing after the first
+ * frames. Entries past count are stale.
+ */
+final class EdgeList {
+    int count;
+    int[] x = new int[0];
+    int[] y = new int[0];
+    int[] xGrad = new int[0];
+    int[] yGrad = new int[0];
+    /** Gradient direction, as cos and sin of atan2(yGrad, xGrad). */
+    double[] cos = new double[0];
+    double[] sin = new double[0];
+    /** First entry of each row, rowStart[height] is count. */
+    int[] rowStart = new int[1];
+
+    /**
+     * Fills the list from a hysteresis plane, one band of rows per task: the rows are counted first, so each band
+     * knows where its entries start.
+     * @param pool ForkJoinPool to run the bands on, null to run serially.
+     * @param edges byte[] hysteresis plane.
+     * @param xGradient int[] x gradient plane, read at the edge pixels.
+     * @param yGradient int[] y gradient plane, read at the edge pixels.
+     * @param width int width of the planes.
+     * @param height int height of the planes.
+     */
+    void Collect(ForkJoinPool pool, byte[] edges, int[] xGradient, int[] yGradient, int width, int height) {
+        int[] starts = FrameBuffers.Grow(rowStart, height + 1);
+        rowStart = starts;
+        RowBands.ForEach(pool, height, (y0, y1) -> {
+            for (int row = y0; row < y1; row++) {
+                int found = 0;
+                for (int i = row * width; i < (row + 1) * width; i++) {
+                    if (EdgeLabels.IsEdge(edges[i])) {
+                        found++;
+                    }
+                }
+                starts[row + 1] = found;
+            }
+        });
+        starts[0] = 0;
+        for (int row = 0; row < height; row++) {
+            starts[row + 1] += starts[row];
+        }
+        count = starts[height];
+        Grow(count);
+
+        int[] xs = x;
+        int[] ys = y;
+        int[] xGrads = xGrad;
+        int[] yGrads = yGrad;
+        double[] cosines = cos;
+        double[] sines = sin;
+        RowBands.ForEach(pool, height, (y0, y1) -> {
+            for (int row = y0; row < y1; row++) {
+                int e = starts[row];
+                for (int column = 0; column < width; column++) {
+                    int i = row * width + column;
+                    if (EdgeLabels.IsEdge(edges[i])) {
+                        xs[e] = column;
+                        ys[e] = row;
+                        xGrads[e] = xGradient[i];
+                        yGrads[e] = yGradient[i];
+                        double theta = Math.atan2(yGradient[i], xGradient[i]);
+                        cosines[e] = Math.cos(theta);
+                        sines[e] = Math.sin(theta);
+                        e++;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the entries outside a mask, keeping the rest in order.
+     * @param mask byte[] plane of the collected frame, nonzero where entries are kept.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     */
+    void Keep(byte[] mask, int width, int height) {
+        int kept = 0;
+        for (int row = 0; row < height; row++) {
+            int from = rowStart[row];
+            int to = rowStart[row + 1];
+            rowStart[row] = kept;
+            for (int e = from; e < to; e++) {
+                if (mask[row * width + x[e]] != 0) {
+                    x[kept] = x[e];
+                    y[kept] = y[e];
+                    xGrad[kept] = xGrad[e];
+                    yGrad[kept] = yGrad[e];
+                    cos[kept] = cos[e];
+                    sin[kept] = sin[e];
+                    kept++;
+                }
+            }
+        }
+        rowStart[height] = kept;
+        count = kept;
+    }
+
+    private void Grow(int length) {
+        x = FrameBuffers.Grow(x, length);
+        y = FrameBuffers.Grow(y, length);
+        xGrad = FrameBuffers.Grow(xGrad, length);
+        yGrad = FrameBuffers.Grow(yGrad, length);
+        cos = FrameBuffers.Grow(cos, length);
+        sin = FrameBuffers.Grow(sin, length);
+    }
+}
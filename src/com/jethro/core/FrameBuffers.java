@@ -0,0 +1,180 @@
+package com.jethro.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Working memory for detecting a run of frames, so that frames after the first allocate no planes. Planes are
+ * kept for the last few frame sizes seen, which covers the levels of a pyramid, and scratch arrays only ever grow.
+ * A DetectionResult made with buffers shares their planes and is only valid until the buffers are used for the
+ * next frame. Not thread safe, every detecting thread needs buffers of its own.
+ */
+public final class FrameBuffers {
+    /** Frame sizes kept before the least recently used one is dropped. */
+    private static final int SIZES = 4;
+
+    /**
+     * The planes of one frame size, exactly width * height long.
+     */
+    static final class Planes {
+        final int width;
+        final int height;
+        final int[] rgb;
+        final byte[] grayscale;
+        final byte[] horizontal;
+        final byte[] blurred;
+        final int[] xGradient;
+        final int[] yGradient;
+        final byte[] magnitude;
+        final byte[] labels;
+        final byte[] edges;
+        final int[] accumulator;
+        /** False until the planes have been handed out once, new planes are already zeroed. */
+        boolean used;
+
+        private Planes(int width, int height) {
+            int size = width * height;
+            this.width = width;
+            this.height = height;
+            this.rgb = new int[size];
+            this.grayscale = new byte[size];
+            this.horizontal = new byte[size];
+            this.blurred = new byte[size];
+            this.xGradient = new int[size];
+            this.yGradient = new int[size];
+            this.magnitude = new byte[size];
+            this.labels = new byte[size];
+            this.edges = new byte[size];
+            this.accumulator = new int[size];
+        }
+    }
+
+    private final ArrayList<Planes> planes = new ArrayList<>();
+
+    /** Edge list of the frame being detected. */
+    final EdgeList edgeList = new EdgeList();
+    /** Entries of the edge list that voted in the search windows. */
+    int[] voters = new int[64];
+    int[] stack = new int[64];
+    int[] sorted = new int[64];
+    int[] parent = new int[0];
+    byte[] hasStrong = new byte[0];
+    int[] rowMax = new int[0];
+    int[] windowMax = new int[0];
+    /** Private vote planes of the voting tasks, indexed by task. Kept zeroed between frames. */
+    private char[][] compactVotes = new char[0][];
+    private int[][] wideVotes = new int[0][];
+
+    /**
+     * @param width int width of the frame.
+     * @param height int height of the frame.
+     * @return Planes for a frame of that size, most recently used first.
+     */
+    Planes For(int width, int height) {
+        for (int p = 0; p < planes.size(); p++) {
+            Planes candidate = planes.get(p);
+            if (candidate.width == width && candidate.height == height) {
+                planes.add(0, planes.remove(p));
+                return candidate;
+            }
+        }
+        if (planes.size() == SIZES) {
+            planes.remove(SIZES - 1);
+        }
+        Planes created = new Planes(width, height);
+        planes.add(0, created);
+        return created;
+    }
+
+    /**
+     * @param task int index of the voting task.
+     * @param size int cells in the frame.
+     * @return char[] zeroed vote counters for the task, at least size long.
+     */
+    char[] CompactVotes(int task, int size) {
+        if (compactVotes.length <= task) {
+            compactVotes = Arrays.copyOf(compactVotes, task + 1);
+        }
+        if (compactVotes[task] == null || compactVotes[task].length < size) {
+            compactVotes[task] = new char[size];
+        }
+        return compactVotes[task];
+    }
+
+    /**
+     * @param task int index of the voting task.
+     * @param size int cells in the frame.
+     * @return int[] zeroed vote counters for the task, at least size long.
+     */
+    int[] WideVotes(int task, int size) {
+        if (wideVotes.length <= task) {
+            wideVotes = Arrays.copyOf(wideVotes, task + 1);
+        }
+        if (wideVotes[task] == null || wideVotes[task].length < size) {
+            wideVotes[task] = new int[size];
+        }
+        return wideVotes[task];
+    }
+
+    /**
+     * @param width int width of the frame.
+     * @param height int height of the frame.
+     * @return int[] packed RGB plane for a frame of that size, for callers that convert their frames into it
+     * before detecting.
+     */
+    public int[] Rgb(int width, int height) {
+        return For(width, height).rgb;
+    }
+
+    /**
+     * Gets the edge and accumulator planes ready for a frame. They are the only planes that are not completely
+     * overwritten.
+     * @param planes Planes about to be used.
+     */
+    static void Clear(Planes planes) {
+        if (planes.used) {
+            Arrays.fill(planes.edges, EdgeLabels.NONE);
+            Arrays.fill(planes.accumulator, 0);
+        }
+        planes.used = true;
+    }
+
+    /**
+     * @param array int[] current scratch array, may be null.
+     * @param length int length needed.
+     * @return int[] array if it is long enough, otherwise a new array at least twice as long. Contents are not
+     * kept.
+     */
+    static int[] Grow(int[] array, int length) {
+        if (array != null && array.length >= length) {
+            return array;
+        }
+        return new int[Math.max(length, (array == null) ? 0 : array.length * 2)];
+    }
+
+    /**
+     * @param array byte[] current scratch array, may be null.
+     * @param length int length needed.
+     * @return byte[] array if it is long enough, otherwise a new array at least twice as long. Contents are not
+     * kept.
+     */
+    static byte[] Grow(byte[] array, int length) {
+        if (array != null && array.length >= length) {
+            return array;
+        }
+        return new byte[Math.max(length, (array == null) ? 0 : array.length * 2)];
+    }
+
+    /**
+     * @param array double[] current scratch array, may be null.
+     * @param length int length needed.
+     * @return double[] array if it is long enough, otherwise a new array at least twice as long. Contents are not
+     * kept.
+     */
+    static double[] Grow(double[] array, int length) {
+        if (array != null && array.length >= length) {
+            return array;
+        }
+        return new double[Math.max(length, (array == null) ? 0 : array.length * 2)];
+    }
+}
@@ -0,0 +1,34 @@
+package com.jethro.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event covering a whole detection, with the work counters of the frame.
+ */
+@Name("com.jethro.Frame")
+@Label("Detector Frame")
+@Category({"Hough Detector"})
+@Description("One circle detection")
+final class FrameEvent extends Event {
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Edge Pixels")
+    int edgePixels;
+
+    @Label("Votes")
+    long votes;
+
+    @Label("Centers")
+    int centers;
+
+    @Label("Circles")
+    int circles;
+}
@@ -0,0 +1,151 @@
+package com.jethro.core;
+
+import java.lang.management.ManagementFactory;
+import jdk.jfr.EventType;
+
+/**
+ * Wall time, CPU time and allocation of each pipeline stage of one frame, with counts of the work done. Stages are
+ * measured on the thread running the detection: with a pool the wall time covers the whole stage, but the CPU time
+ * and allocation of the pool threads are not included.
+ * The same numbers are committed as StageEvent and FrameEvent when a JFR recording has them enabled.
+ */
+public final class FrameProfile {
+    private static final int STAGES = PipelineStage.values().length;
+    private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean SUN_THREADS =
+            (THREADS instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean) THREADS : null;
+
+    public final int width;
+    public final int height;
+    /** Wall time of each stage, indexed by PipelineStage ordinal. */
+    public final long[] wallNanos = new long[STAGES];
+    /** CPU time of each stage, indexed by PipelineStage ordinal. 0 when the JVM cannot measure it. */
+    public final long[] cpuNanos = new long[STAGES];
+    /** Bytes allocated by each stage, indexed by PipelineStage ordinal. 0 when the JVM cannot measure it. */
+    public final long[] allocatedBytes = new long[STAGES];
+    /** Edge pixels that voted. */
+    public int edgePixels;
+    /** Accumulator votes cast. */
+    public long votes;
+    /** Accumulator peaks the radius search ran on. */
+    public int centers;
+
+    private final FrameEvent frameEvent;
+    private long wallStart;
+    private long cpuStart;
+    private long allocStart;
+    private StageEvent event;
+
+    private FrameProfile(int width, int height, boolean recording) {
+        this.width = width;
+        this.height = height;
+        this.frameEvent = recording ? new FrameEvent() : null;
+        if (recording) {
+            frameEvent.begin();
+        }
+    }
+
+    /**
+     * @param width int width of the frame.
+     * @param height int height of the frame.
+     * @param always boolean profile even if no JFR recording wants the events.
+     * @return FrameProfile to fill in, null if nothing would read it.
+     */
+    static FrameProfile Create(int width, int height, boolean always) {
+        boolean recording = EventType.getEventType(StageEvent.class).isEnabled();
+        return (always || recording) ? new FrameProfile(width, height, recording) : null;
+    }
+
+    /**
+     * Starts measuring a stage.
+     * @param profile FrameProfile to measure into, null to do nothing.
+     */
+    static void Begin(FrameProfile profile) {
+        if (profile != null) {
+            profile.Begin();
+        }
+    }
+
+    /**
+     * Stops measuring a stage.
+     * @param profile FrameProfile to measure into, null to do nothing.
+     * @param stage PipelineStage that ran since the last Begin.
+     */
+    static void End(FrameProfile profile, PipelineStage stage) {
+        if (profile != null) {
+            profile.End(stage);
+        }
+    }
+
+    private void Begin() {
+        if (frameEvent != null) {
+            event = new StageEvent();
+            event.begin();
+        }
+        allocStart = Allocated();
+        cpuStart = CpuTime();
+        wallStart = System.nanoTime();
+    }
+
+    private void End(PipelineStage stage) {
+        long wall = System.nanoTime() - wallStart;
+        long cpu = CpuTime() - cpuStart;
+        long allocated = Allocated() - allocStart;
+        wallNanos[stage.ordinal()] += wall;
+        cpuNanos[stage.ordinal()] += cpu;
+        allocatedBytes[stage.ordinal()] += allocated;
+
+        if (frameEvent != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stage.label;
+                event.width = width;
+                event.height = height;
+                event.cpuTime = cpu;
+                event.allocated = allocated;
+                event.commit();
+            }
+            event = null;
+        }
+    }
+
+    /**
+     * Commits the frame event once the detection is done.
+     * @param circles int number of circles found.
+     */
+    void Finish(int circles) {
+        if (frameEvent == null) {
+            return;
+        }
+        frameEvent.end();
+        if (frameEvent.shouldCommit()) {
+            frameEvent.width = width;
+            frameEvent.height = height;
+            frameEvent.edgePixels = edgePixels;
+            frameEvent.votes = votes;
+            frameEvent.centers = centers;
+            frameEvent.circles = circles;
+            frameEvent.commit();
+        }
+    }
+
+    /**
+     * @return long wall time of all stages together.
+     */
+    public long TotalWallNanos() {
+        long total = 0;
+        for (long nanos : wallNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    private static long CpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long Allocated() {
+        return (SUN_THREADS != null && SUN_THREADS.isThreadAllocatedMemoryEnabled())
+                ? SUN_THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+}
@@ -0,0 +1,295 @@
+package com.jethro.core;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Conversion between BufferedImages and the primitive planes used by CircleDetector. This is the only place the
+ * detector touches pixels through the image API, for input and for display or saving.
+ */
+public final class ImagePlanes {
+    private static final int RGB_WHITE = Color.WHITE.getRGB() & 0xFFFFFF;
+    private static final int RGB_CYAN = Color.CYAN.getRGB() & 0xFFFFFF;
+    private static final int RGB_WEAK = new Color(120, 0, 0).getRGB() & 0xFFFFFF;
+    private static final int RGB_CIRCLE = new Color(21, 160, 255).getRGB() & 0xFFFFFF;
+
+    private ImagePlanes() {
+    }
+
+    /**
+     * Gets the packed RGB pixels of an image. TYPE_INT_RGB images are returned without copying.
+     * @param img BufferedImage to read.
+     * @return int[] packed 0xRRGGBB pixels, row-major.
+     */
+    public static int[] FromImage(BufferedImage img) {
+        if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+            return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        }
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    /**
+     * Gets the packed RGB pixels of an image, converting into a plane the caller provides unless the image is
+     * TYPE_INT_RGB and can be returned without copying.
+     * @param img BufferedImage to read.
+     * @param dst int[] of at least width * height to convert into.
+     * @return int[] packed 0xRRGGBB pixels, row-major, either the image's own or dst.
+     */
+    public static int[] FromImage(BufferedImage img, int[] dst) {
+        if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+            return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        }
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), dst, 0, img.getWidth());
+    }
+
+    /**
+     * Packs 24 bit RGB pixels, three bytes each in R, G, B order.
+     * @param src byte[] RGB bytes.
+     * @param dst int[] to be filled with packed 0xRRGGBB pixels.
+     * @param pixels int number of pixels to pack.
+     */
+    public static void FromRgbBytes(byte[] src, int[] dst, int pixels) {
+        for (int i = 0, at = 0; i < pixels; i++, at += 3) {
+            dst[i] = ((src[at] & 0xFF) << 16) | ((src[at + 1] & 0xFF) << 8) | (src[at + 2] & 0xFF);
+        }
+    }
+
+    /**
+     * Writes an image, picking the format from the file extension.
+     * @param img BufferedImage to write.
+     * @param imgOut File to write to.
+     */
+    public static void SaveImage(BufferedImage img, File imgOut) throws IOException {
+        SaveImage(img, imgOut, -1);
+    }
+
+    /**
+     * Writes an image, picking the format from the file extension. PGM files are written directly as 8 bit binary
+     * luminance, everything else goes through ImageIO.
+     * @param img BufferedImage to write.
+     * @param imgOut File to write to.
+     * @param pngLevel int deflate level from 0 (store) to 9 (smallest) for PNG files, -1 for the writer's default.
+     */
+    public static void SaveImage(BufferedImage img, File imgOut, int pngLevel) throws IOException {
+        String[] fileParts = imgOut.getName().split("\\.");
+        String extension = fileParts[fileParts.length - 1].toLowerCase(Locale.ROOT);
+        if (extension.equals("pgm")) {
+            SavePgm(img, imgOut);
+            return;
+        }
+        if (!extension.equals("png") || pngLevel < 0) {
+            if (!ImageIO.write(img, extension, imgOut)) {
+                throw new IOException("No writer for " + extension);
+            }
+            return;
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        // The PNG writer maps quality 1 to deflate level 0 and quality 0 to level 9
+        param.setCompressionQuality(1f - pngLevel / 9f);
+        Files.deleteIfExists(imgOut.toPath());
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(imgOut)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static void SavePgm(BufferedImage img, File imgOut) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] rgb = FromImage(img);
+        byte[] row = new byte[width];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(imgOut), 1 << 16)) {
+            out.write(("P5\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int c = rgb[y * width + x];
+                    row[x] = (byte) ((((c >> 16) & 0xFF) * 299 + ((c >> 8) & 0xFF) * 587 + (c & 0xFF) * 114) / 1000);
+                }
+                out.write(row);
+            }
+        }
+    }
+
+    private static BufferedImage NewImage(int width, int height) {
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    private static int[] Pixels(BufferedImage img) {
+        return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+
+    private static int Gray(int lum) {
+        return (lum << 16) | (lum << 8) | lum;
+    }
+
+    /**
+     * @param plane byte[] unsigned luminance plane.
+     * @return BufferedImage grayscale rendering of the plane.
+     */
+    public static BufferedImage LuminanceImage(byte[] plane, int width, int height) {
+        BufferedImage img = NewImage(width, height);
+        int[] pixels = Pixels(img);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = Gray(plane[i] & 0xFF);
+        }
+        return img;
+    }
+
+    /**
+     * @param gradient int[] signed gradient plane.
+     * @return BufferedImage of the absolute gradient clamped to 255.
+     */
+    public static BufferedImage GradientImage(int[] gradient, int width, int height) {
+        BufferedImage img = NewImage(width, height);
+        int[] pixels = Pixels(img);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = Gray(Math.min(255, Math.abs(gradient[i])));
+        }
+        return img;
+    }
+
+    /**
+     * @param labels byte[] non-maximal suppression labels.
+     * @return BufferedImage with every local maximum in white.
+     */
+    public static BufferedImage NonMaxImage(byte[] labels, int width, int height) {
+        BufferedImage img = NewImage(width, height);
+        int[] pixels = Pixels(img);
+        for (int i = 0; i < pixels.length; i++) {
+            if (labels[i] != EdgeLabels.NONE) {
+                pixels[i] = RGB_WHITE;
+            }
+        }
+        return img;
+    }
+
+    /**
+     * @param labels byte[] non-maximal suppression labels.
+     * @param edges byte[] hysteresis output.
+     * @return BufferedImage with strong edges in white, weak edges in red and promoted edges in cyan.
+     */
+    public static BufferedImage FilteredImage(byte[] labels, byte[] edges, int width, int height) {
+        BufferedImage img = NewImage(width, height);
+        int[] pixels = Pixels(img);
+        for (int i = 0; i < pixels.length; i++) {
+            if (edges[i] == EdgeLabels.PROMOTED) {
+                pixels[i] = RGB_CYAN;
+            } else if (labels[i] == EdgeLabels.STRONG) {
+                pixels[i] = RGB_WHITE;
+            } else if (labels[i] == EdgeLabels.WEAK) {
+                pixels[i] = RGB_WEAK;
+            }
+        }
+        return img;
+    }
+
+    /**
+     * @param edges byte[] hysteresis output.
+     * @return BufferedImage with every edge pixel in white.
+     */
+    public static BufferedImage EdgeImage(byte[] edges, int width, int height) {
+        BufferedImage img = NewImage(width, height);
+        int[] pixels = Pixels(img);
+        for (int i = 0; i < pixels.length; i++) {
+            if (EdgeLabels.IsEdge(edges[i])) {
+                pixels[i] = RGB_WHITE;
+            }
+        }
+        return img;
+    }
+
+    /**
+     * @param result DetectionResult holding the accumulator and its peaks.
+     * @return BufferedImage of the normalized accumulator with the peaks marked in cyan.
+     */
+    public static BufferedImage HoughImage(DetectionResult result) {
+        int[] accum = result.accumulator;
+        int minVal = Integer.MAX_VALUE;
+        int maxVal = Integer.MIN_VALUE;
+        for (int votes : accum) {
+            minVal = Math.min(minVal, votes);
+            maxVal = Math.max(maxVal, votes);
+        }
+
+        BufferedImage img = NewImage(result.width, result.height);
+        int[] pixels = Pixels(img);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = Gray(Math.round((255 * (accum[i] - minVal)) / ((float) (maxVal - minVal))));
+        }
+        for (int[] center : result.centers) {
+            pixels[center[1] * result.width + center[0]] = RGB_CYAN;
+        }
+        return img;
+    }
+
+    /**
+     * @param result DetectionResult holding the edges and circles.
+     * @return BufferedImage of the hysteresis edges with the circles found drawn over them.
+     */
+    public static BufferedImage CircleImage(DetectionResult result) {
+        BufferedImage img = EdgeImage(result.edges, result.width, result.height);
+        int[] pixels = Pixels(img);
+        for (Circle circle : result.circles) {
+            DrawCircle(circle.x, circle.y, circle.radius, pixels, result.width, result.height);
+        }
+        return img;
+    }
+
+    private static void Plot(int[] pixels, int width, int height, int x, int y) {
+        if (x >= 0 && x < width && y >= 0 && y < height) {
+            pixels[y * width + x] = RGB_CIRCLE;
+        }
+    }
+
+    /**
+     * Bressenham's Circle Drawing Algorithm as defined here:
+     * http://www.gamedev.net/page/resources/_/technical/graphics-programming-and-theory/bresenhams-line-and-circle-algorithms-r767
+     * @param centerX int x pixel center of the circle.
+     * @param centerY int y pixel center of the circle.
+     * @param radius int radius of the circle.
+     * @param pixels int[] packed RGB pixels to draw the circle to.
+     */
+    private static void DrawCircle(int centerX, int centerY, int radius, int[] pixels, int width, int height) {
+        int d = 3 - (2 * radius);
+        int x = 0;
+        int y = radius;
+
+        while (x <= y) {
+            Plot(pixels, width, height, centerX + x, centerY + y);
+            Plot(pixels, width, height, centerX + x, centerY - y);
+            Plot(pixels, width, height, centerX - x, centerY + y);
+            Plot(pixels, width, height, centerX - x, centerY - y);
+            Plot(pixels, width, height, centerX + y, centerY + x);
+            Plot(pixels, width, height, centerX + y, centerY - x);
+            Plot(pixels, width, height, centerX - y, centerY + x);
+            Plot(pixels, width, height, centerX - y, centerY - x);
+
+            if (d < 0) {
+                d += (4 * x) + 6;
+            } else {
+                d += 4 * (x - y) + 10;
+                y--;
+            }
+            x++;
+        }
+    }
+}
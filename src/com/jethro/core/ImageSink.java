@@ -0,0 +1,119 @@
+package com.jethro.core;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Writes images on a small pool of encoder threads so detection never waits on compression or the disk. Images are
+ * rendered on the encoder thread as well, and at most a fixed number of writes may be pending: once that many are
+ * queued Write blocks until one finishes, which keeps a slow disk from filling the heap with unwritten frames.
+ * Pending writes are finished by Close, or by the shutdown hook if the JVM exits first.
+ */
+public final class ImageSink {
+    /**
+     * Output formats. PNG is compressed, BMP and PGM are written uncompressed for quick debug dumps.
+     */
+    public enum Format {
+        PNG, BMP, PGM;
+
+        /** File extension written, without the dot. */
+        public final String extension = name().toLowerCase(Locale.ROOT);
+
+        /**
+         * @param name String format name, any case.
+         * @return Format with that name.
+         * @throws IllegalArgumentException if no format has that name.
+         */
+        public static Format Parse(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown image format: " + name);
+            }
+        }
+    }
+
+    private final ExecutorService encoders;
+    private final Semaphore pending;
+    private final Format format;
+    private final int pngLevel;
+    private final AtomicInteger failed = new AtomicInteger();
+    private final Thread shutdownHook = new Thread(this::Drain, "image-sink-flush");
+
+    /**
+     * @param threads int number of encoder threads.
+     * @param capacity int number of writes that may be pending before Write blocks.
+     * @param format Format to write images in.
+     * @param pngLevel int deflate level from 0 to 9 for PNG output, -1 for the writer's default.
+     */
+    public ImageSink(int threads, int capacity, Format format, int pngLevel) {
+        AtomicInteger count = new AtomicInteger();
+        this.encoders = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "encode-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pending = new Semaphore(capacity);
+        this.format = format;
+        this.pngLevel = pngLevel;
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Queues an image to be rendered and written, blocking only while the sink is full.
+     * @param image Supplier of the BufferedImage, called on an encoder thread.
+     * @param basePath String path to write to, without the extension.
+     */
+    public void Write(Supplier<BufferedImage> image, String basePath) throws InterruptedException {
+        File out = new File(basePath + "." + format.extension);
+        pending.acquire();
+        try {
+            encoders.execute(() -> {
+                try {
+                    ImagePlanes.SaveImage(image.get(), out, pngLevel);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Failed to write out " + out + ": " + e.getMessage());
+                    failed.incrementAndGet();
+                } finally {
+                    pending.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            pending.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for every queued image to be written and stops the encoder threads.
+     * @return int number of images that failed to write.
+     */
+    public int Close() {
+        Drain();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down, the hook is running or has run
+        }
+        return failed.get();
+    }
+
+    private void Drain() {
+        encoders.shutdown();
+        try {
+            while (!encoders.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Still writing images...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.jethro.core;
+
+/**
+ * The steps of a detection, in the order they run. Used to label profiling data.
+ */
+public enum PipelineStage {
+    GRAYSCALE("grayscale"),
+    DOWNSAMPLE("downsample"),
+    CACHE("cache"),
+    BLUR("blur"),
+    SOBEL("sobel"),
+    NON_MAXIMAL("nms"),
+    HYSTERESIS("hysteresis"),
+    VOTING("voting"),
+    PEAKS("peaks"),
+    RADII("radii");
+
+    /** Short name used in reports. */
+    public final String label;
+
+    PipelineStage(String label) {
+        this.label = label;
+    }
+}
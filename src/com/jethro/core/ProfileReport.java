@@ -0,0 +1,110 @@
+package com.jethro.core;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the FrameProfiles of a run and summarises them per stage, with percentiles over the frames.
+ */
+public final class ProfileReport {
+    private final List<FrameProfile> frames = new ArrayList<>();
+
+    /**
+     * @param profile FrameProfile of a finished detection, ignored if null.
+     */
+    public synchronized void Add(FrameProfile profile) {
+        if (profile != null) {
+            frames.add(profile);
+        }
+    }
+
+    /**
+     * Prints wall time percentiles, mean CPU time and mean allocation for every stage, then the work counters.
+     * @param out PrintStream to print to.
+     */
+    public synchronized void Print(PrintStream out) {
+        if (frames.isEmpty()) {
+            out.println("No frames profiled");
+            return;
+        }
+        out.printf("Profile of %d frames, wall and CPU times in ms%n", frames.size());
+        out.printf("%-11s %8s %8s %8s %8s %9s %11s%n", "stage", "p50", "p90", "p99", "max", "cpu mean",
+                "alloc mean");
+        for (PipelineStage stage : PipelineStage.values()) {
+            long[] wall = new long[frames.size()];
+            long cpu = 0;
+            long allocated = 0;
+            for (int f = 0; f < frames.size(); f++) {
+                FrameProfile profile = frames.get(f);
+                wall[f] = profile.wallNanos[stage.ordinal()];
+                cpu += profile.cpuNanos[stage.ordinal()];
+                allocated += profile.allocatedBytes[stage.ordinal()];
+            }
+            PrintTimes(out, stage.label, wall, cpu, allocated);
+        }
+
+        long[] total = new long[frames.size()];
+        long cpu = 0;
+        long allocated = 0;
+        for (int f = 0; f < frames.size(); f++) {
+            FrameProfile profile = frames.get(f);
+            total[f] = profile.TotalWallNanos();
+            cpu += Arrays.stream(profile.cpuNanos).sum();
+            allocated += Arrays.stream(profile.allocatedBytes).sum();
+        }
+        PrintTimes(out, "total", total, cpu, allocated);
+
+        long[] edgePixels = new long[frames.size()];
+        long[] votes = new long[frames.size()];
+        long[] centers = new long[frames.size()];
+        for (int f = 0; f < frames.size(); f++) {
+            edgePixels[f] = frames.get(f).edgePixels;
+            votes[f] = frames.get(f).votes;
+            centers[f] = frames.get(f).centers;
+        }
+        out.printf("%-11s %8s %8s %8s %8s%n", "per frame", "p50", "p90", "p99", "max");
+        PrintCounts(out, "edge pixels", edgePixels);
+        PrintCounts(out, "votes", votes);
+        PrintCounts(out, "centers", centers);
+    }
+
+    private void PrintTimes(PrintStream out, String label, long[] wall, long cpu, long allocated) {
+        Arrays.sort(wall);
+        out.printf("%-11s %8.2f %8.2f %8.2f %8.2f %9.2f %8.0f KB%n", label, Percentile(wall, 50) / 1e6,
+                Percentile(wall, 90) / 1e6, Percentile(wall, 99) / 1e6, wall[wall.length - 1] / 1e6,
+                cpu / 1e6 / frames.size(), allocated / 1024.0 / frames.size());
+    }
+
+    private static void PrintCounts(PrintStream out, String label, long[] counts) {
+        Arrays.sort(counts);
+        out.printf("%-11s %8d %8d %8d %8d%n", label, Percentile(counts, 50), Percentile(counts, 90),
+                Percentile(counts, 99), counts[counts.length - 1]);
+    }
+
+    /**
+     * @param sorted long[] values in ascending order.
+     * @param percent int percentile wanted.
+     * @return long nearest-rank percentile of the values.
+     */
+    private static long Percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * @param profile FrameProfile of one detection.
+     * @return String one line summary of the frame, as shown in the status bar.
+     */
+    public static String StatusLine(FrameProfile profile) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%dx%d  %.1f ms:", profile.width, profile.height, profile.TotalWallNanos() / 1e6));
+        for (PipelineStage stage : PipelineStage.values()) {
+            sb.append(String.format(" %s %.1f", stage.label, profile.wallNanos[stage.ordinal()] / 1e6));
+        }
+        sb.append(String.format("  |  %d edge pixels, %d votes, %d centers", profile.edgePixels, profile.votes,
+                profile.centers));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,329 @@
+package com.jethro.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Frames read straight out of a memory-mapped file, without decoding through ImageIO or making a BufferedImage.
+ * Binary PGM files may hold several images one after another. Headerless captures are raw 8 bit luminance (.y8)
+ * or 24 bit RGB (.rgb) frames of a known size, as many as fit in the file. Reading a frame copies it from the
+ * mapping into a plane the caller owns, so frames can be read from any thread in any order.
+ * Files up to 2 GB are mapped once, larger ones a frame at a time. Close the file once every frame has been read.
+ */
+public final class RawFrames {
+    /**
+     * Pixel layouts of a frame file.
+     */
+    public enum Layout {
+        PGM("pgm", 1), Y8("y8", 1), RGB("rgb", 3);
+
+        /** File extension the layout is recognised by, without the dot. */
+        public final String extension;
+        /** Bytes per pixel. */
+        public final int depth;
+
+        Layout(String extension, int depth) {
+            this.extension = extension;
+            this.depth = depth;
+        }
+
+        /**
+         * @param file File to look at.
+         * @return Layout matching the file's extension, null if it is not a frame file.
+         */
+        public static Layout Of(File file) {
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            for (Layout layout : values()) {
+                if (name.endsWith("." + layout.extension)) {
+                    return layout;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final File file;
+    private final Layout layout;
+    private final FileChannel channel;
+    /** The whole file, null when it is too big to map at once. */
+    private final MappedByteBuffer mapped;
+    private final long[] offsets;
+    private final int[] widths;
+    private final int[] heights;
+
+    private RawFrames(File file, Layout layout, FileChannel channel, MappedByteBuffer mapped, long[] offsets,
+                      int[] widths, int[] heights) {
+        this.file = file;
+        this.layout = layout;
+        this.channel = channel;
+        this.mapped = mapped;
+        this.offsets = offsets;
+        this.widths = widths;
+        this.heights = heights;
+    }
+
+    /**
+     * Maps a frame file and finds its frames.
+     * @param file File ending in .pgm, .y8 or .rgb.
+     * @param rawWidth int width of headerless frames, ignored for PGM.
+     * @param rawHeight int height of headerless frames, ignored for PGM.
+     * @return RawFrames over the file.
+     * @throws IOException if the file cannot be mapped, is not a frame file or holds no whole frame.
+     */
+    public static RawFrames Open(File file, int rawWidth, int rawHeight) throws IOException {
+        Layout layout = Layout.Of(file);
+        if (layout == null) {
+            throw new IOException("Not a frame file: " + file);
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            MappedByteBuffer mapped = (length <= Integer.MAX_VALUE)
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, length) : null;
+
+            long[] offsets;
+            int[] widths;
+            int[] heights;
+            if (layout == Layout.PGM) {
+                PgmScan scan = new PgmScan(channel, mapped, length);
+                offsets = scan.offsets;
+                widths = scan.widths;
+                heights = scan.heights;
+            } else {
+                if (rawWidth <= 0 || rawHeight <= 0) {
+                    throw new IOException("Frame size needed for " + file + ", set --raw-size");
+                }
+                long frameBytes = (long) rawWidth * rawHeight * layout.depth;
+                int count = (int) Math.min(Integer.MAX_VALUE, length / frameBytes);
+                offsets = new long[count];
+                for (int f = 0; f < count; f++) {
+                    offsets[f] = f * frameBytes;
+                }
+                widths = new int[count];
+                heights = new int[count];
+                Arrays.fill(widths, rawWidth);
+                Arrays.fill(heights, rawHeight);
+            }
+            if (offsets.length == 0) {
+                throw new IOException("No whole frame in " + file);
+            }
+            return new RawFrames(file, layout, channel, mapped, offsets, widths, heights);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Headers of the images in a PGM file. Only binary (P5) images of up to 8 bits are accepted.
+     */
+    private static final class PgmScan {
+        private final FileChannel channel;
+        private final MappedByteBuffer mapped;
+        private final long length;
+        private long position;
+
+        long[] offsets = new long[0];
+        int[] widths = new int[0];
+        int[] heights = new int[0];
+
+        PgmScan(FileChannel channel, MappedByteBuffer mapped, long length) throws IOException {
+            this.channel = channel;
+            this.mapped = mapped;
+            this.length = length;
+
+            int count = 0;
+            while (SkipWhitespace() < length) {
+                if (Next() != 'P' || Next() != '5') {
+                    throw new IOException("Not a binary PGM image at byte " + (position - 2));
+                }
+                int width = Number();
+                int height = Number();
+                int maxValue = Number();
+                if (width <= 0 || height <= 0 || maxValue <= 0 || maxValue > 255) {
+                    throw new IOException("Unsupported PGM image " + width + "x" + height + " max " + maxValue);
+                }
+                // A single whitespace byte separates the header from the pixels
+                position++;
+                if (position + (long) width * height > length) {
+                    break;
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, Math.max(4, count * 2));
+                    widths = Arrays.copyOf(widths, offsets.length);
+                    heights = Arrays.copyOf(heights, offsets.length);
+                }
+                offsets[count] = position;
+                widths[count] = width;
+                heights[count] = height;
+                count++;
+                position += (long) width * height;
+            }
+            offsets = Arrays.copyOf(offsets, count);
+            widths = Arrays.copyOf(widths, count);
+            heights = Arrays.copyOf(heights, count);
+        }
+
+        private int Peek() throws IOException {
+            if (position >= length) {
+                return -1;
+            }
+            if (mapped != null) {
+                return mapped.get((int) position) & 0xFF;
+            }
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, position);
+            return one.get(0) & 0xFF;
+        }
+
+        private int Next() throws IOException {
+            int b = Peek();
+            position++;
+            return b;
+        }
+
+        /**
+         * Skips whitespace and # comments.
+         * @return long position of the next token.
+         */
+        private long SkipWhitespace() throws IOException {
+            int b;
+            while ((b = Peek()) >= 0) {
+                if (b == '#') {
+                    while ((b = Peek()) >= 0 && b != '\n' && b != '\r') {
+                        position++;
+                    }
+                } else if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B) {
+                    position++;
+                } else {
+                    break;
+                }
+            }
+            return position;
+        }
+
+        private int Number() throws IOException {
+            SkipWhitespace();
+            long value = 0;
+            int digits = 0;
+            int b;
+            while ((b = Peek()) >= '0' && b <= '9' && value <= Integer.MAX_VALUE) {
+                value = value * 10 + (b - '0');
+                digits++;
+                position++;
+            }
+            if (digits == 0 || value > Integer.MAX_VALUE) {
+                throw new IOException("Malformed PGM header at byte " + position);
+            }
+            return (int) value;
+        }
+    }
+
+    /**
+     * @param file File to look at.
+     * @return true if the file is read as frames rather than decoded as an image.
+     */
+    public static boolean IsFrameFile(File file) {
+        return Layout.Of(file) != null;
+    }
+
+    /**
+     * @return File the frames are mapped from.
+     */
+    public File Source() {
+        return file;
+    }
+
+    /**
+     * @return int number of whole frames in the file.
+     */
+    public int Count() {
+        return offsets.length;
+    }
+
+    /**
+     * @param frame int frame index.
+     * @return int width of the frame.
+     */
+    public int Width(int frame) {
+        return widths[frame];
+    }
+
+    /**
+     * @param frame int frame index.
+     * @return int height of the frame.
+     */
+    public int Height(int frame) {
+        return heights[frame];
+    }
+
+    /**
+     * @return boolean true if frames are luminance already and can skip the grayscale conversion.
+     */
+    public boolean IsGray() {
+        return layout.depth == 1;
+    }
+
+    /**
+     * Copies a luminance frame out of the mapping.
+     * @param frame int frame index.
+     * @param gray byte[] of at least width * height to copy into.
+     * @throws IllegalStateException if the frames are RGB.
+     */
+    public void ReadLuminance(int frame, byte[] gray) throws IOException {
+        if (!IsGray()) {
+            throw new IllegalStateException(file + " holds RGB frames");
+        }
+        int size = widths[frame] * heights[frame];
+        Region(frame).get(Start(frame), gray, 0, size);
+    }
+
+    /**
+     * Packs an RGB frame out of the mapping.
+     * @param frame int frame index.
+     * @param rgb int[] of at least width * height to fill with packed 0xRRGGBB pixels.
+     * @throws IllegalStateException if the frames are luminance.
+     */
+    public void ReadRgb(int frame, int[] rgb) throws IOException {
+        if (IsGray()) {
+            throw new IllegalStateException(file + " holds luminance frames");
+        }
+        int size = widths[frame] * heights[frame];
+        ByteBuffer region = Region(frame);
+        int at = Start(frame);
+        for (int i = 0; i < size; i++, at += 3) {
+            rgb[i] = ((region.get(at) & 0xFF) << 16) | ((region.get(at + 1) & 0xFF) << 8)
+                    | (region.get(at + 2) & 0xFF);
+        }
+    }
+
+    private ByteBuffer Region(int frame) throws IOException {
+        if (mapped != null) {
+            return mapped;
+        }
+        long bytes = (long) widths[frame] * heights[frame] * layout.depth;
+        return channel.map(FileChannel.MapMode.READ_ONLY, offsets[frame], bytes);
+    }
+
+    private int Start(int frame) {
+        return (mapped != null) ? (int) offsets[frame] : 0;
+    }
+
+    /**
+     * Closes the file. Mappings already made stay readable until they are collected.
+     */
+    public void Close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + " (" + offsets.length + " " + layout.extension + " frames)";
+    }
+}
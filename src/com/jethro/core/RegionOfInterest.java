@@ -0,0 +1,121 @@
+package com.jethro.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The part of a frame circles may be in: one or more rectangles, a mask of the pixels inside, or both, in which case
+ * a pixel must be in a rectangle and in the mask. A detector with a region runs its stages on a crop around each
+ * rectangle, or around the mask's bounding box, and only lets edge pixels inside the region vote.
+ */
+public final class RegionOfInterest {
+    /** Rectangles as {x, y, width, height} in frame pixels. */
+    private final List<int[]> rectangles;
+    /** Mask plane, nonzero inside the region, null for rectangles alone. */
+    private final byte[] mask;
+    private final int maskWidth;
+    private final int maskHeight;
+
+    /**
+     * @param rectangles List of {x, y, width, height} rectangles, empty to use the mask's bounding box.
+     * @param mask byte[] plane that is nonzero inside the region, null to use the rectangles alone.
+     * @param maskWidth int width of the mask, and of the frames it is used with.
+     * @param maskHeight int height of the mask, and of the frames it is used with.
+     * @throws IllegalArgumentException if there are neither rectangles nor a mask, or a rectangle is empty.
+     */
+    public RegionOfInterest(List<int[]> rectangles, byte[] mask, int maskWidth, int maskHeight) {
+        if (rectangles.isEmpty() && mask == null) {
+            throw new IllegalArgumentException("A region needs a rectangle or a mask");
+        }
+        for (int[] rectangle : rectangles) {
+            if (rectangle.length != 4 || rectangle[2] <= 0 || rectangle[3] <= 0) {
+                throw new IllegalArgumentException("A region rectangle needs a positive width and height");
+            }
+        }
+        this.rectangles = Collections.unmodifiableList(new ArrayList<>(rectangles));
+        this.mask = mask;
+        this.maskWidth = maskWidth;
+        this.maskHeight = maskHeight;
+    }
+
+    /**
+     * @param width int width of the frame.
+     * @param height int height of the frame.
+     * @return List of {x, y, width, height} boxes to run the stages on, clipped to the frame. Boxes that miss the
+     * frame, or hold no mask pixel, are left out.
+     * @throws IllegalArgumentException if the mask is not the size of the frame.
+     */
+    List<int[]> Boxes(int width, int height) {
+        if (mask != null && (maskWidth != width || maskHeight != height)) {
+            throw new IllegalArgumentException("The mask is " + maskWidth + "x" + maskHeight + " but the frame is "
+                    + width + "x" + height);
+        }
+        List<int[]> boxes = new ArrayList<>();
+        if (rectangles.isEmpty()) {
+            AddMaskBounds(0, 0, width, height, boxes);
+            return boxes;
+        }
+        for (int[] rectangle : rectangles) {
+            int x0 = Math.max(0, rectangle[0]);
+            int y0 = Math.max(0, rectangle[1]);
+            int x1 = Math.min(width, rectangle[0] + rectangle[2]);
+            int y1 = Math.min(height, rectangle[1] + rectangle[3]);
+            if (x0 >= x1 || y0 >= y1) {
+                continue;
+            }
+            if (mask == null) {
+                boxes.add(new int[]{x0, y0, x1 - x0, y1 - y0});
+            } else {
+                AddMaskBounds(x0, y0, x1, y1, boxes);
+            }
+        }
+        return boxes;
+    }
+
+    /**
+     * Adds the bounding box of the mask pixels within [x0, x1) by [y0, y1), if there are any.
+     */
+    private void AddMaskBounds(int x0, int y0, int x1, int y1, List<int[]> boxes) {
+        int minX = x1;
+        int minY = y1;
+        int maxX = x0 - 1;
+        int maxY = y0 - 1;
+        for (int y = y0; y < y1; y++) {
+            int row = y * maskWidth;
+            for (int x = x0; x < x1; x++) {
+                if (mask[row + x] != 0) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = y;
+                }
+            }
+        }
+        if (maxX >= minX) {
+            boxes.add(new int[]{minX, minY, maxX - minX + 1, maxY - minY + 1});
+        }
+    }
+
+    /**
+     * Marks the pixels of a crop that may vote: those in the box and in the mask.
+     * @param box int[] {x, y, width, height} box from Boxes.
+     * @param cropX int frame column of the crop's left edge.
+     * @param cropY int frame row of the crop's top edge.
+     * @param cropWidth int width of the crop.
+     * @param cropHeight int height of the crop.
+     * @return byte[] crop plane, 1 where a pixel may vote and 0 elsewhere.
+     */
+    byte[] VoteMask(int[] box, int cropX, int cropY, int cropWidth, int cropHeight) {
+        byte[] voteMask = new byte[cropWidth * cropHeight];
+        for (int y = box[1]; y < box[1] + box[3]; y++) {
+            int row = (y - cropY) * cropWidth - cropX;
+            for (int x = box[0]; x < box[0] + box[2]; x++) {
+                if (mask == null || mask[y * maskWidth + x] != 0) {
+                    voteMask[row + x] = 1;
+                }
+            }
+        }
+        return voteMask;
+    }
+}
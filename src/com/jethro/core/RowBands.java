@@ -0,0 +1,91 @@
+package com.jethro.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a plane into horizontal bands of rows and runs them on a ForkJoinPool. Stages read their input plane in
+ * full, so the halo rows a kernel needs above and below its band are always available and each band only writes
+ * its own rows.
+ */
+final class RowBands {
+    /** Bands smaller than this are not split any further. */
+    private static final int MIN_ROWS = 8;
+
+    interface Body {
+        /**
+         * Processes rows y0 (inclusive) to y1 (exclusive).
+         */
+        void Run(int y0, int y1);
+    }
+
+    interface Part {
+        /**
+         * Processes part p.
+         */
+        void Run(int p);
+    }
+
+    private RowBands() {
+    }
+
+    /**
+     * Runs body over every row of a plane. Falls back to a single serial call when pool is null or single threaded.
+     * @param pool ForkJoinPool to run the bands on, may be null.
+     * @param height int number of rows in the plane.
+     * @param body Body to run for each band.
+     */
+    static void ForEach(ForkJoinPool pool, int height, Body body) {
+        if (pool == null || pool.getParallelism() <= 1 || height < 2 * MIN_ROWS) {
+            body.Run(0, height);
+            return;
+        }
+        int grain = Math.max(MIN_ROWS, height / (pool.getParallelism() * 4));
+        pool.invoke(new BandTask(body, 0, height, grain));
+    }
+
+    /**
+     * Runs body once for each of a few coarse parts of a job, in parallel when the pool allows.
+     * @param pool ForkJoinPool to run the parts on, may be null.
+     * @param parts int number of parts.
+     * @param body Part to run for each part.
+     */
+    static void ForEachPart(ForkJoinPool pool, int parts, Part body) {
+        Body each = (p0, p1) -> {
+            for (int p = p0; p < p1; p++) {
+                body.Run(p);
+            }
+        };
+        if (pool == null || pool.getParallelism() <= 1 || parts < 2) {
+            each.Run(0, parts);
+            return;
+        }
+        pool.invoke(new BandTask(each, 0, parts, 1));
+    }
+
+    private static final class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Body body;
+        private final int y0;
+        private final int y1;
+        private final int grain;
+
+        BandTask(Body body, int y0, int y1, int grain) {
+            this.body = body;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 <= grain) {
+                body.Run(y0, y1);
+                return;
+            }
+            int mid = (y0 + y1) >>> 1;
+            invokeAll(new BandTask(body, y0, mid, grain), new BandTask(body, mid, y1, grain));
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.jethro.core;
+
+/**
+ * A region the Hough stage should search for one predicted circle: centers within margin pixels of (x, y) and radii
+ * from minRadius to maxRadius inclusive.
+ */
+public final class SearchWindow {
+    public final int x;
+    public final int y;
+    public final int margin;
+    public final int minRadius;
+    public final int maxRadius;
+
+    public SearchWindow(int x, int y, int margin, int minRadius, int maxRadius) {
+        this.x = x;
+        this.y = y;
+        this.margin = margin;
+        this.minRadius = minRadius;
+        this.maxRadius = maxRadius;
+    }
+}
@@ -0,0 +1,37 @@
+package com.jethro.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event covering one pipeline stage of one frame. The event's own duration is the stage's wall time.
+ */
+@Name("com.jethro.Stage")
+@Label("Detector Stage")
+@Category({"Hough Detector"})
+@Description("One pipeline stage of a circle detection")
+final class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("CPU Time")
+    @Description("CPU time of the detecting thread, pool threads are not included")
+    @Timespan(Timespan.NANOSECONDS)
+    long cpuTime;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the detecting thread, pool threads are not included")
+    @DataAmount
+    long allocated;
+}
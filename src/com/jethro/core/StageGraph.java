@@ -0,0 +1,242 @@
+package com.jethro.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The detection chain of one frame as memoized stages, for tuning parameters on it. Every stage keeps its output
+ * along with the parameters it was made with, and Run only reruns the first stage that reads a changed parameter
+ * (see DetectorParams.StageKey) and the stages after it: a new score ratio only refilters the circles, new
+ * thresholds rerun non-maximal suppression onwards. Sobel and the suppression comparisons are kept apart from the
+ * thresholds, so new thresholds do not redo the gradients.
+ * Every run writes new planes, so results handed out earlier stay valid. Always searches the whole frame at full
+ * resolution, the pyramid settings are not used. Not thread safe.
+ */
+public final class StageGraph {
+    private final ForkJoinPool pool;
+    private final byte[] grayscale;
+    private final int width;
+    private final int height;
+    private final FrameBuffers buffers = new FrameBuffers();
+
+    /** Parameters of the current outputs, null before the first run. */
+    private DetectorParams made;
+    /** Last stage whose output is current, null if none is. */
+    private PipelineStage done;
+
+    private byte[] blurred;
+    private int[] xGradient;
+    private int[] yGradient;
+    private byte[] magnitude;
+    /** The gradient planes are only set at the edge candidates, which is enough to vote but not to suppress. */
+    private boolean sparseGradients;
+    /** Suppression candidate codes of the current gradients, null until they are needed. */
+    private byte[] codes;
+    private byte[] labels;
+    private byte[] edges;
+    /** Edge list of the current edges, null until it is needed. */
+    private EdgeList edgeList;
+    private long votes;
+    private int[] accumulator;
+    private List<int[]> centers;
+    /** Best radius and score of each center before the weak circles are dropped, null until they are needed. */
+    private int[] bestRadii;
+    private int[] bestScores;
+    /** Radius parameters the best radii were found with. */
+    private String radiiKey;
+    private List<Circle> circles;
+
+    /**
+     * @param pool ForkJoinPool to run the stages on, null to run them serially.
+     * @param grayscale byte[] unsigned luminance plane of the frame.
+     * @param width int width of the plane.
+     * @param height int height of the plane.
+     */
+    public StageGraph(ForkJoinPool pool, byte[] grayscale, int width, int height) {
+        this.pool = pool;
+        this.grayscale = grayscale;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Starts from a finished detection, so a first run with new parameters only reruns what they change.
+     * @param pool ForkJoinPool to run the stages on, null to run them serially.
+     * @param result DetectionResult of the frame, with every plane.
+     * @param params DetectorParams the result was detected with.
+     */
+    public StageGraph(ForkJoinPool pool, DetectionResult result, DetectorParams params) {
+        this(pool, result.grayscale, result.width, result.height);
+        if (result.edges == null || result.blurred == null) {
+            return;
+        }
+        made = params.Copy();
+        blurred = result.blurred;
+        xGradient = result.xGradient;
+        yGradient = result.yGradient;
+        magnitude = result.magnitude;
+        sparseGradients = result.sparseGradients;
+        labels = result.labels;
+        edges = result.edges;
+        done = PipelineStage.HYSTERESIS;
+        if (params.pyramidLevels == 0 && result.accumulator != null) {
+            // A pyramid result only voted in its refinement windows, so its Hough stages do not carry over
+            accumulator = result.accumulator;
+            centers = result.centers;
+            circles = result.circles;
+            done = PipelineStage.RADII;
+        }
+    }
+
+    /**
+     * @param params DetectorParams to run with next.
+     * @return PipelineStage of the first stage Run would rerun, null if the outputs are current.
+     */
+    public PipelineStage Stale(DetectorParams params) {
+        if (made == null || done == null) {
+            return PipelineStage.BLUR;
+        }
+        PipelineStage changed = params.FirstChanged(made);
+        PipelineStage next = (done == PipelineStage.RADII) ? null : PipelineStage.values()[done.ordinal() + 1];
+        if (changed == null || next == null) {
+            return (changed == null) ? next : changed;
+        }
+        return (changed.compareTo(next) < 0) ? changed : next;
+    }
+
+    /**
+     * Brings every stage up to date with the parameters.
+     * @param params DetectorParams to run with.
+     * @param listener StageListener to report each stage that runs to, null to not report them.
+     * @return DetectionResult of the frame. Its profile only measures the stages that ran.
+     */
+    public DetectionResult Run(DetectorParams params, StageListener listener) {
+        FrameProfile profile = FrameProfile.Create(width, height, true);
+        PipelineStage from = Stale(params);
+        if (from == null) {
+            profile.Finish(circles.size());
+            return Result(profile);
+        }
+        made = params.Copy();
+        done = (from == PipelineStage.BLUR) ? null : PipelineStage.values()[from.ordinal() - 1];
+        int size = width * height;
+
+        if (from.compareTo(PipelineStage.BLUR) <= 0) {
+            FrameProfile.Begin(profile);
+            blurred = new byte[size];
+            CircleDetector.GaussianBlur(pool, grayscale, new byte[size], blurred, width, height, params.blurSize,
+                    params.blurSigma);
+            FrameProfile.End(profile, PipelineStage.BLUR);
+            xGradient = null;
+            Done(PipelineStage.BLUR, listener, profile);
+        }
+
+        if (from.compareTo(PipelineStage.NON_MAXIMAL) <= 0) {
+            if (xGradient == null || sparseGradients) {
+                FrameProfile.Begin(profile);
+                xGradient = new int[size];
+                yGradient = new int[size];
+                magnitude = new byte[size];
+                sparseGradients = false;
+                codes = null;
+                CircleDetector.SobelFilter(pool, blurred, width, height, xGradient, yGradient, magnitude);
+                FrameProfile.End(profile, PipelineStage.SOBEL);
+                Done(PipelineStage.SOBEL, listener, profile);
+            }
+            FrameProfile.Begin(profile);
+            if (codes == null) {
+                codes = new byte[size];
+                CircleDetector.NonMaximalCandidates(pool, magnitude, xGradient, yGradient, width, height, codes);
+            }
+            labels = Arrays.copyOf(codes, size);
+            CircleDetector.ResolveNonMaximal(magnitude, width, labels, params.lowThreshold, params.highThreshold);
+            FrameProfile.End(profile, PipelineStage.NON_MAXIMAL);
+            Done(PipelineStage.NON_MAXIMAL, listener, profile);
+        }
+
+        if (from.compareTo(PipelineStage.HYSTERESIS) <= 0) {
+            FrameProfile.Begin(profile);
+            edges = new byte[size];
+            CircleDetector.Hysteresis(pool, labels, width, height, edges);
+            edgeList = new EdgeList();
+            edgeList.Collect(pool, edges, xGradient, yGradient, width, height);
+            FrameProfile.End(profile, PipelineStage.HYSTERESIS);
+            Done(PipelineStage.HYSTERESIS, listener, profile);
+        }
+
+        if (from.compareTo(PipelineStage.VOTING) <= 0) {
+            FrameProfile.Begin(profile);
+            CollectEdges();
+            accumulator = new int[size];
+            votes = CircleDetector.Vote(pool, edgeList, width, height, params, accumulator, buffers);
+            FrameProfile.End(profile, PipelineStage.VOTING);
+            Done(PipelineStage.VOTING, listener, profile);
+        }
+
+        if (from.compareTo(PipelineStage.PEAKS) <= 0) {
+            FrameProfile.Begin(profile);
+            centers = new ArrayList<>();
+            CircleDetector.Peaks(pool, accumulator, width, height, params, centers, buffers);
+            bestRadii = null;
+            FrameProfile.End(profile, PipelineStage.PEAKS);
+            Done(PipelineStage.PEAKS, listener, profile);
+        }
+
+        FrameProfile.Begin(profile);
+        String key = params.minRadius + "-" + params.maxRadius;
+        if (bestRadii == null || !key.equals(radiiKey)) {
+            CollectEdges();
+            bestRadii = new int[centers.size()];
+            bestScores = new int[centers.size()];
+            CircleDetector.EstimateRadii(edgeList, width, height, centers, params, bestRadii, bestScores, buffers);
+            radiiKey = key;
+        }
+        circles = new ArrayList<>();
+        CircleDetector.KeepStrongest(centers, bestRadii, bestScores, params.scoreRatio, circles);
+        FrameProfile.End(profile, PipelineStage.RADII);
+        done = PipelineStage.RADII;
+
+        profile.edgePixels = edgeList.count;
+        profile.votes = votes;
+        profile.centers = centers.size();
+        profile.Finish(circles.size());
+        DetectionResult result = Result(profile);
+        if (listener != null) {
+            listener.StageDone(PipelineStage.RADII, result);
+        }
+        return result;
+    }
+
+    private void Done(PipelineStage stage, StageListener listener, FrameProfile profile) {
+        done = stage;
+        if (listener != null) {
+            listener.StageDone(stage, Result(profile));
+        }
+    }
+
+    private void CollectEdges() {
+        if (edgeList != null) {
+            return;
+        }
+        edgeList = new EdgeList();
+        edgeList.Collect(pool, edges, xGradient, yGradient, width, height);
+    }
+
+    /**
+     * @return DetectionResult with the planes of the stages up to done, the others null.
+     */
+    private DetectionResult Result(FrameProfile profile) {
+        boolean gradients = After(PipelineStage.SOBEL) && xGradient != null;
+        return new DetectionResult(width, height, grayscale, After(PipelineStage.BLUR) ? blurred : null,
+                gradients ? xGradient : null, gradients ? yGradient : null, gradients ? magnitude : null,
+                sparseGradients, After(PipelineStage.NON_MAXIMAL) ? labels : null,
+                After(PipelineStage.HYSTERESIS) ? edges : null, After(PipelineStage.VOTING) ? accumulator : null,
+                After(PipelineStage.PEAKS) ? centers : null, After(PipelineStage.RADII) ? circles : null, profile);
+    }
+
+    private boolean After(PipelineStage stage) {
+        return done != null && done.compareTo(stage) >= 0;
+    }
+}
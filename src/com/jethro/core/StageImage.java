@@ -0,0 +1,85 @@
+package com.jethro.core;
+
+import java.awt.image.BufferedImage;
+import java.util.EnumSet;
+import java.util.function.Function;
+
+/**
+ * The stage visualizations that can be shown or written out, in pipeline order. None of them are needed for
+ * detection, so they are only rendered when a consumer asks for one.
+ */
+public enum StageImage {
+    GRAYSCALE("grayscale", "grayscale", PipelineStage.GRAYSCALE,
+            r -> ImagePlanes.LuminanceImage(r.grayscale, r.width, r.height)),
+    BLURRED("blurred", "blurred", PipelineStage.BLUR, r -> ImagePlanes.LuminanceImage(r.blurred, r.width, r.height)),
+    X_GRADIENT("xgradient", "xgradient", PipelineStage.SOBEL,
+            r -> ImagePlanes.GradientImage(r.WithDenseGradients().xGradient, r.width, r.height)),
+    Y_GRADIENT("ygradient", "ygradient", PipelineStage.SOBEL,
+            r -> ImagePlanes.GradientImage(r.WithDenseGradients().yGradient, r.width, r.height)),
+    SOBEL_EDGES("sobel", "sobel-edges", PipelineStage.SOBEL,
+            r -> ImagePlanes.LuminanceImage(r.WithDenseGradients().magnitude, r.width, r.height)),
+    NON_MAX("nms", "non-max-edges", PipelineStage.NON_MAXIMAL,
+            r -> ImagePlanes.NonMaxImage(r.labels, r.width, r.height)),
+    FILTERED_NMS("filtered", "non-maxfiltered-edges", PipelineStage.HYSTERESIS,
+            r -> ImagePlanes.FilteredImage(r.labels, r.edges, r.width, r.height)),
+    HYSTERESIS("hysteresis", "hysteresis", PipelineStage.HYSTERESIS,
+            r -> ImagePlanes.EdgeImage(r.edges, r.width, r.height)),
+    HOUGH_LINES("hough", "hough-lines", PipelineStage.VOTING, ImagePlanes::HoughImage),
+    FOUND_CIRCLES("circles", "foundCircles", PipelineStage.RADII, ImagePlanes::CircleImage);
+
+    /** Name used to ask for the stage, as in --emit=circles,hysteresis. */
+    public final String emitName;
+    /** Suffix used when the stage is written out next to its input. */
+    public final String fileSuffix;
+    /** Pipeline stage after which the planes this image is rendered from are complete. */
+    public final PipelineStage stage;
+    private final Function<DetectionResult, BufferedImage> renderer;
+
+    StageImage(String emitName, String fileSuffix, PipelineStage stage,
+               Function<DetectionResult, BufferedImage> renderer) {
+        this.emitName = emitName;
+        this.fileSuffix = fileSuffix;
+        this.stage = stage;
+        this.renderer = renderer;
+    }
+
+    /**
+     * Parses a comma separated list of stage names. "all" selects every stage and "none" or an empty list selects
+     * none.
+     * @param list String of emit names or file suffixes.
+     * @return EnumSet of the stages named.
+     * @throws IllegalArgumentException if a name is unknown.
+     */
+    public static EnumSet<StageImage> ParseList(String list) {
+        EnumSet<StageImage> stages = EnumSet.noneOf(StageImage.class);
+        for (String name : list.split(",")) {
+            name = name.trim();
+            if (name.isEmpty() || name.equals("none")) {
+                continue;
+            }
+            if (name.equals("all")) {
+                stages.addAll(EnumSet.allOf(StageImage.class));
+                continue;
+            }
+            StageImage match = null;
+            for (StageImage stage : values()) {
+                if (stage.emitName.equals(name) || stage.fileSuffix.equals(name)) {
+                    match = stage;
+                }
+            }
+            if (match == null) {
+                throw new IllegalArgumentException("Unknown stage image: " + name);
+            }
+            stages.add(match);
+        }
+        return stages;
+    }
+
+    /**
+     * @param result DetectionResult to render the stage from.
+     * @return BufferedImage visualization of this stage.
+     */
+    public BufferedImage Render(DetectionResult result) {
+        return renderer.apply(result);
+    }
+}
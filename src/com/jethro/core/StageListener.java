@@ -0,0 +1,16 @@
+package com.jethro.core;
+
+/**
+ * Receives the planes of a detection as its stages finish, so they can be shown before the whole detection is done.
+ */
+public interface StageListener {
+    /**
+     * Called on the detecting thread after a stage. Stages taken from a cache are reported together once they are
+     * all known, and the coarse levels of a pyramid search are not reported. May throw an unchecked exception, such
+     * as a CancellationException, to abandon the detection.
+     * @param stage PipelineStage that just finished, RADII once the detection is complete.
+     * @param partial DetectionResult holding the planes made so far, the others are null. The planes are the ones the
+     *                final result will hold.
+     */
+    void StageDone(PipelineStage stage, DetectionResult partial);
+}
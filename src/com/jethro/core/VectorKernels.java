@@ -0,0 +1,181 @@
+package com.jethro.core;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API versions of the grayscale, blur and Sobel inner loops, a whole vector of pixels at a time. Each kernel
+ * only does the pixels whose samples are all in the row or plane and returns where it stopped, and the caller runs
+ * its scalar loop over the rest, so the clamped and zero borders stay in the scalar code. Every kernel gives the same
+ * result as the scalar loop it stands in for, bit for bit. They stay in int lanes: conversions between int and
+ * floating point lanes are not compiled to vector instructions on JDK 17 and run far slower than the scalar loops.
+ * This class uses the jdk.incubator.vector module and must only be loaded when CircleDetector.VECTOR is set.
+ */
+final class VectorKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    /** Bytes with one lane per lane of INTS. */
+    private static final VectorSpecies<Byte> INT_BYTES = VectorSpecies.of(byte.class,
+            VectorShape.forBitSize(Math.max(64, INTS.length() * 8)));
+    /** Ints per vector. */
+    static final int LANES = INTS.length();
+
+    /** Fraction bits of the fixed-point blur weights. A weight below 1 times a sample below 256 fits in an int. */
+    static final int WEIGHT_SHIFT = 22;
+
+    private VectorKernels() {
+    }
+
+    /**
+     * @return true if the preferred vectors hold at least 8 ints, below that the kernels are not worth it.
+     */
+    static boolean Usable() {
+        return LANES >= 8;
+    }
+
+    /**
+     * Vector part of CircleDetector.ImageToGrayscale.
+     * @param rgb int[] packed 0xRRGGBB source pixels.
+     * @param gray byte[] to be filled with the luminance of each pixel.
+     * @param from int first pixel to convert.
+     * @param to int pixel after the last one to convert.
+     * @return int first pixel left for the scalar loop.
+     */
+    static int Grayscale(int[] rgb, byte[] gray, int from, int to) {
+        int i = from;
+        for (; i <= to - LANES; i += LANES) {
+            IntVector c = IntVector.fromArray(INTS, rgb, i);
+            IntVector r = c.lanewise(VectorOperators.LSHR, 16).and(0xFF).mul(CircleDetector.GRAY_RED);
+            IntVector g = c.lanewise(VectorOperators.LSHR, 8).and(0xFF).mul(CircleDetector.GRAY_GREEN);
+            IntVector b = c.and(0xFF).mul(CircleDetector.GRAY_BLUE);
+            StoreBytes(r.add(g).add(b).lanewise(VectorOperators.LSHR, CircleDetector.GRAY_SHIFT), gray, i);
+        }
+        return i;
+    }
+
+    /**
+     * Finds fixed-point weights for a convolution filter: for every tap and every sample from 0 to 255,
+     * (sample * weight) >> WEIGHT_SHIFT equals the scalar (int) (sample * filter[f]). Each weight is the filter
+     * value scaled up and rounded up, or failing that down, and checked against every sample.
+     * @param filter double[] filter taps, each from 0 to 1.
+     * @return int[] weight of each tap, null if a tap has no exact weight.
+     */
+    static int[] FixedPointWeights(double[] filter) {
+        int[] weights = new int[filter.length];
+        for (int f = 0; f < filter.length; f++) {
+            if (!(filter[f] >= 0 && filter[f] <= 1)) {
+                return null;
+            }
+            double scaled = filter[f] * (1 << WEIGHT_SHIFT);
+            int up = (int) Math.ceil(scaled);
+            int down = (int) Math.floor(scaled);
+            if (IsExactWeight(filter[f], up)) {
+                weights[f] = up;
+            } else if (IsExactWeight(filter[f], down)) {
+                weights[f] = down;
+            } else {
+                return null;
+            }
+        }
+        return weights;
+    }
+
+    private static boolean IsExactWeight(double tap, int weight) {
+        for (int sample = 0; sample < 256; sample++) {
+            if (((sample * weight) >> WEIGHT_SHIFT) != (int) (sample * tap)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Vector part of the horizontal pass of CircleDetector.OneWayConvolve, the pixels whose taps all fall inside
+     * the row.
+     * @param src byte[] luminance plane.
+     * @param dst byte[] to be filled with the convolved plane.
+     * @param row int index of the row's first pixel.
+     * @param width int width of the plane.
+     * @param weights int[] fixed-point weights from FixedPointWeights.
+     * @return int first column after the ones done here, from weights.length / 2 up.
+     */
+    static int ConvolveRow(byte[] src, byte[] dst, int row, int width, int[] weights) {
+        int half = weights.length / 2;
+        int x = Math.min(half, width);
+        for (; x + LANES + half <= width; x += LANES) {
+            IntVector sum = IntVector.zero(INTS);
+            for (int f = 0; f < weights.length; f++) {
+                sum = sum.add(LoadUnsigned(src, row + x + f - half).mul(weights[f])
+                        .lanewise(VectorOperators.ASHR, WEIGHT_SHIFT));
+            }
+            StoreBytes(sum, dst, row + x);
+        }
+        return x;
+    }
+
+    /**
+     * Vector part of the vertical pass of CircleDetector.OneWayConvolve. The caller clamps the tap rows, so every
+     * column can be done here.
+     * @param src byte[] luminance plane.
+     * @param dst byte[] to be filled with the convolved plane.
+     * @param tapRows int[] index of the first pixel of the row each tap reads.
+     * @param row int index of the first pixel of the row to write.
+     * @param width int width of the plane.
+     * @param weights int[] fixed-point weights from FixedPointWeights.
+     * @return int first column left for the scalar loop.
+     */
+    static int ConvolveColumns(byte[] src, byte[] dst, int[] tapRows, int row, int width, int[] weights) {
+        int x = 0;
+        for (; x <= width - LANES; x += LANES) {
+            IntVector sum = IntVector.zero(INTS);
+            for (int f = 0; f < weights.length; f++) {
+                sum = sum.add(LoadUnsigned(src, tapRows[f] + x).mul(weights[f])
+                        .lanewise(VectorOperators.ASHR, WEIGHT_SHIFT));
+            }
+            StoreBytes(sum, dst, row + x);
+        }
+        return x;
+    }
+
+    /**
+     * Vector part of the Sobel row kernel, CircleDetector.SobelRow, from column 1 on: the x and y gradients only.
+     * Their magnitude is left to the caller, a vector integer square root costs more than the scalar one.
+     * @param src byte[] blurred luminance plane.
+     * @param width int width of the plane.
+     * @param y int row to filter, not a border row.
+     * @param xOut int[] to hold the x gradient.
+     * @param yOut int[] to hold the y gradient.
+     * @param offset int index in the outputs of the row's first pixel.
+     * @return int first column left for the scalar loop.
+     */
+    static int SobelGradients(byte[] src, int width, int y, int[] xOut, int[] yOut, int offset) {
+        int x = 1;
+        for (; x + LANES <= width - 1; x += LANES) {
+            int i = y * width + x;
+            IntVector nw = LoadUnsigned(src, i - width - 1);
+            IntVector n = LoadUnsigned(src, i - width);
+            IntVector ne = LoadUnsigned(src, i - width + 1);
+            IntVector w = LoadUnsigned(src, i - 1);
+            IntVector e = LoadUnsigned(src, i + 1);
+            IntVector sw = LoadUnsigned(src, i + width - 1);
+            IntVector s = LoadUnsigned(src, i + width);
+            IntVector se = LoadUnsigned(src, i + width + 1);
+
+            IntVector xVal = ne.add(e.add(e)).add(se).sub(nw.add(w.add(w)).add(sw));
+            IntVector yVal = sw.add(s.add(s)).add(se).sub(nw.add(n.add(n)).add(ne));
+            xVal.intoArray(xOut, offset + x);
+            yVal.intoArray(yOut, offset + x);
+        }
+        return x;
+    }
+
+    private static IntVector LoadUnsigned(byte[] src, int i) {
+        return ((IntVector) ByteVector.fromArray(INT_BYTES, src, i).castShape(INTS, 0)).and(0xFF);
+    }
+
+    private static void StoreBytes(IntVector v, byte[] dst, int i) {
+        ((ByteVector) v.castShape(INT_BYTES, 0)).intoArray(dst, i);
+    }
+}
@@ -0,0 +1,120 @@
+package com.jethro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.jethro.core.CircleDetector;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Batch runs over a sequence made by moving one of the test images around.
+ */
+class BatchRunnerTest {
+    private static final File IMAGE = new File("images/testseq100007.gif");
+    /** Pixels the canvas is larger than the image by. */
+    private static final int PAD = 80;
+    private static final int FRAMES = 10;
+    /** Frame at which the image jumps well outside the tracker's search windows. */
+    private static final int JUMP = 5;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void TrackingAcrossAJumpFindsWhatFullFrameDetectionFinds() throws Exception {
+        BufferedImage image = ImageIO.read(IMAGE);
+        List<String> files = new ArrayList<>();
+        for (int f = 0; f < FRAMES; f++) {
+            File file = dir.resolve(String.format("frame-%02d.png", f)).toFile();
+            ImageIO.write(Frame(image, f), "png", file);
+            files.add(file.getPath());
+        }
+
+        Map<String, String> full = Run(files, false);
+        Map<String, String> tracked = Run(files, true);
+        assertEquals(FRAMES, full.size());
+        assertEquals(full.keySet(), tracked.keySet());
+        for (Map.Entry<String, String> frame : full.entrySet()) {
+            // Windowed voting may score a circle a vote apart, but must find the same circles and nothing else
+            assertEquals(Positions(frame.getValue()), Positions(tracked.get(frame.getKey())),
+                    frame.getKey() + ": " + tracked.get(frame.getKey()));
+        }
+    }
+
+    /**
+     * The test image on a larger canvas, drifting a few pixels a frame until JUMP, where it moves far outside the
+     * tracker's search windows.
+     */
+    private static BufferedImage Frame(BufferedImage image, int f) {
+        BufferedImage frame = new BufferedImage(image.getWidth() + PAD, image.getHeight() + PAD,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = frame.createGraphics();
+        g.setColor(new Color(image.getRGB(0, 0)));
+        g.fillRect(0, 0, frame.getWidth(), frame.getHeight());
+        int shift = (f < JUMP) ? 2 * f : PAD - 2 * (FRAMES - f);
+        g.drawImage(image, shift, shift / 2, null);
+        g.dispose();
+        return frame;
+    }
+
+    /**
+     * Runs a batch over the frames and collects what it prints.
+     * @return Map of each frame's name to its circles, in frame order.
+     */
+    private Map<String, String> Run(List<String> files, boolean track) throws InterruptedException, IOException {
+        List<String> args = new ArrayList<>(files);
+        args.add("--out=" + dir.resolve(track ? "tracked" : "full"));
+        if (track) {
+            args.add("--track");
+        }
+        CommandLine cmd = CommandLine.Parse(args.toArray(new String[0]));
+        CircleDetector detector = new CircleDetector(null, cmd.params, false);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        int failed;
+        try {
+            failed = new BatchRunner(detector, cmd).Run(cmd.ResolveInputs());
+        } finally {
+            System.setOut(out);
+        }
+        assertEquals(0, failed);
+
+        Map<String, String> frames = new TreeMap<>();
+        for (String line : bytes.toString(StandardCharsets.UTF_8).split("\n")) {
+            if (line.startsWith("frame-")) {
+                int space = line.indexOf(' ');
+                frames.put(line.substring(0, space), line.substring(space + 1).trim());
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return Set of each circle's x,y,radius, without the score.
+     */
+    private static Set<String> Positions(String circles) {
+        Set<String> positions = new TreeSet<>();
+        for (String circle : circles.isEmpty() ? new String[0] : circles.split(" ")) {
+            positions.add(circle.substring(0, circle.lastIndexOf(',')));
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,123 @@
+package com.jethro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jethro.core.CircleDetector;
+import com.jethro.core.DetectorParams;
+import com.jethro.core.ProfileReport;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Listening on a Unix socket path that is already taken, and streams whose client goes away.
+ */
+class DetectionServerTest {
+    @TempDir
+    Path dir;
+
+    private final DetectionServer server = new DetectionServer(new CircleDetector(), 1, 1, null);
+    private final PrintStream log = new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8);
+
+    @Test
+    void StopsDetectingOnceTheClientIsGone() {
+        int width = 160;
+        int height = 120;
+        int frames = 40;
+        int workers = 2;
+        byte[] stream = new byte[frames * width * height];
+        for (int i = 0; i < stream.length; i++) {
+            int x = i % width;
+            int y = (i / width) % height;
+            double r = Math.hypot(x - width / 2.0, y - height / 2.0);
+            stream[i] = (byte) ((r > 30 && r < 40) ? 200 : 30);
+        }
+        // A client that disconnects as soon as the first reply reaches it
+        OutputStream gone = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+
+        ProfileReport report = new ProfileReport();
+        DetectionServer profiled = new DetectionServer(new CircleDetector(null, new DetectorParams(), true),
+                workers, 4, report);
+        assertTimeoutPreemptively(Duration.ofSeconds(60),
+                () -> profiled.Serve(new ByteArrayInputStream(stream), gone, width, height, 1));
+
+        // Detections the workers had already started finish, no new ones start
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        report.Print(new PrintStream(printed, true, StandardCharsets.UTF_8));
+        String profile = printed.toString(StandardCharsets.UTF_8);
+        Matcher detected = Pattern.compile("Profile of (\\d+) frames").matcher(profile);
+        assertTrue(detected.find(), profile);
+        assertTrue(Integer.parseInt(detected.group(1)) < frames / 4, detected.group());
+    }
+
+    @Test
+    void LeavesAnythingButASocketAlone() throws IOException {
+        Path file = dir.resolve("file");
+        Files.writeString(file, "not a socket");
+        Path directory = Files.createDirectory(dir.resolve("directory"));
+        Path link = Files.createSymbolicLink(dir.resolve("link"), dir.resolve("missing"));
+
+        for (Path path : new Path[]{file, directory, link}) {
+            IOException e = assertThrows(IOException.class, () -> server.Listen("unix:" + path, 0, 0, 0, log));
+            assertTrue(e.getMessage().contains("not a socket"), e.getMessage());
+        }
+        assertEquals("not a socket", Files.readString(file));
+        assertTrue(Files.isDirectory(directory));
+        assertTrue(Files.isSymbolicLink(link));
+    }
+
+    @Test
+    void ReplacesAStaleSocket() throws Exception {
+        Path path = dir.resolve("socket");
+        try (ServerSocketChannel stale = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            stale.bind(UnixDomainSocketAddress.of(path));
+        }
+        assertTrue(Files.exists(path));
+
+        // Listen never returns, it is left to die with the test run
+        Thread listener = new Thread(() -> {
+            try {
+                server.Listen("unix:" + path, 0, 0, 0, log);
+            } catch (IOException e) {
+                // The connection below fails
+            }
+        }, "listen");
+        listener.setDaemon(true);
+        listener.start();
+
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (true) {
+            try (SocketChannel client = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+                assertTrue(client.isConnected());
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.jethro.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Disk cache files that were cut short or garbled must read as a miss, so the frame is detected again.
+ */
+class DetectionCacheTest {
+    @TempDir
+    Path dir;
+
+    private BufferedImage image;
+    private String expected;
+    private Path edgesFile;
+    private Path circlesFile;
+
+    @BeforeEach
+    void FillCache() throws IOException {
+        image = ImageIO.read(new File("images/testseq100000.gif"));
+        expected = Detect();
+        edgesFile = Find(".edges");
+        circlesFile = Find(".circles");
+        // Read back from disk as written
+        assertEquals(expected, Detect());
+    }
+
+    @Test
+    void EdgeFileHeaderMustFitTheFrame() throws IOException {
+        byte[] good = Files.readAllBytes(edgesFile);
+        CheckMiss(edgesFile, SetInt(good, 4, image.getWidth() + 1));
+        CheckMiss(edgesFile, SetInt(good, 12, -1));
+        CheckMiss(edgesFile, SetInt(good, 12, Integer.MAX_VALUE));
+        CheckMiss(edgesFile, SetInt(good, 12, image.getWidth() * image.getHeight()));
+    }
+
+    @Test
+    void EdgeFileIndicesMustStayInTheFrame() throws IOException {
+        byte[] good = Files.readAllBytes(edgesFile);
+        // A first delta of 2^35 - 1, which wraps an int to -1 and leaves the other edges in the frame
+        CheckMiss(edgesFile, ReplaceFirstDelta(good, 0xFF, 0xFF, 0xFF, 0xFF, 0x7F));
+        // A delta running on past five bytes
+        CheckMiss(edgesFile, ReplaceFirstDelta(good, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x01));
+    }
+
+    @Test
+    void CirclesFileCountsMustFitTheFrame() throws IOException {
+        byte[] good = Files.readAllBytes(circlesFile);
+        // The center count follows the magic and the parameters key, a short length and its bytes
+        int centerCount = 4 + 2 + ByteBuffer.wrap(good, 4, 2).getShort();
+        CheckMiss(circlesFile, SetInt(good, centerCount, -1));
+        CheckMiss(circlesFile, SetInt(good, centerCount, Integer.MAX_VALUE));
+        CheckMiss(circlesFile, SetInt(good, centerCount + 4, -5));
+    }
+
+    @Test
+    void TruncatedFilesAreMisses() throws IOException {
+        for (Path file : new Path[]{edgesFile, circlesFile}) {
+            byte[] good = Files.readAllBytes(file);
+            for (int length : new int[]{0, 3, 10, good.length / 2, good.length - 1}) {
+                CheckMiss(file, Arrays.copyOf(good, length));
+            }
+        }
+    }
+
+    @Test
+    void GarbledFilesDoNotThrow() throws IOException {
+        Random random = new Random(5);
+        for (Path file : new Path[]{edgesFile, circlesFile}) {
+            byte[] good = Files.readAllBytes(file);
+            for (int trial = 0; trial < 40; trial++) {
+                byte[] garbled = good.clone();
+                for (int flip = 0; flip < 4; flip++) {
+                    garbled[random.nextInt(garbled.length)] ^= (byte) (1 << random.nextInt(8));
+                }
+                Break(file, garbled);
+                // A flipped gradient still reads, only the parts that could throw are checked
+                Detect();
+            }
+            Files.write(file, good);
+        }
+    }
+
+    /**
+     * Writes a broken file, checks the frame is detected as before and puts the intact file back.
+     */
+    private void CheckMiss(Path file, byte[] broken) throws IOException {
+        byte[] good = Files.readAllBytes(file);
+        Break(file, broken);
+        assertEquals(expected, Detect(), file.getFileName().toString());
+        Files.write(file, good);
+    }
+
+    private void Break(Path file, byte[] broken) throws IOException {
+        Files.write(file, broken);
+        if (file.equals(edgesFile)) {
+            // The circles would be used without reading the edges
+            Files.deleteIfExists(circlesFile);
+        }
+    }
+
+    /**
+     * Detects the image through a cache that keeps nothing in memory, so every lookup goes to disk.
+     */
+    private String Detect() {
+        CircleDetector detector = new CircleDetector(null, new DetectorParams())
+                .WithCache(new DetectionCache(0, dir.toFile()), false);
+        return Circle.Join(detector.Detect(image).circles);
+    }
+
+    private Path Find(String suffix) throws IOException {
+        try (var files = Files.list(dir)) {
+            Path[] found = files.filter(p -> p.toString().endsWith(suffix)).toArray(Path[]::new);
+            assertEquals(1, found.length, suffix);
+            assertTrue(Files.size(found[0]) > 16, suffix);
+            return found[0];
+        }
+    }
+
+    /**
+     * @return byte[] edge file with the varint of its first edge swapped for the given bytes.
+     */
+    private static byte[] ReplaceFirstDelta(byte[] edges, int... varint) {
+        int end = 16;
+        while ((edges[end] & 0x80) != 0) {
+            end++;
+        }
+        byte[] replaced = new byte[edges.length - (end + 1 - 16) + varint.length];
+        System.arraycopy(edges, 0, replaced, 0, 16);
+        for (int b = 0; b < varint.length; b++) {
+            replaced[16 + b] = (byte) varint[b];
+        }
+        System.arraycopy(edges, end + 1, replaced, 16 + varint.length, edges.length - end - 1);
+        return replaced;
+    }
+
+    private static byte[] SetInt(byte[] bytes, int offset, int value) {
+        byte[] changed = bytes.clone();
+        ByteBuffer.wrap(changed).putInt(offset, value);
+        return changed;
+    }
+}
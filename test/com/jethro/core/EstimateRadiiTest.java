@@ -0,0 +1,80 @@
+package com.jethro.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The radius histogram with the early exit against the full histogram, which must give the same radii and scores.
+ */
+class EstimateRadiiTest {
+    private static final int SIZE = 200;
+
+    @Test
+    void EarlyExitKeepsTheFullScore() {
+        // One ring in a narrow radius band, so the exit fires well before the lower half of the ring is counted
+        byte[] edges = new byte[SIZE * SIZE];
+        Ring(edges, 100, 100, 40);
+        List<int[]> centers = new ArrayList<>();
+        centers.add(new int[]{100, 100});
+        Compare(edges, centers, 35, 45);
+    }
+
+    @Test
+    void EarlyExitMatchesFullHistogram() {
+        Random random = new Random(11);
+        for (int trial = 0; trial < 20; trial++) {
+            byte[] edges = new byte[SIZE * SIZE];
+            for (int ring = 0; ring < 4; ring++) {
+                Ring(edges, 30 + random.nextInt(140), 30 + random.nextInt(140), 5 + random.nextInt(40));
+            }
+            for (int i = 0; i < edges.length; i++) {
+                if (random.nextDouble() < 0.02) {
+                    edges[i] = EdgeLabels.STRONG;
+                }
+            }
+            List<int[]> centers = new ArrayList<>();
+            for (int c = 0; c < 30; c++) {
+                centers.add(new int[]{random.nextInt(SIZE), random.nextInt(SIZE)});
+            }
+            int minRadius = 1 + random.nextInt(20);
+            Compare(edges, centers, minRadius, minRadius + random.nextInt(60));
+        }
+    }
+
+    private static void Ring(byte[] edges, int x, int y, int radius) {
+        for (int step = 0; step < 8 * radius; step++) {
+            double angle = step * Math.PI / (4 * radius);
+            int px = (int) Math.round(x + radius * Math.cos(angle));
+            int py = (int) Math.round(y + radius * Math.sin(angle));
+            if (px >= 0 && px < SIZE && py >= 0 && py < SIZE) {
+                edges[py * SIZE + px] = EdgeLabels.STRONG;
+            }
+        }
+    }
+
+    private static void Compare(byte[] edges, List<int[]> centers, int minRadius, int maxRadius) {
+        EdgeList edgeList = new EdgeList();
+        edgeList.Collect(null, edges, new int[edges.length], new int[edges.length], SIZE, SIZE);
+        DetectorParams params = new DetectorParams();
+        params.minRadius = minRadius;
+        params.maxRadius = maxRadius;
+
+        int[] fullRadii = new int[centers.size()];
+        int[] fullScores = new int[centers.size()];
+        params.radiusEarlyExit = false;
+        CircleDetector.EstimateRadii(edgeList, SIZE, SIZE, centers, params, fullRadii, fullScores, null);
+
+        int[] radii = new int[centers.size()];
+        int[] scores = new int[centers.size()];
+        params.radiusEarlyExit = true;
+        CircleDetector.EstimateRadii(edgeList, SIZE, SIZE, centers, params, radii, scores, null);
+
+        String range = minRadius + "-" + maxRadius;
+        assertArrayEquals(fullRadii, radii, range);
+        assertArrayEquals(fullScores, scores, range);
+    }
+}
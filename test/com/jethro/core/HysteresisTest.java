@@ -0,0 +1,98 @@
+package com.jethro.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The serial stack flood against the parallel union-find labelling, which must give the same edges.
+ */
+class HysteresisTest {
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void StartPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void StopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    void UnionFindMatchesFlood() {
+        Random random = new Random(7);
+        int[][] sizes = {{1, 1}, {5, 3}, {64, 16}, {97, 61}, {320, 240}, {31, 400}};
+        for (int[] size : sizes) {
+            for (double weak : new double[]{0.1, 0.3, 0.6}) {
+                byte[] labels = RandomLabels(random, size[0], size[1], weak);
+                Compare(labels, size[0], size[1]);
+            }
+        }
+    }
+
+    @Test
+    void UnionFindMatchesFloodOnLongChains() {
+        // A weak spiral that crosses every band boundary many times, with one strong pixel at its far end
+        int width = 120;
+        int height = 120;
+        byte[] labels = new byte[width * height];
+        int x0 = 0;
+        int y0 = 0;
+        int x1 = width - 1;
+        int y1 = height - 1;
+        int last = 0;
+        while (x0 <= x1 && y0 <= y1) {
+            for (int x = x0; x <= x1; x++) {
+                last = Mark(labels, width, x, y0);
+            }
+            for (int y = y0; y <= y1; y++) {
+                last = Mark(labels, width, x1, y);
+            }
+            for (int x = x1; x >= x0; x--) {
+                last = Mark(labels, width, x, y1);
+            }
+            for (int y = y1; y >= y0 + 2; y--) {
+                last = Mark(labels, width, x0, y);
+            }
+            x0 += 2;
+            y0 += 2;
+            x1 -= 2;
+            y1 -= 2;
+        }
+        labels[last] = EdgeLabels.STRONG;
+        Compare(labels, width, height);
+    }
+
+    private static int Mark(byte[] labels, int width, int x, int y) {
+        int i = y * width + x;
+        labels[i] = EdgeLabels.WEAK;
+        return i;
+    }
+
+    private static void Compare(byte[] labels, int width, int height) {
+        byte[] flooded = new byte[labels.length];
+        CircleDetector.Hysteresis(null, labels, width, height, flooded);
+        byte[] unionFind = new byte[labels.length];
+        CircleDetector.Hysteresis(pool, labels, width, height, unionFind);
+        assertArrayEquals(flooded, unionFind, width + "x" + height);
+    }
+
+    private static byte[] RandomLabels(Random random, int width, int height, double weak) {
+        byte[] labels = new byte[width * height];
+        for (int i = 0; i < labels.length; i++) {
+            double r = random.nextDouble();
+            if (r < 0.02) {
+                labels[i] = EdgeLabels.STRONG;
+            } else if (r < 0.02 + weak) {
+                labels[i] = EdgeLabels.WEAK;
+            }
+        }
+        return labels;
+    }
+}
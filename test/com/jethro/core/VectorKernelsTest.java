@@ -0,0 +1,142 @@
+package com.jethro.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every vector kernel against the scalar loop it stands in for, on random planes. The widths include ones that are
+ * not a multiple of the vector length and ones narrower than a vector, so the scalar tails are exercised as well.
+ */
+class VectorKernelsTest {
+    private static final int[] WIDTHS = {1, 2, 3, 7, VectorKernels.LANES - 1, VectorKernels.LANES,
+            VectorKernels.LANES + 1, 2 * VectorKernels.LANES + 3, 101, 640};
+    private static final int HEIGHT = 9;
+
+    private final Random random = new Random(42);
+
+    @BeforeEach
+    void RequireVectors() {
+        assumeTrue(VectorKernels.Usable(), "The preferred vectors are too short for the kernels");
+    }
+
+    @Test
+    void GrayscaleMatchesScalar() {
+        for (int width : WIDTHS) {
+            int size = width * HEIGHT;
+            int[] rgb = new int[size];
+            for (int i = 0; i < size; i++) {
+                rgb[i] = random.nextInt(1 << 24);
+            }
+            byte[] expected = new byte[size];
+            CircleDetector.GrayscalePixels(rgb, expected, 0, size);
+
+            byte[] actual = new byte[size];
+            int end = VectorKernels.Grayscale(rgb, actual, 0, size);
+            assertTrue(size - end < VectorKernels.LANES, "width " + width);
+            CircleDetector.GrayscalePixels(rgb, actual, end, size);
+            assertArrayEquals(expected, actual, "width " + width);
+        }
+    }
+
+    @Test
+    void BlurWeightsAreExactForTheDefaultKernels() {
+        for (int size = 3; size <= 9; size += 2) {
+            for (double sigma : new double[]{0.8, 1.0, 1.4, 2.0, 3.0}) {
+                assertNotNull(VectorKernels.FixedPointWeights(Kernel(size, sigma)), size + "x" + sigma);
+            }
+        }
+    }
+
+    @Test
+    void ConvolveRowMatchesScalar() {
+        for (int size = 3; size <= 9; size += 2) {
+            double[] filter = Kernel(size, 1.4);
+            int[] weights = VectorKernels.FixedPointWeights(filter);
+            for (int width : WIDTHS) {
+                byte[] src = RandomPlane(width);
+                byte[] expected = new byte[src.length];
+                byte[] actual = new byte[src.length];
+                for (int y = 0; y < HEIGHT; y++) {
+                    CircleDetector.OneWayConvolvePixels(src, expected, width, HEIGHT, filter, true, y, 0, width);
+                    int middle = Math.min(size / 2, width);
+                    int end = VectorKernels.ConvolveRow(src, actual, y * width, width, weights);
+                    CircleDetector.OneWayConvolvePixels(src, actual, width, HEIGHT, filter, true, y, 0, middle);
+                    CircleDetector.OneWayConvolvePixels(src, actual, width, HEIGHT, filter, true, y, end, width);
+                }
+                assertArrayEquals(expected, actual, "width " + width + ", kernel " + size);
+            }
+        }
+    }
+
+    @Test
+    void ConvolveColumnsMatchesScalar() {
+        for (int size = 3; size <= 9; size += 2) {
+            double[] filter = Kernel(size, 1.4);
+            int[] weights = VectorKernels.FixedPointWeights(filter);
+            int[] tapRows = new int[size];
+            for (int width : WIDTHS) {
+                byte[] src = RandomPlane(width);
+                byte[] expected = new byte[src.length];
+                byte[] actual = new byte[src.length];
+                for (int y = 0; y < HEIGHT; y++) {
+                    CircleDetector.OneWayConvolvePixels(src, expected, width, HEIGHT, filter, false, y, 0, width);
+                    for (int f = 0; f < size; f++) {
+                        tapRows[f] = Math.max(0, Math.min(y + f - size / 2, HEIGHT - 1)) * width;
+                    }
+                    int end = VectorKernels.ConvolveColumns(src, actual, tapRows, y * width, width, weights);
+                    assertTrue(width - end < VectorKernels.LANES, "width " + width);
+                    CircleDetector.OneWayConvolvePixels(src, actual, width, HEIGHT, filter, false, y, end, width);
+                }
+                assertArrayEquals(expected, actual, "width " + width + ", kernel " + size);
+            }
+        }
+    }
+
+    @Test
+    void SobelGradientsMatchScalar() {
+        for (int width : WIDTHS) {
+            if (width < 3) {
+                continue;
+            }
+            byte[] src = RandomPlane(width);
+            int size = src.length;
+            int[] expectedX = new int[size];
+            int[] expectedY = new int[size];
+            byte[] expectedMagnitude = new byte[size];
+            int[] actualX = new int[size];
+            int[] actualY = new int[size];
+            for (int y = 1; y < HEIGHT - 1; y++) {
+                CircleDetector.SobelPixels(src, width, y, expectedX, expectedY, expectedMagnitude, y * width, 1);
+                int end = VectorKernels.SobelGradients(src, width, y, actualX, actualY, y * width);
+                assertTrue(width - 1 - end < VectorKernels.LANES, "width " + width);
+                CircleDetector.SobelPixels(src, width, y, actualX, actualY, new byte[size], y * width, end);
+            }
+            assertArrayEquals(expectedX, actualX, "width " + width);
+            assertArrayEquals(expectedY, actualY, "width " + width);
+        }
+    }
+
+    /**
+     * A plane of mostly random samples with runs of 0 and 255, so the extremes are covered too.
+     */
+    private byte[] RandomPlane(int width) {
+        byte[] plane = new byte[width * HEIGHT];
+        random.nextBytes(plane);
+        for (int i = 0; i < plane.length; i++) {
+            if ((i / 5) % 7 == 0) {
+                plane[i] = (byte) (((i / 35) % 2 == 0) ? 0 : 255);
+            }
+        }
+        return plane;
+    }
+
+    private static double[] Kernel(int size, double sigma) {
+        return CircleDetector.GaussianRange(-(size / 2), size / 2, sigma);
+    }
+}